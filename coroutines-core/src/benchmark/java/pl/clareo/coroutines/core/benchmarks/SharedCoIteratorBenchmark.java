@@ -0,0 +1,156 @@
+package pl.clareo.coroutines.core.benchmarks;
+
+import static pl.clareo.coroutines.user.Coroutines._;
+import static pl.clareo.coroutines.user.Coroutines.yield;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.Coroutine;
+
+/**
+ * Compares CoIterators shared by coroutines of a class with one CoIterator per
+ * coroutine. Eight coroutines are resumed in turns, so the call to coroutine
+ * inside CoIterator sees one receiver class when shared and eight otherwise.
+ * Benchmarks are not built with the project, compile and run it with
+ * coroutines-user and asm on the classpath:
+ * 
+ * <pre>
+ * javac -cp target/classes:... -d target/benchmark-classes src/benchmark/java/pl/clareo/coroutines/core/benchmarks/SharedCoIteratorBenchmark.java
+ * java -javaagent:target/coroutines.jar=pl.clareo.coroutines.core.benchmarks -cp target/benchmark-classes:... pl.clareo.coroutines.core.benchmarks.SharedCoIteratorBenchmark
+ * </pre>
+ * 
+ * and again with <code>-Dpl.clareo.coroutines.ShareCoIterators=false</code>.
+ * Adding
+ * <code>-XX:+UnlockDiagnosticVMOptions -XX:+PrintInlining</code> shows call
+ * in <code>CoIteratorInternal</code> inlined in the first run and megamorphic
+ * in the second
+ */
+public class SharedCoIteratorBenchmark {
+
+    @Coroutine
+    private static CoIterator<Integer, Void> c0(int n) {
+        for (int i = 0; i < n; i++) {
+            yield(i);
+        }
+        return _();
+    }
+
+    @Coroutine
+    private static CoIterator<Integer, Void> c1(int n) {
+        for (int i = 0; i < n; i++) {
+            yield(i + 1);
+        }
+        return _();
+    }
+
+    @Coroutine
+    private static CoIterator<Integer, Void> c2(int n) {
+        for (int i = 0; i < n; i++) {
+            yield(i * 2);
+        }
+        return _();
+    }
+
+    @Coroutine
+    private static CoIterator<Integer, Void> c3(int n) {
+        for (int i = 0; i < n; i++) {
+            yield(i - 3);
+        }
+        return _();
+    }
+
+    @Coroutine
+    private static CoIterator<Integer, Void> c4(int n) {
+        for (int i = n; i > 0; i--) {
+            yield(i);
+        }
+        return _();
+    }
+
+    @Coroutine
+    private static CoIterator<Integer, Void> c5(int n) {
+        for (int i = 0; i < n; i++) {
+            yield(i ^ 5);
+        }
+        return _();
+    }
+
+    @Coroutine
+    private static CoIterator<Integer, Void> c6(int n) {
+        for (int i = 0; i < n; i++) {
+            yield(i & 6);
+        }
+        return _();
+    }
+
+    @Coroutine
+    private static CoIterator<Integer, Void> c7(int n) {
+        for (int i = 0; i < n; i++) {
+            yield(i | 7);
+        }
+        return _();
+    }
+
+    private static CoIterator<Integer, Void> create(int coroutine, int n) {
+        switch (coroutine) {
+        case 0:
+            return c0(n);
+        case 1:
+            return c1(n);
+        case 2:
+            return c2(n);
+        case 3:
+            return c3(n);
+        case 4:
+            return c4(n);
+        case 5:
+            return c5(n);
+        case 6:
+            return c6(n);
+        default:
+            return c7(n);
+        }
+    }
+
+    public static void main(String[] args) {
+        Set<Class<?>> coIteratorClasses = new HashSet<Class<?>>();
+        for (int coroutine = 0; coroutine < COROUTINES; coroutine++) {
+            coIteratorClasses.add(create(coroutine, 0).getClass());
+        }
+        System.out.println("Shared CoIterators: "
+                           + !"false".equals(System.getProperty("pl.clareo.coroutines.ShareCoIterators")));
+        System.out.println("CoIterator classes: " + coIteratorClasses.size());
+        long sink = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            long start = System.nanoTime();
+            CoIterator<Integer, Void>[] coIterators = newCoIterators();
+            for (int i = 0; i < LENGTH; i++) {
+                for (CoIterator<Integer, Void> coIterator : coIterators) {
+                    sink += coIterator.next();
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            if (round >= WARMUP_ROUNDS) {
+                System.out.printf("Round %d: %.2f ns per resumption%n", round - WARMUP_ROUNDS,
+                                  (double) elapsed / (LENGTH * COROUTINES));
+            }
+        }
+        System.out.println("(" + sink + ")");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static CoIterator<Integer, Void>[] newCoIterators() {
+        CoIterator<Integer, Void>[] coIterators = new CoIterator[COROUTINES];
+        for (int coroutine = 0; coroutine < COROUTINES; coroutine++) {
+            coIterators[coroutine] = create(coroutine, LENGTH);
+        }
+        return coIterators;
+    }
+
+    private static final int COROUTINES    = 8;
+    private static final int LENGTH        = 1000000;
+    private static final int ROUNDS        = 5;
+    private static final int WARMUP_ROUNDS = 5;
+}
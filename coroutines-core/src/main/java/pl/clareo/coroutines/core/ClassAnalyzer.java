@@ -17,6 +17,7 @@ package pl.clareo.coroutines.core;
 
 import static pl.clareo.coroutines.core.StringConstants.COROUTINE_DESCRIPTOR;
 import static pl.clareo.coroutines.core.StringConstants.CO_ITERATOR_DESCRIPTOR;
+import static pl.clareo.coroutines.core.StringConstants.SUSPENDABLE_DESCRIPTOR;
 
 import java.util.LinkedList;
 import java.util.List;
@@ -31,7 +32,8 @@ import org.objectweb.asm.tree.MethodNode;
 final class ClassAnalyzer {
 
     private final ClassNode  classNode;
-    private List<MethodNode> coroutineMethods = new LinkedList<MethodNode>();
+    private List<MethodNode> coroutineMethods   = new LinkedList<MethodNode>();
+    private List<MethodNode> suspendableMethods = new LinkedList<MethodNode>();
 
     ClassAnalyzer(ClassNode classNode) {
         this.classNode = classNode;
@@ -65,6 +67,23 @@ final class ClassAnalyzer {
                         if (isCorrect) {
                             coroutineMethods.add(methodNode);
                         }
+                    } else if (annotationNode.desc.equals(SUSPENDABLE_DESCRIPTOR)) {
+                        boolean isAbstract = (accessFlags & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0;
+                        boolean isConstructor = methodNode.name.charAt(0) == '<';
+                        // calls are bound to the method when class is instrumented
+                        boolean isFinal =
+                                          (accessFlags & (Opcodes.ACC_STATIC | Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL)) != 0
+                                                  || (classNode.access & Opcodes.ACC_FINAL) != 0;
+                        if (isAbstract) {
+                            logger.warning("Abstract method " + methodNode.name + " annotated as suspendable");
+                        } else if (isConstructor) {
+                            logger.warning("Cannot make a suspendable method from constructor");
+                        } else if (!isFinal) {
+                            logger.warning("Suspendable method " + methodNode.name
+                                           + " may be overriden, it must be static, private or final");
+                        } else {
+                            suspendableMethods.add(methodNode);
+                        }
                     }
                 }
             }
@@ -75,5 +94,9 @@ final class ClassAnalyzer {
         return coroutineMethods;
     }
 
+    public List<MethodNode> getSuspendableMethods() {
+        return suspendableMethods;
+    }
+
     private static final Logger logger = Logger.getLogger("pl.clareo.coroutines.ClassAnalyzer");
 }
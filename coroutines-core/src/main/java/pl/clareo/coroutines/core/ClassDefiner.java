@@ -0,0 +1,184 @@
+/*
+ * Copyright 2009-2010 Marcin Rzeźnicki
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package pl.clareo.coroutines.core;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.security.ProtectionDomain;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Defines generated classes in memory. Generated CoIterator refers to its
+ * owner by name, so it must be defined by owner's loader. When that loader is
+ * a descendant of the loader of coroutines runtime visible to owner, protected
+ * <code>ClassLoader.defineClass</code> is called reflectively to do this, on
+ * Java 16+ it needs java.base to open java.lang (by <code>--add-opens</code>).
+ * Owners loaded by other loaders cannot be instrumented in memory. When owner
+ * is loaded by the loader of the runtime (there may be more copies of this
+ * package in different loaders), <code>MethodHandles.Lookup.defineClass</code>
+ * is used where available (Java 9+), otherwise
+ * <code>ClassLoader.defineClass</code> is called as above. If neither works
+ * classes have to be written to ClassgenPath and found on the classpath, as it
+ * used to be. All of this is done reflectively, so that this class runs on
+ * Java 6
+ */
+final class ClassDefiner {
+
+    /**
+     * @return true if class was defined, false if it is not possible
+     * @throws CoroutineGenerationException
+     *             if class cannot be defined by loader of its owner
+     */
+    static boolean define(ClassLoader ownerLoader, String internalName, byte[] classContents) {
+        Class<?> anchor;
+        try {
+            anchor = Class.forName(SingleThreadedCoIterator.class.getName(), false, ownerLoader);
+        } catch (ClassNotFoundException e) {
+            logger.log(Level.FINE, "Coroutines runtime is not visible from " + ownerLoader, e);
+            return false;
+        }
+        ClassLoader runtimeLoader = anchor.getClassLoader();
+        if (ownerLoader != runtimeLoader) {
+            // loader of the runtime would resolve another copy of owner, if any
+            if (!isDescendant(ownerLoader, runtimeLoader)) {
+                throw new CoroutineGenerationException("Class " + internalName + " cannot be defined by " + ownerLoader
+                                                       + ", which is not a descendant of the loader of coroutines runtime");
+            }
+            if (!defineInLoader(ownerLoader, ownerLoader, internalName, classContents, null)) {
+                throw new CoroutineGenerationException("Class " + internalName + " cannot be defined by " + ownerLoader
+                                                       + ", on Java 16+ run with --add-opens java.base/java.lang="
+                                                       + "ALL-UNNAMED (or the module of coroutines runtime)");
+            }
+            return true;
+        }
+        if (lookupDefineClass != null && privateLookupIn != null && lookup != null) {
+            try {
+                Object lookupInAnchor = privateLookupIn.invoke(null, anchor, lookup.invoke(null));
+                lookupDefineClass.invoke(lookupInAnchor, (Object) classContents);
+                return true;
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof LinkageError) {
+                    return isDefined(runtimeLoader, ownerLoader, internalName, e.getCause());
+                }
+                logger.log(Level.FINE, "Lookup.defineClass failed", e.getCause());
+            } catch (Exception e) {
+                logger.log(Level.FINE, "Lookup.defineClass failed", e);
+            }
+        }
+        return defineInLoader(runtimeLoader, ownerLoader, internalName, classContents,
+                              anchor.getProtectionDomain());
+    }
+
+    private static boolean defineInLoader(ClassLoader loader, ClassLoader ownerLoader, String internalName,
+                                          byte[] classContents, ProtectionDomain domain) {
+        Method loaderDefineClass = getLoaderDefineClass();
+        if (loaderDefineClass != null) {
+            try {
+                loaderDefineClass.invoke(loader, internalName.replace('/', '.'), classContents, 0,
+                                         classContents.length, domain);
+                return true;
+            } catch (InvocationTargetException e) {
+                return isDefined(loader, ownerLoader, internalName, e.getCause());
+            } catch (Exception e) {
+                logger.log(Level.FINE, "ClassLoader.defineClass failed", e);
+            }
+        }
+        return false;
+    }
+
+    private static Method findLookupMethod(String className, String name, String... parameterTypes) {
+        try {
+            Class<?>[] types = new Class<?>[parameterTypes.length];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = Class.forName(parameterTypes[i]);
+            }
+            return Class.forName(className).getMethod(name, types);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /*
+     * made accessible only when needed - on Java 9+ it is a warning, if not an
+     * error
+     */
+    private static synchronized Method getLoaderDefineClass() {
+        if (!loaderDefineClassLookedUp) {
+            loaderDefineClassLookedUp = true;
+            try {
+                loaderDefineClass =
+                                    ClassLoader.class.getDeclaredMethod("defineClass", String.class, byte[].class,
+                                                                        int.class, int.class, ProtectionDomain.class);
+                loaderDefineClass.setAccessible(true);
+            } catch (Exception e) {
+                logger.log(Level.FINE, "ClassLoader.defineClass is not accessible", e);
+                loaderDefineClass = null;
+            }
+        }
+        return loaderDefineClass;
+    }
+
+    /*
+     * generated names are deterministic, so the same class may be defined
+     * already - by another thread instrumenting the same owner or for a copy
+     * of the owner in another loader. Class refers to its owner by name, so
+     * it is the same class only if it is defined by owner's loader, otherwise
+     * it resolves another copy of the owner and must not be shared
+     */
+    private static boolean isDefined(ClassLoader loader, ClassLoader ownerLoader, String internalName,
+                                     Throwable definitionError) {
+        Class<?> defined;
+        try {
+            defined = Class.forName(internalName.replace('/', '.'), false, loader);
+        } catch (ClassNotFoundException e) {
+            throw new CoroutineGenerationException("Unable to define class " + internalName, definitionError);
+        }
+        if (defined.getClassLoader() != ownerLoader) {
+            throw new CoroutineGenerationException("Class " + internalName
+                                                   + " is already defined for another copy of its owner",
+                                                   definitionError);
+        }
+        return true;
+    }
+
+    /*
+     * null is the bootstrap loader, ancestor of all loaders
+     */
+    private static boolean isDescendant(ClassLoader loader, ClassLoader ancestor) {
+        if (loader == null) {
+            return false;
+        }
+        for (ClassLoader parent = loader.getParent(); parent != null; parent = parent.getParent()) {
+            if (parent == ancestor) {
+                return true;
+            }
+        }
+        return ancestor == null;
+    }
+
+    private ClassDefiner() {
+    }
+
+    private static final String LOOKUP            = "java.lang.invoke.MethodHandles$Lookup";
+    private static final Logger logger            = Logger.getLogger("pl.clareo.coroutines.ClassDefiner");
+    private static final Method lookup            = findLookupMethod("java.lang.invoke.MethodHandles", "lookup");
+    private static final Method lookupDefineClass = findLookupMethod(LOOKUP, "defineClass", "[B");
+    private static final Method privateLookupIn   = findLookupMethod("java.lang.invoke.MethodHandles",
+                                                                     "privateLookupIn", "java.lang.Class", LOOKUP);
+    private static Method       loaderDefineClass;
+    private static boolean      loaderDefineClassLookedUp;
+}
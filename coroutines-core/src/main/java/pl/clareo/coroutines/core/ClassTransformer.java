@@ -20,21 +20,36 @@ import static pl.clareo.coroutines.core.CodeGenerationUtils.EMPTY_LOCALS;
 import static pl.clareo.coroutines.core.CodeGenerationUtils.EMPTY_STACK;
 import static pl.clareo.coroutines.core.CodeGenerationUtils.JAVA_LANG_OBJECT;
 import static pl.clareo.coroutines.core.CodeGenerationUtils.box_int;
+import static pl.clareo.coroutines.core.CodeGenerationUtils.copy;
+import static pl.clareo.coroutines.core.CodeGenerationUtils.getCodeSize;
 import static pl.clareo.coroutines.core.CodeGenerationUtils.makeInt;
+import static pl.clareo.coroutines.core.CodeGenerationUtils.savecol;
+import static pl.clareo.coroutines.core.CodeGenerationUtils.savecols;
 import static pl.clareo.coroutines.core.CodeGenerationUtils.saveloc;
 import static pl.clareo.coroutines.core.CodeGenerationUtils.savelocs;
 import static pl.clareo.coroutines.core.StringConstants.CALL_METHOD_DESCRIPTOR;
+import static pl.clareo.coroutines.core.StringConstants.COROUTINES_NAME;
 import static pl.clareo.coroutines.core.StringConstants.COROUTINE_DESCRIPTOR;
 import static pl.clareo.coroutines.core.StringConstants.COROUTINE_METHOD_DESCRIPTOR;
 import static pl.clareo.coroutines.core.StringConstants.CO_ITERATOR_CONSTRUCTOR_DESCRIPTOR;
+import static pl.clareo.coroutines.core.StringConstants.CO_ITERATOR_DESCRIPTOR;
+import static pl.clareo.coroutines.core.StringConstants.CO_ITERATOR_NAME;
+import static pl.clareo.coroutines.core.StringConstants.FRAME_ARENA_NAME;
 import static pl.clareo.coroutines.core.StringConstants.FRAME_NAME;
+import static pl.clareo.coroutines.core.StringConstants.LAZY_CO_ITERATORS_NAME;
+import static pl.clareo.coroutines.core.StringConstants.LAZY_FACTORY_NAME;
+import static pl.clareo.coroutines.core.StringConstants.REFLECTIVE_COROUTINE_NAME;
+import static pl.clareo.coroutines.core.StringConstants.REFLECTIVE_INVOKE_DESCRIPTOR;
+import static pl.clareo.coroutines.core.StringConstants.SHARED_CONSTRUCTOR_DESCRIPTOR;
 
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -45,6 +60,18 @@ import org.objectweb.asm.tree.*;
 
 final class ClassTransformer {
 
+    /*
+     * frames of arena coroutine are taken from arena of that coroutine
+     */
+    private static InsnList createArenaFrame(String arenaName, MethodNode coroutine) {
+        InsnList insn = new InsnList();
+        insn.add(new LdcInsnNode(arenaName));
+        insn.add(makeInt(coroutine.maxLocals));
+        insn.add(new MethodInsnNode(Opcodes.INVOKESTATIC, FRAME_ARENA_NAME, "newFrame", "(Ljava/lang/String;I)L"
+                                                                                         + FRAME_NAME + ";"));
+        return insn;
+    }
+
     @SuppressWarnings("unchecked")
     private static InsnList createDebugFrame(MethodNode coroutine) {
         InsnList insn = new InsnList();
@@ -73,6 +100,49 @@ final class ClassTransformer {
         return insn;
     }
 
+    /*
+     * frame factory of suspendable method creates frame of its state machine
+     * and saves call arguments there, caller keeps the frame
+     */
+    private static MethodNode createFrameFactory(String owner, MethodNode suspendable, String stateMachineName, boolean generateDebugCode) {
+        MethodNode factory =
+                             new MethodNode(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC,
+                                            SuspendableCalls.getFactoryName(stateMachineName),
+                                            SuspendableCalls.getFactoryDescriptor(owner, suspendable), null, null);
+        InsnList code = factory.instructions;
+        boolean isDebugFramePossible = generateDebugCode && suspendable.localVariables != null;
+        if (isDebugFramePossible) {
+            code.add(createDebugFrame(suspendable));
+        } else {
+            code.add(createFrame(suspendable));
+        }
+        int argsSize = (Type.getArgumentsAndReturnSizes(factory.desc) >> 2) - 1;
+        code.add(new VarInsnNode(Opcodes.ASTORE, argsSize));
+        code.add(new VarInsnNode(Opcodes.ALOAD, argsSize));
+        code.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, FRAME_NAME, "getLocals", "()[Ljava/lang/Object;"));
+        int localsArrayIndex = argsSize + 1;
+        code.add(new VarInsnNode(Opcodes.ASTORE, localsArrayIndex));
+        Type[] argsTypes = Type.getArgumentTypes(factory.desc);
+        code.add(savelocs(localsArrayIndex, 0, 0, argsTypes));
+        code.add(new VarInsnNode(Opcodes.ALOAD, argsSize));
+        code.add(new InsnNode(Opcodes.ARETURN));
+        if (isDebugFramePossible) {
+            factory.maxStack = 7;
+        } else {
+            boolean isCategory2ArgumentPresent = false;
+            for (Type argType : argsTypes) {
+                int sort = argType.getSort();
+                if (sort == Type.LONG || sort == Type.DOUBLE) {
+                    isCategory2ArgumentPresent = true;
+                    break;
+                }
+            }
+            factory.maxStack = isCategory2ArgumentPresent ? 4 : 3;
+        }
+        factory.maxLocals = localsArrayIndex + 1;
+        return factory;
+    }
+
     private static InsnList createFrame(MethodNode coroutine) {
         InsnList insn = new InsnList();
         insn.add(new TypeInsnNode(Opcodes.NEW, FRAME_NAME));
@@ -95,6 +165,13 @@ final class ClassTransformer {
         }
     }
 
+    private static String getBaseCoIteratorName(MethodNode coroutine) {
+        if (getBoolean(getCoroutineAnnotationValues(coroutine), "threadLocal")) {
+            return Type.getInternalName(ThreadLocalCoIterator.class);
+        }
+        return Type.getInternalName(SingleThreadedCoIterator.class);
+    }
+
     private static boolean getBoolean(Map<String, Object> values, String name) {
         return getBoolean(values, name, false);
     }
@@ -106,6 +183,18 @@ final class ClassTransformer {
         return defaultBoolean;
     }
 
+    /*
+     * name depends only on coroutine's owner and signature, so instrumenting
+     * the same class always gives the same names no matter the order (or
+     * number of threads) classes are loaded in; readable part is followed by
+     * 64-bit FNV-1a hash of full owner name and method descriptor
+     */
+    static String getCoIteratorName(String owner, MethodNode method) {
+        String simpleOwner = owner.substring(owner.lastIndexOf('/') + 1);
+        return "pl/clareo/coroutines/core/CoIterator$" + simpleOwner + '$' + method.name + '$'
+               + hash(owner + '.' + method.name + method.desc);
+    }
+
     @SuppressWarnings("unchecked")
     private static Map<String, Object> getCoroutineAnnotationValues(MethodNode coroutine) {
         Iterator<AnnotationNode> i = coroutine.invisibleAnnotations.iterator();
@@ -145,6 +234,39 @@ final class ClassTransformer {
         return sb.toString();
     }
 
+    private static int getInt(Map<String, Object> values, String name, int defaultInt) {
+        if (values.containsKey(name)) {
+            return (Integer) values.get(name);
+        }
+        return defaultInt;
+    }
+
+    /*
+     * shared CoIterator dispatches by index, its name depends on all
+     * coroutines it dispatches to - class redefined with other coroutines
+     * gets new one
+     */
+    private static String getSharedCoIteratorName(String owner, String baseCoIteratorName, List<String> coroutineNames) {
+        StringBuilder signature = new StringBuilder(owner).append('/').append(baseCoIteratorName);
+        for (String coroutineName : coroutineNames) {
+            signature.append('.').append(coroutineName);
+        }
+        String simpleOwner = owner.substring(owner.lastIndexOf('/') + 1);
+        return "pl/clareo/coroutines/core/CoIterator$" + simpleOwner + '$' + hash(signature.toString());
+    }
+
+    /*
+     * 64-bit FNV-1a
+     */
+    private static String hash(String s) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            hash ^= s.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return Long.toHexString(hash);
+    }
+
     private static InsnList loggingInstructions(String ownerName, String loggerField, Level level, Object... messages) {
         InsnList insn = new InsnList();
         insn.add(new FieldInsnNode(Opcodes.GETSTATIC, ownerName, loggerField, "Ljava/util/logging/Logger;"));
@@ -190,169 +312,567 @@ final class ClassTransformer {
         return insn;
     }
 
-    private final List<MethodNode> coroutines;
-    private final boolean          generateDebugCode;
-    private final ClassNode        thisNode;
-    private final Type             thisType;
+    @SuppressWarnings("unchecked")
+    /*
+     * implementation of coroutine new to loaded class is put in front of its
+     * stub, frame given by ReflectiveCoroutine takes place of arguments. It
+     * returns null, yielded value is handed over by frame. Frames of class are
+     * computed anew (see CoroutineInstrumentator)
+     */
+    private static void mergeInPlace(MethodNode coroutine, MethodNode coroutineImpl) {
+        int frameSlot = (coroutine.access & Opcodes.ACC_STATIC) != 0 ? 0 : 1;
+        InsnList implCode = coroutineImpl.instructions;
+        for (AbstractInsnNode insn = implCode.getFirst(); insn != null; insn = insn.getNext()) {
+            if (insn.getOpcode() == Opcodes.ARETURN) {
+                InsnList handOver = new InsnList();
+                handOver.add(new VarInsnNode(Opcodes.ALOAD, frameSlot));
+                handOver.add(new InsnNode(Opcodes.SWAP));
+                handOver.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, FRAME_NAME, "setInPlaceValue",
+                                                "(Ljava/lang/Object;)V"));
+                handOver.add(new InsnNode(Opcodes.ACONST_NULL));
+                implCode.insertBefore(insn, handOver);
+            }
+        }
+        LabelNode stub = new LabelNode();
+        InsnList resume = new InsnList();
+        resume.add(new MethodInsnNode(Opcodes.INVOKESTATIC, FRAME_NAME, "takeResumedInPlace", "()L" + FRAME_NAME
+                                                                                             + ";"));
+        resume.add(new InsnNode(Opcodes.DUP));
+        resume.add(new JumpInsnNode(Opcodes.IFNULL, stub));
+        // locals: frame, null, input
+        resume.add(new VarInsnNode(Opcodes.ASTORE, frameSlot));
+        resume.add(new InsnNode(Opcodes.ACONST_NULL));
+        resume.add(new VarInsnNode(Opcodes.ASTORE, frameSlot + 1));
+        resume.add(new VarInsnNode(Opcodes.ALOAD, frameSlot));
+        resume.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, FRAME_NAME, "takeInPlaceValue",
+                                      "()Ljava/lang/Object;"));
+        resume.add(new VarInsnNode(Opcodes.ASTORE, frameSlot + 2));
+        resume.add(implCode);
+        resume.add(stub);
+        resume.add(new InsnNode(Opcodes.POP));
+        coroutine.instructions.insert(resume);
+        if (coroutineImpl.tryCatchBlocks != null) {
+            coroutine.tryCatchBlocks.addAll(coroutineImpl.tryCatchBlocks);
+        }
+        coroutine.maxLocals = Math.max(coroutine.maxLocals, coroutineImpl.maxLocals);
+        coroutine.maxStack = Math.max(coroutine.maxStack, coroutineImpl.maxStack + 2);
+    }
 
-    ClassTransformer(ClassNode node, List<MethodNode> coroutines, boolean generateDebugCode) {
+    private static void removeCoroutineAnnotation(MethodNode coroutine) {
+        Iterator<AnnotationNode> i = coroutine.invisibleAnnotations.iterator();
+        while (i.hasNext()) {
+            if (i.next().desc.equals(COROUTINE_DESCRIPTOR)) {
+                i.remove();
+            }
+        }
+    }
+
+    /*
+     * transfer suspends coroutine as yield does, before it leaves target and
+     * value in frame of coroutine for CoIteratorInternal to resume target with
+     */
+    @SuppressWarnings("unchecked")
+    private static void rewriteTransfers(MethodNode coroutine) {
+        List<MethodInsnNode> transfers = new ArrayList<MethodInsnNode>();
+        Iterator<AbstractInsnNode> i = coroutine.instructions.iterator();
+        while (i.hasNext()) {
+            AbstractInsnNode insn = i.next();
+            if (insn.getOpcode() == Opcodes.INVOKESTATIC) {
+                MethodInsnNode call = (MethodInsnNode) insn;
+                if (call.owner.equals(COROUTINES_NAME) && call.name.equals("transfer")) {
+                    transfers.add(call);
+                }
+            }
+        }
+        for (MethodInsnNode call : transfers) {
+            InsnList transfer = new InsnList();
+            transfer.add(new MethodInsnNode(Opcodes.INVOKESTATIC, FRAME_NAME, "setTransfer",
+                                            "(" + CO_ITERATOR_DESCRIPTOR + "Ljava/lang/Object;)V"));
+            transfer.add(new InsnNode(Opcodes.ACONST_NULL));
+            transfer.add(new MethodInsnNode(Opcodes.INVOKESTATIC, COROUTINES_NAME, "yield",
+                                            "(Ljava/lang/Object;)Ljava/lang/Object;"));
+            coroutine.instructions.insert(call, transfer);
+            coroutine.instructions.remove(call);
+        }
+        if (!transfers.isEmpty()) {
+            // frame passed to setTransfer
+            coroutine.maxStack += 1;
+        }
+    }
+
+    private final List<MethodNode>    coroutines;
+    private final boolean             fuseLoops;
+    private final boolean             generateDebugCode;
+    private final Map<String, byte[]> generatedClasses = new LinkedHashMap<String, byte[]>();
+    private final TypeHierarchy       hierarchy;
+    private final boolean             lazy;
+    private final Set<String>         loadedMethods;
+    private final List<MethodNode>    suspendables;
+    private final ClassNode           thisNode;
+    private final Type                thisType;
+
+    ClassTransformer(ClassNode node, List<MethodNode> coroutines, TypeHierarchy hierarchy, boolean generateDebugCode) {
+        this(node, coroutines, Collections.<MethodNode> emptyList(), hierarchy, null, generateDebugCode, false, false);
+    }
+
+    /**
+     * @param suspendables
+     *            suspendable methods of the class, calls coroutines make to
+     *            them are made suspension points
+     * @param loadedMethods
+     *            names of methods of the class as JVM has already loaded it,
+     *            when it is being redefined or retransformed; null if the
+     *            class is being loaded
+     * @param lazy
+     *            if true stubs ask {@link LazyCoIterators} for their
+     *            CoIterators, which are then defined on first call
+     * @param fuseLoops
+     *            if true loops over generators of the class are fused with
+     *            them by {@link LoopFuser}, which changes when generator runs
+     *            and which of its exceptions reach the loop
+     */
+    ClassTransformer(ClassNode node, List<MethodNode> coroutines, List<MethodNode> suspendables, TypeHierarchy hierarchy, Set<String> loadedMethods, boolean generateDebugCode, boolean lazy, boolean fuseLoops) {
         this.coroutines = coroutines;
+        this.suspendables = suspendables;
+        this.hierarchy = hierarchy;
+        this.loadedMethods = loadedMethods;
+        this.lazy = lazy;
+        this.fuseLoops = fuseLoops;
         this.generateDebugCode = generateDebugCode;
         this.thisNode = node;
         this.thisType = Type.getObjectType(node.name);
     }
 
     @SuppressWarnings("unchecked")
-    void transform() {
-        for (MethodNode coroutine : coroutines) {
-            if (log.isLoggable(Level.FINEST)) {
-                log.finest("Generating method for coroutine " + coroutine.name + coroutine.desc);
-            }
-            String coroutineName = getCoroutineName(coroutine);
-            MethodTransformer methodTransformer = new MethodTransformer(coroutine, thisType);
-            MethodNode coroutineImpl = methodTransformer.transform(coroutineName, generateDebugCode);
-            thisNode.methods.add(coroutineImpl);
-            /*
-             * generate co iterators and method stubs
-             */
-            log.finest("Generating CoIterator implementation and method stubs");
-            String baseCoIteratorName;
-            Map<String, Object> annotation = getCoroutineAnnotationValues(coroutine);
-            if (getBoolean(annotation, "threadLocal")) {
-                baseCoIteratorName = Type.getInternalName(ThreadLocalCoIterator.class);
-            } else {
-                baseCoIteratorName = Type.getInternalName(SingleThreadedCoIterator.class);
-            }
-            String coIteratorClassName = "pl/clareo/coroutines/core/CoIterator" + num;
-            ClassNode coIteratorClass = new ClassNode();
-            coIteratorClass.version = Opcodes.V1_6;
-            coIteratorClass.access = Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER;
-            coIteratorClass.name = coIteratorClassName;
-            coIteratorClass.superName = baseCoIteratorName;
+    private void generateCoIterator(MethodNode coroutine, String coroutineName, String coIteratorClassName, String baseCoIteratorName, boolean inPlace) {
+        ClassNode coIteratorClass = new ClassNode();
+        coIteratorClass.version = Opcodes.V1_6;
+        coIteratorClass.access = Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER;
+        coIteratorClass.name = coIteratorClassName;
+        coIteratorClass.superName = baseCoIteratorName;
+        if (generateDebugCode || inPlace) {
+            MethodNode clinit = new MethodNode();
+            clinit.access = Opcodes.ACC_STATIC;
+            clinit.name = "<clinit>";
+            clinit.desc = "()V";
+            clinit.exceptions = Collections.EMPTY_LIST;
+            InsnList clinitCode = clinit.instructions;
             if (generateDebugCode) {
                 /*
-                 * If debugging code is emitted create field keeping JDK logger
+                 * If debugging code is emitted create field keeping JDK
+                 * logger
                  */
                 FieldNode loggerField =
                                         new FieldNode(Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL | Opcodes.ACC_STATIC,
                                                       "logger", "Ljava/util/logging/Logger;", null, null);
                 coIteratorClass.fields.add(loggerField);
-                MethodNode clinit = new MethodNode();
-                clinit.access = Opcodes.ACC_STATIC;
-                clinit.name = "<clinit>";
-                clinit.desc = "()V";
-                clinit.exceptions = Collections.EMPTY_LIST;
                 String loggerName = thisType.getClassName();
-                InsnList clinitCode = clinit.instructions;
                 clinitCode.add(new LdcInsnNode(loggerName));
                 clinitCode.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "java/util/logging/Logger", "getLogger",
                                                   "(Ljava/lang/String;)Ljava/util/logging/Logger;"));
                 clinitCode.add(new FieldInsnNode(Opcodes.PUTSTATIC, coIteratorClassName, "logger",
                                                  "Ljava/util/logging/Logger;"));
-                clinitCode.add(new InsnNode(Opcodes.RETURN));
-                clinit.maxStack = 1;
-                clinit.maxLocals = 0;
-                coIteratorClass.methods.add(clinit);
             }
-            /*
-             * Generate constructor
-             */
-            MethodNode init = new MethodNode();
-            init.access = Opcodes.ACC_PUBLIC;
-            init.name = "<init>";
-            init.desc = CO_ITERATOR_CONSTRUCTOR_DESCRIPTOR;
-            init.exceptions = Collections.EMPTY_LIST;
-            InsnList initCode = init.instructions;
-            initCode.add(new VarInsnNode(Opcodes.ALOAD, 0));
-            initCode.add(new VarInsnNode(Opcodes.ALOAD, 1));
-            initCode.add(new MethodInsnNode(Opcodes.INVOKESPECIAL, baseCoIteratorName, "<init>",
-                                            CO_ITERATOR_CONSTRUCTOR_DESCRIPTOR));
-            initCode.add(new InsnNode(Opcodes.RETURN));
-            init.maxStack = 2;
-            init.maxLocals = 2;
-            coIteratorClass.methods.add(init);
-            /*
-             * Generate overriden call to coroutine
-             */
-            MethodNode call = new MethodNode();
-            call.access = Opcodes.ACC_PROTECTED;
-            call.name = "call";
-            call.desc = CALL_METHOD_DESCRIPTOR;
-            call.exceptions = Collections.EMPTY_LIST;
-            InsnList callCode = call.instructions;
-            /*
-             * if debug needed generate call details
-             */
-            if (generateDebugCode) {
-                String coroutineId = "Coroutine " + coroutine.name;
-                callCode.add(loggingInstructions(coIteratorClassName, "logger", Level.FINER, coroutineId
-                                                                                             + " call. Caller sent: ",
-                                                 2));
-                callCode.add(new FrameNode(Opcodes.F_SAME, 0, EMPTY_LOCALS, 0, EMPTY_STACK));
-                callCode.add(loggingInstructions(coIteratorClassName, "logger", Level.FINEST, coroutineId + " state ",
-                                                 1));
-                callCode.add(new FrameNode(Opcodes.F_SAME, 0, EMPTY_LOCALS, 0, EMPTY_STACK));
+            if (inPlace) {
+                /*
+                 * If coroutine is resumed in place create field keeping its
+                 * method, which it is called reflectively through
+                 */
+                FieldNode coroutineField =
+                                           new FieldNode(Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL
+                                                         | Opcodes.ACC_STATIC, "coroutine",
+                                                         "Ljava/lang/reflect/Method;", null, null);
+                coIteratorClass.fields.add(coroutineField);
+                clinitCode.add(new LdcInsnNode(thisType));
+                clinitCode.add(new LdcInsnNode(coroutine.name));
+                clinitCode.add(new LdcInsnNode(coroutine.desc));
+                clinitCode.add(new MethodInsnNode(Opcodes.INVOKESTATIC, REFLECTIVE_COROUTINE_NAME, "find",
+                                                  "(Ljava/lang/Class;Ljava/lang/String;Ljava/lang/String;)"
+                                                          + "Ljava/lang/reflect/Method;"));
+                clinitCode.add(new FieldInsnNode(Opcodes.PUTSTATIC, coIteratorClassName, "coroutine",
+                                                 "Ljava/lang/reflect/Method;"));
             }
-            /*
-             * push call arguments: this (if not static), frame, input, output
-             */
-            boolean isStatic = (coroutine.access & Opcodes.ACC_STATIC) != 0;
+            clinitCode.add(new InsnNode(Opcodes.RETURN));
+            clinit.maxStack = inPlace ? 3 : 1;
+            clinit.maxLocals = 0;
+            coIteratorClass.methods.add(clinit);
+        }
+        /*
+         * Generate constructor
+         */
+        MethodNode init = new MethodNode();
+        init.access = Opcodes.ACC_PUBLIC;
+        init.name = "<init>";
+        init.desc = CO_ITERATOR_CONSTRUCTOR_DESCRIPTOR;
+        init.exceptions = Collections.EMPTY_LIST;
+        InsnList initCode = init.instructions;
+        initCode.add(new VarInsnNode(Opcodes.ALOAD, 0));
+        initCode.add(new VarInsnNode(Opcodes.ALOAD, 1));
+        initCode.add(new MethodInsnNode(Opcodes.INVOKESPECIAL, baseCoIteratorName, "<init>",
+                                        CO_ITERATOR_CONSTRUCTOR_DESCRIPTOR));
+        initCode.add(new InsnNode(Opcodes.RETURN));
+        init.maxStack = 2;
+        init.maxLocals = 2;
+        coIteratorClass.methods.add(init);
+        /*
+         * Generate overriden call to coroutine
+         */
+        MethodNode call = new MethodNode();
+        call.access = Opcodes.ACC_PROTECTED;
+        call.name = "call";
+        call.desc = CALL_METHOD_DESCRIPTOR;
+        call.exceptions = Collections.EMPTY_LIST;
+        InsnList callCode = call.instructions;
+        /*
+         * if debug needed generate call details
+         */
+        if (generateDebugCode) {
+            String coroutineId = "Coroutine " + coroutine.name;
+            callCode.add(loggingInstructions(coIteratorClassName, "logger", Level.FINER, coroutineId
+                                                                                         + " call. Caller sent: ",
+                                             2));
+            callCode.add(new FrameNode(Opcodes.F_SAME, 0, EMPTY_LOCALS, 0, EMPTY_STACK));
+            callCode.add(loggingInstructions(coIteratorClassName, "logger", Level.FINEST, coroutineId + " state ",
+                                             1));
+            callCode.add(new FrameNode(Opcodes.F_SAME, 0, EMPTY_LOCALS, 0, EMPTY_STACK));
+        }
+        /*
+         * push call arguments: this (if not static), frame, input, output
+         */
+        boolean isStatic = (coroutine.access & Opcodes.ACC_STATIC) != 0;
+        if (inPlace) {
+            callCode.add(new FieldInsnNode(Opcodes.GETSTATIC, coIteratorClassName, "coroutine",
+                                           "Ljava/lang/reflect/Method;"));
             if (!isStatic) {
                 callCode.add(new VarInsnNode(Opcodes.ALOAD, 1));
-                callCode.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, FRAME_NAME, "getThis", "()Ljava/lang/Object;"));
+                callCode.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, FRAME_NAME, "getThis",
+                                                "()Ljava/lang/Object;"));
+            } else {
+                callCode.add(new InsnNode(Opcodes.ACONST_NULL));
+            }
+            callCode.add(new VarInsnNode(Opcodes.ALOAD, 1));
+            callCode.add(new VarInsnNode(Opcodes.ALOAD, 2));
+            callCode.add(new MethodInsnNode(Opcodes.INVOKESTATIC, REFLECTIVE_COROUTINE_NAME, "invoke",
+                                            REFLECTIVE_INVOKE_DESCRIPTOR));
+        } else {
+            if (!isStatic) {
+                callCode.add(new VarInsnNode(Opcodes.ALOAD, 1));
+                callCode.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, FRAME_NAME, "getThis",
+                                                "()Ljava/lang/Object;"));
                 callCode.add(new TypeInsnNode(Opcodes.CHECKCAST, thisType.getInternalName()));
             }
             callCode.add(new VarInsnNode(Opcodes.ALOAD, 1));
             callCode.add(new InsnNode(Opcodes.ACONST_NULL));
             callCode.add(new VarInsnNode(Opcodes.ALOAD, 2));
             callCode.add(new MethodInsnNode(isStatic ? Opcodes.INVOKESTATIC : Opcodes.INVOKEVIRTUAL,
-                                            thisType.getInternalName(), coroutineName, COROUTINE_METHOD_DESCRIPTOR));
-            // stack: *
-            if (!generateDebugCode) {
-                callCode.add(new InsnNode(Opcodes.ARETURN));
+                                            thisType.getInternalName(), coroutineName,
+                                            COROUTINE_METHOD_DESCRIPTOR));
+        }
+        // stack: *
+        if (!generateDebugCode) {
+            callCode.add(new InsnNode(Opcodes.ARETURN));
+        } else {
+            // save result display suspension point (two more locals
+            // needed)
+            callCode.add(new VarInsnNode(Opcodes.ASTORE, 3));
+            callCode.add(new VarInsnNode(Opcodes.ALOAD, 1));
+            callCode.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, FRAME_NAME, "getLineOfCode", "()I"));
+            callCode.add(box_int(Type.INT));
+            callCode.add(new VarInsnNode(Opcodes.ASTORE, 4));
+            callCode.add(loggingInstructions(coIteratorClassName, "logger", Level.FINER,
+                                             "Coroutine suspended at line ", 4, ". Yielded:", 3));
+            callCode.add(new FrameNode(Opcodes.F_APPEND, 2,
+                                       new Object[] { "java/lang/Object", "java/lang/Integer" }, 0, EMPTY_STACK));
+            callCode.add(new VarInsnNode(Opcodes.ALOAD, 3));
+            callCode.add(new InsnNode(Opcodes.ARETURN));
+        }
+        coIteratorClass.methods.add(call);
+        // if debugging code is emitted it needs space for two
+        // additional locals and 5 stack operand
+        if (generateDebugCode) {
+            call.maxStack = 5;
+            call.maxLocals = 5;
+        } else {
+            if (isStatic && !inPlace) {
+                call.maxStack = 3;
             } else {
-                // save result display suspension point (two more locals
-                // needed)
-                callCode.add(new VarInsnNode(Opcodes.ASTORE, 3));
+                call.maxStack = 4;
+            }
+            call.maxLocals = 3;
+        }
+        /*
+         * Lazy CoIterator is its own factory
+         */
+        if (lazy) {
+            coIteratorClass.interfaces.add(LAZY_FACTORY_NAME);
+            MethodNode create = new MethodNode();
+            create.access = Opcodes.ACC_PUBLIC;
+            create.name = "create";
+            create.desc = "(L" + FRAME_NAME + ";)" + CO_ITERATOR_DESCRIPTOR;
+            create.exceptions = Collections.EMPTY_LIST;
+            InsnList createCode = create.instructions;
+            createCode.add(new TypeInsnNode(Opcodes.NEW, coIteratorClassName));
+            createCode.add(new InsnNode(Opcodes.DUP));
+            createCode.add(new VarInsnNode(Opcodes.ALOAD, 1));
+            createCode.add(new MethodInsnNode(Opcodes.INVOKESPECIAL, coIteratorClassName, "<init>",
+                                              CO_ITERATOR_CONSTRUCTOR_DESCRIPTOR));
+            createCode.add(new InsnNode(Opcodes.ARETURN));
+            create.maxStack = 3;
+            create.maxLocals = 2;
+            coIteratorClass.methods.add(create);
+        }
+        /*
+         * CoIterator created - define it in the runtime and verify if
+         * needed
+         */
+        if (log.isLoggable(Level.FINEST)) {
+            log.finest("Generated class " + coIteratorClassName);
+        }
+        ClassWriter cw = new ClassWriter(0);
+        coIteratorClass.accept(cw);
+        generatedClasses.put(coIteratorClassName, cw.toByteArray());
+    }
+
+    /*
+     * Shared CoIterator keeps index of coroutine it was created for and
+     * dispatches on it - direct calls as in CoIterator of single coroutine
+     */
+    @SuppressWarnings("unchecked")
+    private byte[] generateSharedCoIterator(SharedCoIterator shared) {
+        ClassNode coIteratorClass = new ClassNode();
+        coIteratorClass.version = Opcodes.V1_6;
+        coIteratorClass.access = Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER;
+        coIteratorClass.name = shared.name;
+        coIteratorClass.superName = shared.baseName;
+        coIteratorClass.fields.add(new FieldNode(Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, "coroutine", "I", null,
+                                                 null));
+        /*
+         * Generate constructor
+         */
+        MethodNode init = new MethodNode();
+        init.access = Opcodes.ACC_PUBLIC;
+        init.name = "<init>";
+        init.desc = SHARED_CONSTRUCTOR_DESCRIPTOR;
+        init.exceptions = Collections.EMPTY_LIST;
+        InsnList initCode = init.instructions;
+        initCode.add(new VarInsnNode(Opcodes.ALOAD, 0));
+        initCode.add(new VarInsnNode(Opcodes.ALOAD, 1));
+        initCode.add(new MethodInsnNode(Opcodes.INVOKESPECIAL, shared.baseName, "<init>",
+                                        CO_ITERATOR_CONSTRUCTOR_DESCRIPTOR));
+        initCode.add(new VarInsnNode(Opcodes.ALOAD, 0));
+        initCode.add(new VarInsnNode(Opcodes.ILOAD, 2));
+        initCode.add(new FieldInsnNode(Opcodes.PUTFIELD, shared.name, "coroutine", "I"));
+        initCode.add(new InsnNode(Opcodes.RETURN));
+        init.maxStack = 2;
+        init.maxLocals = 3;
+        coIteratorClass.methods.add(init);
+        /*
+         * Generate call switching over coroutines
+         */
+        MethodNode call = new MethodNode();
+        call.access = Opcodes.ACC_PROTECTED;
+        call.name = "call";
+        call.desc = CALL_METHOD_DESCRIPTOR;
+        call.exceptions = Collections.EMPTY_LIST;
+        InsnList callCode = call.instructions;
+        int nCoroutines = shared.coroutines.size();
+        LabelNode[] cases = new LabelNode[nCoroutines];
+        for (int i = 0; i < nCoroutines; i++) {
+            cases[i] = new LabelNode();
+        }
+        LabelNode unknownCoroutine = new LabelNode();
+        callCode.add(new VarInsnNode(Opcodes.ALOAD, 0));
+        callCode.add(new FieldInsnNode(Opcodes.GETFIELD, shared.name, "coroutine", "I"));
+        callCode.add(new TableSwitchInsnNode(0, nCoroutines - 1, unknownCoroutine, cases));
+        for (int i = 0; i < nCoroutines; i++) {
+            callCode.add(cases[i]);
+            callCode.add(new FrameNode(Opcodes.F_SAME, 0, EMPTY_LOCALS, 0, EMPTY_STACK));
+            boolean isStatic = (shared.coroutines.get(i).access & Opcodes.ACC_STATIC) != 0;
+            if (!isStatic) {
                 callCode.add(new VarInsnNode(Opcodes.ALOAD, 1));
-                callCode.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, FRAME_NAME, "getLineOfCode", "()I"));
-                callCode.add(box_int(Type.INT));
-                callCode.add(new VarInsnNode(Opcodes.ASTORE, 4));
-                callCode.add(loggingInstructions(coIteratorClassName, "logger", Level.FINER,
-                                                 "Coroutine suspended at line ", 4, ". Yielded:", 3));
-                callCode.add(new FrameNode(Opcodes.F_APPEND, 2,
-                                           new Object[] { "java/lang/Object", "java/lang/Integer" }, 0, EMPTY_STACK));
-                callCode.add(new VarInsnNode(Opcodes.ALOAD, 3));
-                callCode.add(new InsnNode(Opcodes.ARETURN));
-            }
-            coIteratorClass.methods.add(call);
-            // if debugging code is emitted it needs space for two
-            // additional locals and 5 stack operand
-            if (generateDebugCode) {
-                call.maxStack = 5;
-                call.maxLocals = 5;
+                callCode.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, FRAME_NAME, "getThis", "()Ljava/lang/Object;"));
+                callCode.add(new TypeInsnNode(Opcodes.CHECKCAST, thisType.getInternalName()));
+            }
+            callCode.add(new VarInsnNode(Opcodes.ALOAD, 1));
+            callCode.add(new InsnNode(Opcodes.ACONST_NULL));
+            callCode.add(new VarInsnNode(Opcodes.ALOAD, 2));
+            callCode.add(new MethodInsnNode(isStatic ? Opcodes.INVOKESTATIC : Opcodes.INVOKEVIRTUAL,
+                                            thisType.getInternalName(), shared.coroutineNames.get(i),
+                                            COROUTINE_METHOD_DESCRIPTOR));
+            callCode.add(new InsnNode(Opcodes.ARETURN));
+        }
+        callCode.add(unknownCoroutine);
+        callCode.add(new FrameNode(Opcodes.F_SAME, 0, EMPTY_LOCALS, 0, EMPTY_STACK));
+        callCode.add(new TypeInsnNode(Opcodes.NEW, "java/lang/IllegalStateException"));
+        callCode.add(new InsnNode(Opcodes.DUP));
+        callCode.add(new MethodInsnNode(Opcodes.INVOKESPECIAL, "java/lang/IllegalStateException", "<init>", "()V"));
+        callCode.add(new InsnNode(Opcodes.ATHROW));
+        call.maxStack = 4;
+        call.maxLocals = 3;
+        coIteratorClass.methods.add(call);
+        if (log.isLoggable(Level.FINEST)) {
+            log.finest("Generated class " + shared.name + " shared by " + shared.coroutineNames);
+        }
+        ClassWriter cw = new ClassWriter(0);
+        coIteratorClass.accept(cw);
+        return cw.toByteArray();
+    }
+
+    /*
+     * loops over generators are fused before generators are turned into stubs,
+     * coroutines get small generators they loop over inlined
+     */
+    @SuppressWarnings("unchecked")
+    private void fuseLoops() {
+        List<MethodNode> generators = new ArrayList<MethodNode>();
+        for (MethodNode coroutine : coroutines) {
+            if (getBoolean(getCoroutineAnnotationValues(coroutine), "generator", true)) {
+                generators.add(coroutine);
+            }
+        }
+        if (generators.isEmpty()) {
+            return;
+        }
+        LoopFuser fuser = new LoopFuser(thisNode, generators, hierarchy);
+        for (MethodNode method : (List<MethodNode>) thisNode.methods) {
+            if (coroutines.contains(method)) {
+                fuser.inline(method);
             } else {
-                if (isStatic) {
-                    call.maxStack = 3;
-                } else {
-                    call.maxStack = 4;
+                fuser.fuse(method);
+            }
+        }
+    }
+
+    /**
+     * @return CoIterator implementations generated by {@link #transform()},
+     *         keyed by their internal names, in order of generation
+     */
+    Map<String, byte[]> getGeneratedClasses() {
+        return generatedClasses;
+    }
+
+    /*
+     * plain coroutines - neither debugged, lazy nor resumed in place - of
+     * the same base class share one CoIterator
+     */
+    private Map<String, SharedCoIterator> groupSharedCoIterators() {
+        Map<String, SharedCoIterator> sharedCoIterators = new HashMap<String, SharedCoIterator>();
+        if (!shareCoIterators || generateDebugCode || lazy) {
+            return sharedCoIterators;
+        }
+        for (MethodNode coroutine : coroutines) {
+            String coroutineName = getCoroutineName(coroutine);
+            if (isInPlace(coroutineName)) {
+                continue;
+            }
+            String baseCoIteratorName = getBaseCoIteratorName(coroutine);
+            SharedCoIterator shared = sharedCoIterators.get(baseCoIteratorName);
+            if (shared == null) {
+                shared = new SharedCoIterator(baseCoIteratorName);
+                sharedCoIterators.put(baseCoIteratorName, shared);
+            }
+            shared.coroutines.add(coroutine);
+            shared.coroutineNames.add(coroutineName);
+        }
+        for (SharedCoIterator shared : sharedCoIterators.values()) {
+            shared.name = getSharedCoIteratorName(thisType.getInternalName(), shared.baseName, shared.coroutineNames);
+        }
+        return sharedCoIterators;
+    }
+
+    /*
+     * debug frames keep their own locals, so that they can be shown with names
+     */
+    private boolean isArena(MethodNode coroutine) {
+        Map<String, Object> annotation = getCoroutineAnnotationValues(coroutine);
+        if (!getBoolean(annotation, "arena")) {
+            return false;
+        }
+        if (getBoolean(annotation, "threadLocal")) {
+            throw new CoroutineGenerationException("Coroutine " + coroutine.name
+                                                   + " is thread local, its frames cannot be kept in arena");
+        }
+        if (generateDebugCode) {
+            log.warning("Coroutine " + coroutine.name
+                        + " is instrumented with debug code, its frames are not kept in arena");
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * redefinition cannot add methods, implementation of coroutine new to
+     * loaded class goes into the method of coroutine
+     */
+    private boolean isInPlace(String coroutineName) {
+        return loadedMethods != null && !loadedMethods.contains(coroutineName);
+    }
+
+    @SuppressWarnings("unchecked")
+    void transform() {
+        if (loadedMethods != null) {
+            for (MethodNode suspendable : suspendables) {
+                if (!loadedMethods.contains(getCoroutineName(suspendable))) {
+                    throw new CoroutineGenerationException("Class " + thisType.getClassName()
+                                                           + " is loaded already, @Suspendable method "
+                                                           + suspendable.name + " cannot be added to it");
                 }
-                call.maxLocals = 3;
             }
-            /*
-             * CoIterator created - define it in the runtime and verify if
-             * needed
-             */
+        }
+        List<MethodNode> suspendableBodies = rewriteSuspendableCalls();
+        if (fuseLoops) {
+            fuseLoops();
+        }
+        for (int i = 0; i < suspendableBodies.size(); i++) {
+            MethodNode suspendable = suspendables.get(i);
+            if (log.isLoggable(Level.FINEST)) {
+                log.finest("Generating method for suspendable method " + suspendable.name + suspendable.desc);
+            }
+            String stateMachineName = getCoroutineName(suspendable);
+            MethodNode body = suspendableBodies.get(i);
+            MethodNode stateMachine = transformCoroutine(body, stateMachineName, true, false);
+            stateMachine.access = (stateMachine.access & ~(Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED))
+                                  | Opcodes.ACC_PRIVATE;
+            thisNode.methods.add(stateMachine);
+            thisNode.methods.add(createFrameFactory(thisNode.name, body, stateMachineName, generateDebugCode));
+        }
+        Map<String, SharedCoIterator> sharedCoIterators = groupSharedCoIterators();
+        YieldBatcher batcher = null;
+        for (MethodNode coroutine : coroutines) {
             if (log.isLoggable(Level.FINEST)) {
-                log.finest("Generated class " + coIteratorClassName);
+                log.finest("Generating method for coroutine " + coroutine.name + coroutine.desc);
             }
-            ClassWriter cw = new ClassWriter(0);
-            coIteratorClass.accept(cw);
-            byte[] classBytes = cw.toByteArray();
-            try {
-                CoroutineInstrumentator.dumpClass(coIteratorClassName, classBytes);
-            } catch (IOException e) {
-                throw new CoroutineGenerationException("Unable to write class " + coIteratorClassName, e);
+            int batch = getInt(getCoroutineAnnotationValues(coroutine), "batch", 1);
+            if (batch > 1) {
+                if (batcher == null) {
+                    batcher = new YieldBatcher(thisNode, hierarchy);
+                }
+                batcher.batch(coroutine, batch);
+            }
+            // after batching, transfer must always suspend
+            rewriteTransfers(coroutine);
+            String coroutineName = getCoroutineName(coroutine);
+            boolean arena = isArena(coroutine);
+            MethodNode coroutineImpl = transformCoroutine(coroutine, coroutineName, false, arena);
+            boolean inPlace = isInPlace(coroutineName);
+            if (!inPlace) {
+                thisNode.methods.add(coroutineImpl);
+            }
+            /*
+             * generate co iterators and method stubs
+             */
+            log.finest("Generating CoIterator implementation and method stubs");
+            Map<String, Object> annotation = getCoroutineAnnotationValues(coroutine);
+            String baseCoIteratorName = getBaseCoIteratorName(coroutine);
+            boolean isStatic = (coroutine.access & Opcodes.ACC_STATIC) != 0;
+            SharedCoIterator shared = sharedCoIterators.get(baseCoIteratorName);
+            int sharedIndex = shared == null ? -1 : shared.coroutineNames.indexOf(coroutineName);
+            String coIteratorClassName;
+            if (sharedIndex >= 0) {
+                coIteratorClassName = shared.name;
+            } else {
+                coIteratorClassName = getCoIteratorName(thisType.getInternalName(), coroutine);
+                generateCoIterator(coroutine, coroutineName, coIteratorClassName, baseCoIteratorName, inPlace);
             }
             /*
              * start generating method - new method is named as the method in
@@ -368,7 +888,9 @@ final class ClassTransformer {
              * create new Frame
              */
             boolean isDebugFramePossible = generateDebugCode && coroutine.localVariables != null;
-            if (isDebugFramePossible) {
+            if (arena) {
+                code.add(createArenaFrame(thisType.getInternalName() + "." + coroutineName, coroutine));
+            } else if (isDebugFramePossible) {
                 code.add(createDebugFrame(coroutine));
             } else {
                 code.add(createFrame(coroutine));
@@ -382,40 +904,75 @@ final class ClassTransformer {
                 argsSize -= 1;
             }
             code.add(new VarInsnNode(Opcodes.ASTORE, argsSize));
-            code.add(new VarInsnNode(Opcodes.ALOAD, argsSize));
-            code.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, FRAME_NAME, "getLocals", "()[Ljava/lang/Object;"));
             int localsArrayIndex = argsSize + 1;
-            code.add(new VarInsnNode(Opcodes.ASTORE, localsArrayIndex));
-            /*
-             * save all call arguments (along with this if this method is not
-             * static) into locals array
-             */
             Type[] argsTypes = Type.getArgumentTypes(coroutine.desc);
-            if (!isStatic) {
-                code.add(saveloc(localsArrayIndex, 0, 0, JAVA_LANG_OBJECT));
-                code.add(savelocs(localsArrayIndex, 1, 1, argsTypes));
+            if (arena) {
+                /*
+                 * save all call arguments into their columns of arena
+                 */
+                if (!isStatic) {
+                    code.add(savecol(argsSize, 0, 0, JAVA_LANG_OBJECT));
+                    code.add(savecols(argsSize, 1, 1, argsTypes));
+                } else {
+                    code.add(savecols(argsSize, 0, 0, argsTypes));
+                }
             } else {
-                code.add(savelocs(localsArrayIndex, 0, 0, argsTypes));
+                code.add(new VarInsnNode(Opcodes.ALOAD, argsSize));
+                code.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, FRAME_NAME, "getLocals", "()[Ljava/lang/Object;"));
+                code.add(new VarInsnNode(Opcodes.ASTORE, localsArrayIndex));
+                /*
+                 * save all call arguments (along with this if this method is
+                 * not static) into locals array
+                 */
+                if (!isStatic) {
+                    code.add(saveloc(localsArrayIndex, 0, 0, JAVA_LANG_OBJECT));
+                    code.add(savelocs(localsArrayIndex, 1, 1, argsTypes));
+                } else {
+                    code.add(savelocs(localsArrayIndex, 0, 0, argsTypes));
+                }
             }
             /*
              * create CoIterator instance with saved frame, make initial call to
              * next if needed and return to caller
              */
-            code.add(new TypeInsnNode(Opcodes.NEW, coIteratorClassName));
-            code.add(new InsnNode(Opcodes.DUP));
-            code.add(new VarInsnNode(Opcodes.ALOAD, argsSize));
-            code.add(new MethodInsnNode(Opcodes.INVOKESPECIAL, coIteratorClassName, "<init>",
-                                        CO_ITERATOR_CONSTRUCTOR_DESCRIPTOR));
+            if (lazy) {
+                code.add(new VarInsnNode(Opcodes.ALOAD, argsSize));
+                code.add(new LdcInsnNode(thisType));
+                code.add(new LdcInsnNode(coIteratorClassName));
+                code.add(new MethodInsnNode(Opcodes.INVOKESTATIC, LAZY_CO_ITERATORS_NAME, "create",
+                                            "(L" + FRAME_NAME + ";Ljava/lang/Class;Ljava/lang/String;)"
+                                                + CO_ITERATOR_DESCRIPTOR));
+            } else if (sharedIndex >= 0) {
+                code.add(new TypeInsnNode(Opcodes.NEW, coIteratorClassName));
+                code.add(new InsnNode(Opcodes.DUP));
+                code.add(new VarInsnNode(Opcodes.ALOAD, argsSize));
+                code.add(makeInt(sharedIndex));
+                code.add(new MethodInsnNode(Opcodes.INVOKESPECIAL, coIteratorClassName, "<init>",
+                                            SHARED_CONSTRUCTOR_DESCRIPTOR));
+            } else {
+                code.add(new TypeInsnNode(Opcodes.NEW, coIteratorClassName));
+                code.add(new InsnNode(Opcodes.DUP));
+                code.add(new VarInsnNode(Opcodes.ALOAD, argsSize));
+                code.add(new MethodInsnNode(Opcodes.INVOKESPECIAL, coIteratorClassName, "<init>",
+                                            CO_ITERATOR_CONSTRUCTOR_DESCRIPTOR));
+            }
             if (!getBoolean(annotation, "generator", true)) {
                 code.add(new InsnNode(Opcodes.DUP));
-                code.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, coIteratorClassName, "next", "()Ljava/lang/Object;"));
+                if (lazy) {
+                    code.add(new MethodInsnNode(Opcodes.INVOKEINTERFACE, CO_ITERATOR_NAME, "next",
+                                                "()Ljava/lang/Object;"));
+                } else {
+                    code.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, coIteratorClassName, "next",
+                                                "()Ljava/lang/Object;"));
+                }
                 code.add(new InsnNode(Opcodes.POP));
             }
             code.add(new InsnNode(Opcodes.ARETURN));
             /*
              * end method generation; maxs can be statically determined 3
              * operands on stack (call to frame setLocals and CoIterator
-             * constructor) + 1 if any argument is long or double (debug frame
+             * constructor) + 1 if any argument is long or double or CoIterator
+             * is shared (debug frame
              * needs 7 operands for variable names creation); locals = argsSize
              * + 1 reference to frame + 1 array of locals
              */
@@ -430,15 +987,111 @@ final class ClassTransformer {
                         break;
                     }
                 }
-                coroutine.maxStack = isCategory2ArgumentPresent ? 4 : 3;
+                coroutine.maxStack = isCategory2ArgumentPresent || sharedIndex >= 0 ? 4 : 3;
             }
             coroutine.maxLocals = localsArrayIndex + 1;
             coroutine.localVariables.clear();
             coroutine.tryCatchBlocks.clear();
-            num++;
+            if (inPlace) {
+                mergeInPlace(coroutine, coroutineImpl);
+            }
+            /*
+             * method is a plain stub from now on - instrumenting it again
+             * (i.e. class instrumented ahead of time loaded under agent) must
+             * be a no-op
+             */
+            removeCoroutineAnnotation(coroutine);
+        }
+        for (SharedCoIterator shared : sharedCoIterators.values()) {
+            generatedClasses.put(shared.name, generateSharedCoIterator(shared));
+        }
+    }
+
+    /*
+     * calls coroutines make to suspendable methods are rewritten in place,
+     * suspendable methods are rewritten in copies - other callers keep calling
+     * the originals
+     */
+    private List<MethodNode> rewriteSuspendableCalls() {
+        List<MethodNode> bodies = new ArrayList<MethodNode>();
+        if (suspendables.isEmpty()) {
+            return bodies;
+        }
+        List<String> stateMachineNames = new ArrayList<String>();
+        for (MethodNode suspendable : suspendables) {
+            stateMachineNames.add(getCoroutineName(suspendable));
+        }
+        SuspendableCalls calls = new SuspendableCalls(thisNode, suspendables, stateMachineNames, hierarchy);
+        for (MethodNode coroutine : coroutines) {
+            calls.rewrite(coroutine);
+        }
+        for (MethodNode suspendable : suspendables) {
+            MethodNode body = copy(suspendable);
+            calls.rewrite(body);
+            bodies.add(body);
+        }
+        return bodies;
+    }
+
+    /**
+     * Yields of every coroutine share blocks which restore the same locals
+     * where it makes code smaller. Coroutine whose method exceeds
+     * {@link #hugeMethodLimit} is transformed once again into compact code,
+     * sharing blocks which save the same locals too
+     */
+    private MethodNode transformCoroutine(MethodNode coroutine, String coroutineName, boolean suspendable, boolean arena) {
+        MethodTransformer transformer = new MethodTransformer(coroutine, thisType, hierarchy, suspendable, arena);
+        MethodNode coroutineImpl = transformer.transform(coroutineName, generateDebugCode, false);
+        int codeSize = getCodeSize(coroutineImpl.instructions);
+        String description = thisType.getClassName() + "." + coroutine.name + coroutine.desc;
+        if (codeSize > hugeMethodLimit) {
+            transformer = new MethodTransformer(coroutine, thisType, hierarchy, suspendable, arena);
+            coroutineImpl = transformer.transform(coroutineName, generateDebugCode, true);
+            int compactSize = getCodeSize(coroutineImpl.instructions);
+            if (log.isLoggable(Level.FINE)) {
+                log.fine("Coroutine " + description + " compacted from " + codeSize + " to " + compactSize
+                         + " bytes of code");
+            }
+            codeSize = compactSize;
+            if (codeSize > hugeMethodLimit) {
+                log.warning("Coroutine " + description + " has " + codeSize + " bytes of code, more than "
+                            + hugeMethodLimit + ", it will not be compiled by JIT - consider splitting it");
+            }
+        } else if (log.isLoggable(Level.FINE)) {
+            log.fine("Coroutine " + description + " has " + codeSize + " bytes of code");
+        }
+        if (log.isLoggable(Level.FINE)) {
+            log.fine("Coroutine " + description + " shares restoring of locals, saving "
+                     + transformer.getRestoreBytesSaved() + " bytes of code");
+        }
+        return coroutineImpl;
+    }
+
+    private static final class SharedCoIterator {
+
+        final String           baseName;
+        final List<String>     coroutineNames = new ArrayList<String>();
+        final List<MethodNode> coroutines     = new ArrayList<MethodNode>();
+        String                 name;
+
+        SharedCoIterator(String baseName) {
+            this.baseName = baseName;
         }
     }
 
-    private static final Logger log = Logger.getLogger("pl.clareo.coroutines.ClassTransformer");
-    private static int          num;
+    private static final Logger log              = Logger.getLogger("pl.clareo.coroutines.ClassTransformer");
+    /*
+     * HotSpot does not compile methods bigger than that (HugeMethodLimit)
+     */
+    static final int            hugeMethodLimit  = Integer.getInteger("pl.clareo.coroutines.HugeMethodLimit", 8000);
+    /*
+     * generators bigger than that are not inlined into coroutines looping over
+     * them, HotSpot inlines hot methods up to that size (FreqInlineSize)
+     */
+    static final int            inlineLimit      = Integer.getInteger("pl.clareo.coroutines.InlineLimit", 325);
+    /*
+     * one CoIterator per coroutine if false, for comparison
+     */
+    static final boolean        shareCoIterators =
+                                                   !"false".equals(System.getProperty("pl.clareo.coroutines.ShareCoIterators"));
 }
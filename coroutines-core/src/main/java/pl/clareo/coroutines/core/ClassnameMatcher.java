@@ -0,0 +1,152 @@
+/*
+ * Copyright 2009-2010 Marcin Rzeźnicki
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package pl.clareo.coroutines.core;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Selects classes by patterns given in agent's arguments. Patterns are
+ * compiled into a trie over internal class names, which is walked character
+ * by character without allocating, so cost of selecting a class does not
+ * depend on number of patterns. Pattern is one of:
+ * <ul>
+ * <li><code>a.b.C</code> - class a.b.C and classes of package a.b.C and its
+ * subpackages</li>
+ * <li><code>a.b.C*</code> - classes whose names start with a.b.C</li>
+ * <li><code>!a.b.C</code>, <code>!a.b.C*</code> - exclusion of classes
+ * selected as above</li>
+ * </ul>
+ * If more than one pattern matches class, the longest one wins
+ */
+final class ClassnameMatcher {
+
+    private final int[]  children;
+    private final int[]  childrenCount;
+    private final int[]  exactPatterns;
+    private final char[] labels;
+    private final int[]  prefixPatterns;
+
+    /**
+     * @param patterns
+     *            patterns with dots or slashes as separators
+     */
+    ClassnameMatcher(String[] patterns) {
+        Node root = new Node();
+        int nodes = 1;
+        for (int i = 0; i < patterns.length; i++) {
+            String pattern = patterns[i];
+            int index = i;
+            if (pattern.startsWith("!")) {
+                pattern = pattern.substring(1);
+                index = EXCLUDED;
+            }
+            boolean prefix = pattern.endsWith("*");
+            if (prefix) {
+                pattern = pattern.substring(0, pattern.length() - 1);
+            }
+            Node node = root;
+            for (int j = 0; j < pattern.length(); j++) {
+                char c = pattern.charAt(j);
+                if (c == '.') {
+                    c = '/';
+                }
+                Node child = node.children.get(c);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(c, child);
+                    nodes++;
+                }
+                node = child;
+            }
+            if (prefix) {
+                node.prefixPattern = index;
+            } else {
+                node.exactPattern = index;
+            }
+        }
+        children = new int[nodes];
+        childrenCount = new int[nodes];
+        exactPatterns = new int[nodes];
+        labels = new char[nodes];
+        prefixPatterns = new int[nodes];
+        compile(root, 0, 1);
+    }
+
+    /**
+     * Lays out subtree so that children of each node occupy consecutive slots
+     * sorted by their labels
+     * 
+     * @return first free slot
+     */
+    private int compile(Node node, int slot, int free) {
+        exactPatterns[slot] = node.exactPattern;
+        prefixPatterns[slot] = node.prefixPattern;
+        children[slot] = free;
+        childrenCount[slot] = node.children.size();
+        int child = free;
+        free += node.children.size();
+        for (Map.Entry<Character, Node> entry : node.children.entrySet()) {
+            labels[child] = entry.getKey();
+            free = compile(entry.getValue(), child++, free);
+        }
+        return free;
+    }
+
+    /**
+     * @param className
+     *            internal name of class
+     * @return index of pattern selecting class, negative if there is no such
+     *         pattern or class is excluded
+     */
+    int match(String className) {
+        int match = NONE;
+        int node = 0;
+        int length = className.length();
+        for (int i = 0;; i++) {
+            if (prefixPatterns[node] != NONE) {
+                match = prefixPatterns[node];
+            }
+            if (i == length) {
+                if (exactPatterns[node] != NONE) {
+                    match = exactPatterns[node];
+                }
+                break;
+            }
+            char c = className.charAt(i);
+            if (c == '/' && exactPatterns[node] != NONE) {
+                match = exactPatterns[node];
+            }
+            int firstChild = children[node];
+            node = Arrays.binarySearch(labels, firstChild, firstChild + childrenCount[node], c);
+            if (node < 0) {
+                break;
+            }
+        }
+        return match;
+    }
+
+    private static final class Node {
+
+        final Map<Character, Node> children      = new TreeMap<Character, Node>();
+        int                        exactPattern  = NONE;
+        int                        prefixPattern = NONE;
+    }
+
+    private static final int EXCLUDED = -2;
+    private static final int NONE     = -1;
+}
@@ -16,15 +16,31 @@ limitations under the License.
 package pl.clareo.coroutines.core;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
+import pl.clareo.coroutines.core.FusedCoIterator.AccumulatorStage;
+import pl.clareo.coroutines.core.FusedCoIterator.CombiningSource;
+import pl.clareo.coroutines.core.FusedCoIterator.CoroutineSource;
+import pl.clareo.coroutines.core.FusedCoIterator.FilteringStage;
+import pl.clareo.coroutines.core.FusedCoIterator.FlatteningSource;
+import pl.clareo.coroutines.core.FusedCoIterator.MappingStage;
+import pl.clareo.coroutines.core.FusedCoIterator.Source;
+import pl.clareo.coroutines.core.FusedCoIterator.Stage;
+import pl.clareo.coroutines.core.FusedCoIterator.TruncatingStage;
+import pl.clareo.coroutines.user.Accumulator;
 import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.Combiner;
 import pl.clareo.coroutines.user.Controler;
 import pl.clareo.coroutines.user.CoroutineClosedException;
 import pl.clareo.coroutines.user.CoroutineExitException;
 import pl.clareo.coroutines.user.ExitCondition;
 import pl.clareo.coroutines.user.ExitOnYieldedEqualsTo;
+import pl.clareo.coroutines.user.Function;
+import pl.clareo.coroutines.user.LagPolicy;
+import pl.clareo.coroutines.user.Predicate;
 import pl.clareo.coroutines.user.StaticPattern;
+import pl.clareo.coroutines.user.TeeIterator;
 
 abstract class CoIteratorInternal<E, A> implements CoIterator<E, A> {
 
@@ -41,6 +57,7 @@ abstract class CoIteratorInternal<E, A> implements CoIterator<E, A> {
     @Override
     public void close() {
         final Frame frame = getFrame();
+        frame.clearBatched();
         if (frame.isCoroutineClosed()) {
             return;
         }
@@ -49,8 +66,11 @@ abstract class CoIteratorInternal<E, A> implements CoIterator<E, A> {
             call(frame, null);
         } catch (CoroutineExitException e) {
         } catch (NoSuchElementException e) {
+        } catch (CoroutineClosedException e) {
+            // coroutine closed before it was called for the first time
         } finally {
             frame.setState(Frame.CLOSED_STATE);
+            frame.release();
         }
     }
 
@@ -59,16 +79,108 @@ abstract class CoIteratorInternal<E, A> implements CoIterator<E, A> {
         return new CoIterable();
     }
 
+    @Override
+    public CoIterator<E, A> filter(Predicate<? super E> predicate) {
+        return fuse(new FilteringStage(predicate));
+    }
+
+    @Override
+    public <R> CoIterator<R, A> flatMap(Function<? super E, ? extends CoIterator<? extends R, ?>> function) {
+        return new FusedCoIterator<R, A>(new FlatteningSource(source(), function));
+    }
+
+    /*
+     * Overriden by FusedCoIterator which appends stage to its own chain instead
+     * of starting a new one
+     */
+    <R> CoIterator<R, A> fuse(Stage stage) {
+        return new FusedCoIterator<R, A>(source(), stage);
+    }
+
     protected abstract Frame getFrame();
 
+    @Override
+    public <R> CoIterator<R, A> map(Function<? super E, ? extends R> function) {
+        return fuse(new MappingStage(function));
+    }
+
+    @Override
+    public Iterable<E> memoize() {
+        return new MemoizedCoIterable<E>(this, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public Iterable<E> memoize(int inMemoryLimit) {
+        return new MemoizedCoIterable<E>(this, inMemoryLimit);
+    }
+
     @Override
     public E next() {
-        return call(getFrame(), null);
+        return resume(getFrame(), null);
+    }
+
+    /*
+     * values this coroutine batched are handed out before control it
+     * transferred is resumed
+     */
+    @SuppressWarnings("unchecked")
+    private E resume(Frame frame, A a) {
+        if (frame.hasBatched()) {
+            return (E) frame.nextBatched();
+        }
+        return trampoline(frame, a);
+    }
+
+    /*
+     * coroutine yielding in batches is resumed once values it batched are
+     * handed out; values it batched before it ended are handed out before its
+     * exception is thrown. Transfers are not followed here, so that coroutines
+     * control is transferred to are resumed alike
+     */
+    @SuppressWarnings("unchecked")
+    private E resumeOnce(Frame frame, A a) {
+        if (frame.hasBatched()) {
+            return (E) frame.nextBatched();
+        }
+        frame.throwBatchFailure();
+        try {
+            return call(frame, a);
+        } catch (RuntimeException e) {
+            if (!frame.hasBatched()) {
+                throw e;
+            }
+            frame.setBatchFailure(e);
+            return (E) frame.nextBatched();
+        }
+    }
+
+    @Override
+    public <R> CoIterator<R, A> scan(R initial, Accumulator<R, ? super E> accumulator) {
+        return fuse(new AccumulatorStage(initial, accumulator));
     }
 
     @Override
     public E send(A a) {
-        return call(getFrame(), a);
+        return resume(getFrame(), a);
+    }
+
+    Source source() {
+        return new CoroutineSource(this);
+    }
+
+    @Override
+    public CoIterator<E, A> takeWhile(Predicate<? super E> predicate) {
+        return fuse(new TruncatingStage(predicate));
+    }
+
+    @Override
+    public List<TeeIterator<E>> tee(int n) {
+        return tee(n, 1024, LagPolicy.FAIL_FAST);
+    }
+
+    @Override
+    public List<TeeIterator<E>> tee(int n, int bufferSize, LagPolicy policy) {
+        return new TeeBuffer<E>(this, n, bufferSize, policy).iterators();
     }
 
     @Override
@@ -89,6 +201,31 @@ abstract class CoIteratorInternal<E, A> implements CoIterator<E, A> {
         return new CountingCoIterable(count);
     }
 
+    /*
+     * coroutine transferring control suspends and its target is resumed here,
+     * so that coroutines passing control to each other do not grow the stack;
+     * the one which yields is resumed in place of this coroutine next time
+     */
+    @SuppressWarnings("unchecked")
+    private E trampoline(Frame frame, A a) {
+        CoIteratorInternal<?, Object> current = frame.getTransferredTo();
+        if (current == null) {
+            current = (CoIteratorInternal<?, Object>) this;
+        }
+        Object value = a;
+        while (true) {
+            Frame currentFrame = current.getFrame();
+            Object result = current.resumeOnce(currentFrame, value);
+            CoIteratorInternal<?, Object> target = currentFrame.takeTransferTarget();
+            if (target == null) {
+                frame.setTransferredTo(current == this ? null : current);
+                return (E) result;
+            }
+            value = currentFrame.takeTransferValue();
+            current = target;
+        }
+    }
+
     @Override
     public Iterable<E> with(Controler<E, A> controler) {
         return new ControlingCoIterable(controler);
@@ -99,6 +236,11 @@ abstract class CoIteratorInternal<E, A> implements CoIterator<E, A> {
         return new ControlingCoIterable(new StaticPattern<E, A>(toSend));
     }
 
+    @Override
+    public <F, R> CoIterator<R, A> zip(CoIterator<? extends F, ?> other, Combiner<? super E, ? super F, ? extends R> combiner) {
+        return new FusedCoIterator<R, A>(new CombiningSource(source(), other, combiner));
+    }
+
     private class CoIterable implements Iterable<E> {
 
         protected E       e;
@@ -15,6 +15,13 @@
  */
 package pl.clareo.coroutines.core;
 
+import static pl.clareo.coroutines.core.StringConstants.FRAME_NAME;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
@@ -22,6 +29,36 @@ import org.objectweb.asm.tree.*;
 
 final class CodeGenerationUtils implements Opcodes {
 
+    /**
+     * Boxes value of given type on top of the stack, void becomes null
+     */
+    static InsnList box(Type type) {
+        InsnList insn = new InsnList();
+        int typeSort = type.getSort();
+        switch (typeSort) {
+            case Type.BOOLEAN:
+            case Type.CHAR:
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.INT:
+                insn.add(box_int(typeSort));
+            break;
+            case Type.FLOAT:
+                insn.add(box_float(typeSort));
+            break;
+            case Type.LONG:
+                insn.add(box_long(typeSort));
+            break;
+            case Type.DOUBLE:
+                insn.add(box_double(typeSort));
+            break;
+            case Type.VOID:
+                insn.add(new InsnNode(ACONST_NULL));
+            break;
+        }
+        return insn;
+    }
+
     static InsnList box_double(int typeSort) {
         return box_double(-1, typeSort);
     }
@@ -104,6 +141,151 @@ final class CodeGenerationUtils implements Opcodes {
         return insn;
     }
 
+    /**
+     * Copy is made by hand, copies made by MethodNode.accept share labels with
+     * the original
+     */
+    @SuppressWarnings("unchecked")
+    static MethodNode copy(MethodNode method) {
+        MethodNode copy = new MethodNode(method.access, method.name, method.desc, method.signature, null);
+        Map<LabelNode, LabelNode> labels = new HashMap<LabelNode, LabelNode>();
+        Iterator<AbstractInsnNode> i = method.instructions.iterator();
+        while (i.hasNext()) {
+            AbstractInsnNode insn = i.next();
+            if (insn.getType() == AbstractInsnNode.LABEL) {
+                labels.put((LabelNode) insn, new LabelNode());
+            }
+        }
+        i = method.instructions.iterator();
+        while (i.hasNext()) {
+            copy.instructions.add(i.next().clone(labels));
+        }
+        for (TryCatchBlockNode tcb : (List<TryCatchBlockNode>) method.tryCatchBlocks) {
+            copy.tryCatchBlocks.add(new TryCatchBlockNode(labels.get(tcb.start), labels.get(tcb.end),
+                                                          labels.get(tcb.handler), tcb.type));
+        }
+        if (method.localVariables != null) {
+            for (LocalVariableNode local : (List<LocalVariableNode>) method.localVariables) {
+                copy.localVariables.add(new LocalVariableNode(local.name, local.desc, local.signature,
+                                                              labels.get(local.start), labels.get(local.end),
+                                                              local.index));
+            }
+        }
+        copy.maxLocals = method.maxLocals;
+        copy.maxStack = method.maxStack;
+        return copy;
+    }
+
+    /**
+     * @return size in bytes of code ASM writes for instructions, as long as
+     *         jumps are short and constant pool is small
+     */
+    static int getCodeSize(InsnList instructions) {
+        int size = 0;
+        for (AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            int opcode = insn.getOpcode();
+            switch (insn.getType()) {
+                case AbstractInsnNode.INSN:
+                    size += 1;
+                break;
+                case AbstractInsnNode.INT_INSN:
+                    size += opcode == SIPUSH ? 3 : 2;
+                break;
+                case AbstractInsnNode.VAR_INSN:
+                    int var = ((VarInsnNode) insn).var;
+                    size += var < 4 && opcode != RET ? 1 : var < 256 ? 2 : 4;
+                break;
+                case AbstractInsnNode.TYPE_INSN:
+                case AbstractInsnNode.FIELD_INSN:
+                case AbstractInsnNode.JUMP_INSN:
+                    size += 3;
+                break;
+                case AbstractInsnNode.METHOD_INSN:
+                    size += opcode == INVOKEINTERFACE ? 5 : 3;
+                break;
+                case AbstractInsnNode.LDC_INSN:
+                    Object cst = ((LdcInsnNode) insn).cst;
+                    size += cst instanceof Long || cst instanceof Double ? 3 : 2;
+                break;
+                case AbstractInsnNode.IINC_INSN:
+                    IincInsnNode iinc = (IincInsnNode) insn;
+                    size += iinc.var > 255 || iinc.incr > Byte.MAX_VALUE || iinc.incr < Byte.MIN_VALUE ? 6 : 3;
+                break;
+                case AbstractInsnNode.TABLESWITCH_INSN:
+                    size += 4 - (size & 3) + 12 + 4 * ((TableSwitchInsnNode) insn).labels.size();
+                break;
+                case AbstractInsnNode.LOOKUPSWITCH_INSN:
+                    size += 4 - (size & 3) + 8 + 8 * ((LookupSwitchInsnNode) insn).labels.size();
+                break;
+                case AbstractInsnNode.MULTIANEWARRAY_INSN:
+                    size += 4;
+                break;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Loads local from its column in frame kept in frame arena, primitives are
+     * not boxed there
+     */
+    static InsnList getcol(int frameIndex, int varIndex, int fromIndex, Type type) {
+        InsnList insn = new InsnList();
+        int typeSort = type.getSort();
+        if (typeSort == Type.VOID) {
+            insn.add(new InsnNode(ACONST_NULL));
+            insn.add(new VarInsnNode(ASTORE, varIndex));
+            return insn;
+        }
+        insn.add(new VarInsnNode(ALOAD, frameIndex));
+        insn.add(makeInt(fromIndex));
+        switch (typeSort) {
+            case Type.BOOLEAN:
+            case Type.CHAR:
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.INT:
+                insn.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "getInt", "(I)I"));
+                insn.add(new VarInsnNode(ISTORE, varIndex));
+            break;
+            case Type.FLOAT:
+                insn.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "getFloat", "(I)F"));
+                insn.add(new VarInsnNode(FSTORE, varIndex));
+            break;
+            case Type.LONG:
+                insn.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "getLong", "(I)J"));
+                insn.add(new VarInsnNode(LSTORE, varIndex));
+            break;
+            case Type.DOUBLE:
+                insn.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "getDouble", "(I)D"));
+                insn.add(new VarInsnNode(DSTORE, varIndex));
+            break;
+            case Type.ARRAY:
+            case Type.OBJECT:
+                insn.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "getObject", "(I)Ljava/lang/Object;"));
+                if (!type.equals(JAVA_LANG_OBJECT)) {
+                    insn.add(new TypeInsnNode(CHECKCAST, type.getInternalName()));
+                }
+                insn.add(new VarInsnNode(ASTORE, varIndex));
+            break;
+        }
+        return insn;
+    }
+
+    static InsnList getcols(int frameIndex, int startIndex, int fromIndex, Type... types) {
+        int varIndex = startIndex;
+        int i = 0;
+        InsnList insn = new InsnList();
+        while (i < types.length) {
+            Type type = types[i];
+            insn.add(getcol(frameIndex, varIndex, fromIndex, type));
+            varIndex += type.getSize();
+            fromIndex += type.getSize();
+            i++;
+        }
+        return insn;
+    }
+
     static InsnList getloc(int frameArrayIndex, int varIndex, int fromIndex, Type type) {
         InsnList insn = new InsnList();
         int typeSort = type.getSort();
@@ -197,6 +379,61 @@ final class CodeGenerationUtils implements Opcodes {
         mv.visitTypeInsn(CHECKCAST, asType.getInternalName());
     }
 
+    /**
+     * Saves local in its column in frame kept in frame arena
+     */
+    static InsnList savecol(int frameIndex, int varIndex, int toIndex, Type type) {
+        InsnList insn = new InsnList();
+        insn.add(new VarInsnNode(ALOAD, frameIndex));
+        insn.add(makeInt(toIndex));
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+            case Type.CHAR:
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.INT:
+                insn.add(new VarInsnNode(ILOAD, varIndex));
+                insn.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "setInt", "(II)V"));
+            break;
+            case Type.FLOAT:
+                insn.add(new VarInsnNode(FLOAD, varIndex));
+                insn.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "setFloat", "(IF)V"));
+            break;
+            case Type.LONG:
+                insn.add(new VarInsnNode(LLOAD, varIndex));
+                insn.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "setLong", "(IJ)V"));
+            break;
+            case Type.DOUBLE:
+                insn.add(new VarInsnNode(DLOAD, varIndex));
+                insn.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "setDouble", "(ID)V"));
+            break;
+            case Type.ARRAY:
+            case Type.OBJECT:
+                insn.add(new VarInsnNode(ALOAD, varIndex));
+                insn.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "setObject", "(ILjava/lang/Object;)V"));
+            break;
+            case Type.VOID:
+                insn.add(new InsnNode(ACONST_NULL));
+                insn.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "setObject", "(ILjava/lang/Object;)V"));
+            break;
+        }
+        return insn;
+    }
+
+    static InsnList savecols(int frameIndex, int startIndex, int toIndex, Type... types) {
+        InsnList insn = new InsnList();
+        int varIndex = startIndex;
+        int i = 0;
+        while (i < types.length) {
+            Type type = types[i];
+            insn.add(savecol(frameIndex, varIndex, toIndex, type));
+            varIndex += type.getSize();
+            toIndex += type.getSize();
+            i++;
+        }
+        return insn;
+    }
+
     static InsnList saveloc(int frameArrayIndex, int varIndex, int toIndex, Type type) {
         InsnList insn = new InsnList();
         insn.add(new VarInsnNode(ALOAD, frameArrayIndex));
@@ -254,6 +491,43 @@ final class CodeGenerationUtils implements Opcodes {
         return insn;
     }
 
+    /**
+     * Unboxes value of given type from object on top of the stack, which is
+     * popped for void
+     */
+    static InsnList unbox(Type type) {
+        InsnList insn = new InsnList();
+        int typeSort = type.getSort();
+        switch (typeSort) {
+            case Type.BOOLEAN:
+            case Type.CHAR:
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.INT:
+                insn.add(unbox_int(typeSort));
+            break;
+            case Type.FLOAT:
+                insn.add(unbox_float(typeSort));
+            break;
+            case Type.LONG:
+                insn.add(unbox_long(typeSort));
+            break;
+            case Type.DOUBLE:
+                insn.add(unbox_double(typeSort));
+            break;
+            case Type.ARRAY:
+            case Type.OBJECT:
+                if (!type.equals(JAVA_LANG_OBJECT)) {
+                    insn.add(new TypeInsnNode(CHECKCAST, type.getInternalName()));
+                }
+            break;
+            case Type.VOID:
+                insn.add(new InsnNode(POP));
+            break;
+        }
+        return insn;
+    }
+
     static InsnList unbox_double(int typeSort) {
         return unbox_double(-1, typeSort);
     }
@@ -344,7 +618,7 @@ final class CodeGenerationUtils implements Opcodes {
         return insn;
     }
 
-    static Object[] EMPTY_LOCALS     = null;
-    static Object[] EMPTY_STACK      = null;
-    static Type     JAVA_LANG_OBJECT = Type.getType(Object.class);
+    static final Object[] EMPTY_LOCALS     = null;
+    static final Object[] EMPTY_STACK      = null;
+    static final Type     JAVA_LANG_OBJECT = Type.getType(Object.class);
 }
@@ -16,13 +16,35 @@ limitations under the License.
 package pl.clareo.coroutines.core;
 
 import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class CoroutineAgent {
 
-    public static void premain(String args, Instrumentation instrumentationInstance) {
-        if (args.equals("runtime") || args.isEmpty()) {
-            instrumentationInstance.addTransformer(new CoroutineInstrumentator());
+    /**
+     * Entry point of agent attached to running JVM. Besides instrumenting
+     * classes loaded from now on, already loaded classes accepted by agent's
+     * arguments are retransformed
+     */
+    public static void agentmain(String args, Instrumentation instrumentationInstance) {
+        CoroutineInstrumentator instrumentator = createInstrumentator(args);
+        if (!instrumentationInstance.isRetransformClassesSupported()) {
+            logger.warning("Retransformation is not supported, coroutines of classes loaded before agent was"
+                           + " attached will not work");
+            instrumentationInstance.addTransformer(instrumentator);
+            return;
+        }
+        instrumentationInstance.addTransformer(instrumentator, true);
+        retransformLoadedClasses(instrumentationInstance, instrumentator);
+    }
+
+    private static CoroutineInstrumentator createInstrumentator(String args) {
+        if (args == null || args.equals("runtime") || args.isEmpty()) {
+            return new CoroutineInstrumentator();
         } else if (args.startsWith("runtime-")) {
             String[] options = args.substring(8).split(",");
             boolean debug = false;
@@ -30,9 +52,15 @@ public class CoroutineAgent {
             boolean verify = false;
             boolean outputBin = false;
             boolean overrideFrames = false;
+            boolean lazy = false;
+            boolean fuseLoops = false;
             for (String option : options) {
                 if (option.equals("debug")) {
                     debug = true;
+                } else if (option.equals("fuse")) {
+                    fuseLoops = true;
+                } else if (option.equals("lazy")) {
+                    lazy = true;
                 } else if (option.equals("overrideframes")) {
                     overrideFrames = true;
                 } else if (option.equals("print")) {
@@ -43,13 +71,12 @@ public class CoroutineAgent {
                     verify = true;
                 }
             }
-            instrumentationInstance.addTransformer(new CoroutineInstrumentator(debug, print, verify, outputBin,
-                                                                               overrideFrames));
+            return new CoroutineInstrumentator(debug, print, verify, outputBin, overrideFrames, lazy, fuseLoops);
         } else {
             String[] coroutineClasses = args.split(";");
             String lastString = coroutineClasses[coroutineClasses.length - 1];
             if (!lastString.startsWith("-")) {
-                instrumentationInstance.addTransformer(new CoroutineInstrumentator(coroutineClasses));
+                return new CoroutineInstrumentator(coroutineClasses);
             } else {
                 String[] options = lastString.substring(1).split(",");
                 boolean hasDebugOption = false;
@@ -57,9 +84,15 @@ public class CoroutineAgent {
                 boolean hasVerifyOption = false;
                 boolean hasOutputBinaryOption = false;
                 boolean overrideFrames = false;
+                boolean lazy = false;
+                boolean fuseLoops = false;
                 for (String option : options) {
                     if (option.equals("debug")) {
                         hasDebugOption = true;
+                    } else if (option.equals("fuse")) {
+                        fuseLoops = true;
+                    } else if (option.equals("lazy")) {
+                        lazy = true;
                     } else if (option.equals("overrideframes")) {
                         overrideFrames = true;
                     } else if (option.equals("outputbin")) {
@@ -71,11 +104,65 @@ public class CoroutineAgent {
                     }
                 }
                 coroutineClasses = Arrays.copyOfRange(coroutineClasses, 0, coroutineClasses.length - 1);
-                instrumentationInstance.addTransformer(new CoroutineInstrumentator(coroutineClasses, hasDebugOption,
-                                                                                   hasPrintOption, hasVerifyOption,
-                                                                                   hasOutputBinaryOption,
-                                                                                   overrideFrames));
+                return new CoroutineInstrumentator(coroutineClasses, hasDebugOption, hasPrintOption,
+                                                   hasVerifyOption, hasOutputBinaryOption, overrideFrames, lazy,
+                                                   fuseLoops);
+            }
+        }
+    }
+
+    public static void premain(String args, Instrumentation instrumentationInstance) {
+        instrumentationInstance.addTransformer(createInstrumentator(args));
+    }
+
+    /*
+     * whole batch fails if any of its classes fails, then its classes are
+     * retransformed one by one so that the rest still get coroutines
+     */
+    private static Throwable retransform(Instrumentation instrumentationInstance, Class<?>... classes) {
+        try {
+            instrumentationInstance.retransformClasses(classes);
+            return null;
+        } catch (UnmodifiableClassException e) {
+            return e;
+        } catch (RuntimeException e) {
+            return e;
+        } catch (LinkageError e) {
+            return e;
+        }
+    }
+
+    /**
+     * Retransforms loaded classes which may contain coroutines in batches of
+     * {@link #RETRANSFORMATION_BATCH_SIZE}, one retransformation per class would
+     * stop the world as many times
+     */
+    static void retransformLoadedClasses(Instrumentation instrumentationInstance, CoroutineInstrumentator instrumentator) {
+        List<Class<?>> candidates = new ArrayList<Class<?>>();
+        for (Class<?> loadedClass : instrumentationInstance.getAllLoadedClasses()) {
+            if (instrumentationInstance.isModifiableClass(loadedClass)
+                && instrumentator.isRetransformationCandidate(loadedClass)) {
+                candidates.add(loadedClass);
+            }
+        }
+        int nCandidates = candidates.size();
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Retransforming " + nCandidates + " loaded classes");
+        }
+        for (int from = 0; from < nCandidates; from += RETRANSFORMATION_BATCH_SIZE) {
+            List<Class<?>> batch = candidates.subList(from, Math.min(from + RETRANSFORMATION_BATCH_SIZE, nCandidates));
+            if (retransform(instrumentationInstance, batch.toArray(new Class<?>[batch.size()])) == null) {
+                continue;
+            }
+            for (Class<?> loadedClass : batch) {
+                Throwable failure = retransform(instrumentationInstance, loadedClass);
+                if (failure != null) {
+                    logger.log(Level.WARNING, "Unable to retransform " + loadedClass.getName(), failure);
+                }
             }
         }
     }
+
+    private static final int    RETRANSFORMATION_BATCH_SIZE = 64;
+    private static final Logger logger                      = Logger.getLogger("pl.clareo.coroutines.CoroutineAgent");
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2009-2010 Marcin Rzeźnicki
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package pl.clareo.coroutines.core;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Instruments coroutines ahead of time, the same way {@link CoroutineAgent}
+ * does when classes are loaded. Classes produced this way (together with
+ * generated CoIterators) run without agent
+ */
+public final class CoroutineCompiler {
+
+    private final ClassLoader classpath;
+    private final boolean     generateDebugCode;
+    private final boolean     overrideFrames;
+    private final boolean     runVerification;
+
+    public CoroutineCompiler() {
+        this(false, false, false);
+    }
+
+    public CoroutineCompiler(boolean generateDebugCode, boolean verify, boolean overrideFrames) {
+        this(CoroutineCompiler.class.getClassLoader(), generateDebugCode, verify, overrideFrames);
+    }
+
+    /**
+     * @param classpath
+     *            loader whose resources are class files of compiled classes
+     *            and their dependencies; they are read (never loaded) when
+     *            instrumentation needs to know type hierarchy
+     */
+    public CoroutineCompiler(ClassLoader classpath, boolean generateDebugCode, boolean verify, boolean overrideFrames) {
+        this.classpath = classpath;
+        this.generateDebugCode = generateDebugCode;
+        this.runVerification = verify;
+        this.overrideFrames = overrideFrames;
+    }
+
+    /**
+     * @param classfile
+     *            class file contents
+     * @return instrumented class followed by CoIterators generated for its
+     *         coroutines, all keyed by internal names; empty map if class
+     *         does not have coroutines
+     * @throws CoroutineGenerationException
+     *             if class could not be instrumented
+     */
+    public Map<String, byte[]> compile(byte[] classfile) {
+        if (!CoroutineInstrumentator.mayContainCoroutines(classfile)) {
+            return Collections.emptyMap();
+        }
+        String className = new ClassReader(classfile).getClassName();
+        Map<String, byte[]> generatedClasses = new LinkedHashMap<String, byte[]>();
+        byte[] instrumentedClass;
+        try {
+            instrumentedClass =
+                                CoroutineInstrumentator.instrument(TypeHierarchy.forLoader(classpath), className, null,
+                                                                   classfile, generatedClasses, generateDebugCode,
+                                                                   false, runVerification, overrideFrames, false, false);
+        } catch (CoroutineGenerationException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new CoroutineGenerationException("Instrumentation of " + className + " failed", e);
+        }
+        if (instrumentedClass == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+        result.put(className, instrumentedClass);
+        result.putAll(generatedClasses);
+        return result;
+    }
+}
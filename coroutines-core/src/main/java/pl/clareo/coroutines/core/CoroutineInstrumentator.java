@@ -15,18 +15,25 @@ limitations under the License.
  */
 package pl.clareo.coroutines.core;
 
+import static pl.clareo.coroutines.core.StringConstants.COROUTINE_DESCRIPTOR;
+
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
+import java.lang.reflect.Method;
 import java.security.ProtectionDomain;
-import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -70,6 +77,149 @@ final class CoroutineInstrumentator implements ClassFileTransformer {
         }
     }
 
+    private static Set<String> getMethodNames(Class<?> loadedClass) {
+        Set<String> names = new HashSet<String>();
+        for (Method method : loadedClass.getDeclaredMethods()) {
+            names.add(method.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Instruments coroutines found in class. Implementations of CoIterator
+     * generated on the way are put into <code>generatedClasses</code>
+     * 
+     * @param hierarchy
+     *            types visible to class' loader, it learns which of them
+     *            instrumentation depends on
+     * @param classBeingRedefined
+     *            loaded class if it is being redefined or retransformed, null
+     *            otherwise
+     * @return instrumented class or null if class has no coroutines
+     */
+    static byte[] instrument(final TypeHierarchy hierarchy, String className, Class<?> classBeingRedefined, byte[] classfileBuffer, Map<String, byte[]> generatedClasses, boolean debug, boolean print, boolean verify, boolean asmComputeFrames, boolean lazy, boolean fuseLoops) {
+        boolean log = logger.isLoggable(Level.FINEST);
+        if (log) {
+            logger.finest(className + ": Analyzing");
+        }
+        ClassReader asmClassReader = new ClassReader(classfileBuffer);
+        ClassNode cn = new ClassNode();
+        asmClassReader.accept(cn, debug ? 0 : ClassReader.SKIP_DEBUG);
+        ClassAnalyzer analyzer = new ClassAnalyzer(cn);
+        analyzer.analyze();
+        List<MethodNode> coroutineMethodsInCurrentClass = analyzer.getCoroutineMethods();
+        if (coroutineMethodsInCurrentClass.isEmpty()) {
+            return null;
+        }
+        if (log) {
+            logger.finest(className + ": Instrumenting coroutines "
+                          + methodNodeListToString(coroutineMethodsInCurrentClass));
+        }
+        hierarchy.addType(cn);
+        // coroutines resumed in place of redefined class need frames computed
+        boolean computeFrames = asmComputeFrames || classBeingRedefined != null;
+        ClassWriter asmClassWriter =
+                                     new ClassWriter((computeFrames ? ClassWriter.COMPUTE_FRAMES : 0)
+                                                     | ClassWriter.COMPUTE_MAXS) {
+
+                                         @Override
+                                         protected String getCommonSuperClass(String type1, String type2) {
+                                             return hierarchy.getCommonSuperClass(type1, type2);
+                                         }
+                                     };
+        ClassVisitor cv = asmClassWriter;
+        if (print) {
+            try {
+                cv = createTracer(className, cv);
+            } catch (FileNotFoundException e) {
+                throw new CoroutineGenerationException("Unable to write trace file ", e);
+            }
+        }
+        Set<String> loadedMethods = classBeingRedefined == null ? null : getMethodNames(classBeingRedefined);
+        ClassTransformer transformer =
+                                       new ClassTransformer(cn, coroutineMethodsInCurrentClass,
+                                                            analyzer.getSuspendableMethods(), hierarchy,
+                                                            loadedMethods, debug, lazy, fuseLoops);
+        transformer.transform();
+        cn.accept(cv);
+        byte[] instrumentedClassContents = asmClassWriter.toByteArray();
+        if (verify) {
+            verifyClass(className, new ClassReader(instrumentedClassContents), print);
+        }
+        generatedClasses.putAll(transformer.getGeneratedClasses());
+        return instrumentedClassContents;
+    }
+
+    private static boolean isSystemClass(String className) {
+        return className.startsWith("java/") || className.startsWith("javax/") || className.startsWith("sun/");
+    }
+
+    /**
+     * Scans constant pool for {@link StringConstants#COROUTINE_DESCRIPTOR}.
+     * Class which does not refer to it cannot have coroutine methods, so there
+     * is no need to build its tree. Works on raw bytes, before any ASM
+     * structures are created. Errs on the safe side - unknown constant pool
+     * entries make the class a candidate
+     */
+    public static boolean mayContainCoroutines(byte[] b) {
+        if (b.length < 10) {
+            return true;
+        }
+        int count = ((b[8] & 0xFF) << 8) | (b[9] & 0xFF);
+        int index = 10;
+        int descriptorLength = coroutineDescriptor.length;
+        try {
+            for (int i = 1; i < count; i++) {
+                switch (b[index]) {
+                case 1: // Utf8
+                    int length = ((b[index + 1] & 0xFF) << 8) | (b[index + 2] & 0xFF);
+                    index += 3;
+                    if (length == descriptorLength) {
+                        int j = 0;
+                        while (j < length && b[index + j] == coroutineDescriptor[j]) {
+                            j++;
+                        }
+                        if (j == length) {
+                            return true;
+                        }
+                    }
+                    index += length;
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    index += 9;
+                    i++;
+                    break;
+                case 7: // Class
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    index += 3;
+                    break;
+                case 15: // MethodHandle
+                    index += 4;
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    index += 5;
+                    break;
+                default:
+                    return true;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return true;
+        }
+        return false;
+    }
+
     public static String methodNodeListToString(List<MethodNode> mns) {
         if (mns.isEmpty()) {
             return "";
@@ -86,6 +236,36 @@ final class CoroutineInstrumentator implements ClassFileTransformer {
         return sb.toString();
     }
 
+    /**
+     * @return class file as found by loader, null if it cannot be read
+     */
+    private static byte[] readClassFile(ClassLoader loader, String className) {
+        InputStream in =
+                         loader == null ? ClassLoader.getSystemResourceAsStream(className + ".class")
+                                        : loader.getResourceAsStream(className + ".class");
+        if (in == null) {
+            return null;
+        }
+        try {
+            try {
+                return new ClassReader(in).b;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static byte[] toAscii(String s) {
+        int length = s.length();
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; i++) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+
     public static void verifyClass(String className, ClassReader classReader, boolean dump) throws CoroutineGenerationException {
         try {
             String filename = className + ".ver";
@@ -101,45 +281,56 @@ final class CoroutineInstrumentator implements ClassFileTransformer {
         }
     }
 
-    private String[]  coroutineEnabledClassnames;
-    private boolean[] debugMode;
-    private boolean   detectCoroutineClasses;
-    private boolean   generateBinaryOutput;
-    private boolean   generateDebugCode;
-    private boolean[] outputBinMode;
-    private boolean   overrideFrames;
-    private boolean[] overrideFramesMode;
-    private boolean   printCode;
-    private boolean[] printMode;
-    private boolean   runVerification;
-    private boolean[] verifyMode;
+    private InstrumentationCache cache;
+    private ClassnameMatcher     coroutineEnabledClassnames;
+    private boolean[]            debugMode;
+    private boolean              detectCoroutineClasses;
+    private boolean              fuseLoops;
+    private boolean[]            fuseLoopsMode;
+    private boolean              generateBinaryOutput;
+    private boolean              generateDebugCode;
+    private boolean              lazy;
+    private boolean[]            lazyMode;
+    private boolean[]            noCacheMode;
+    private boolean[]            outputBinMode;
+    private boolean              overrideFrames;
+    private boolean[]            overrideFramesMode;
+    private boolean              printCode;
+    private boolean[]            printMode;
+    private boolean              runVerification;
+    private boolean[]            verifyMode;
 
     CoroutineInstrumentator() {
-        this(false, false, false, false, false);
+        this(false, false, false, false, false, false, false);
     }
 
-    CoroutineInstrumentator(boolean generateDebugCode, boolean printCode, boolean verify, boolean outputBin, boolean overrideFrames) {
+    CoroutineInstrumentator(boolean generateDebugCode, boolean printCode, boolean verify, boolean outputBin, boolean overrideFrames, boolean lazy, boolean fuseLoops) {
         detectCoroutineClasses = true;
         this.generateDebugCode = generateDebugCode;
         this.printCode = printCode;
         this.runVerification = verify;
         this.generateBinaryOutput = outputBin;
         this.overrideFrames = overrideFrames;
+        this.lazy = lazy;
+        this.fuseLoops = fuseLoops;
+        this.cache = InstrumentationCache.open();
     }
 
     CoroutineInstrumentator(String[] coroutineEnabledClassnames) {
-        this(coroutineEnabledClassnames, false, false, false, false, false);
+        this(coroutineEnabledClassnames, false, false, false, false, false, false, false);
     }
 
-    CoroutineInstrumentator(String[] coroutineEnabledClassnames, boolean generateDebugCode, boolean printCode, boolean verify, boolean outputBin, boolean overrideFrames) {
+    CoroutineInstrumentator(String[] coroutineEnabledClassnames, boolean generateDebugCode, boolean printCode, boolean verify, boolean outputBin, boolean overrideFrames, boolean lazy, boolean fuseLoops) {
         int classesLength = coroutineEnabledClassnames.length;
-        Arrays.sort(coroutineEnabledClassnames);
-        this.coroutineEnabledClassnames = coroutineEnabledClassnames;
         this.debugMode = new boolean[classesLength];
         this.printMode = new boolean[classesLength];
         this.verifyMode = new boolean[classesLength];
         this.outputBinMode = new boolean[classesLength];
         this.overrideFramesMode = new boolean[classesLength];
+        this.lazyMode = new boolean[classesLength];
+        this.fuseLoopsMode = new boolean[classesLength];
+        this.noCacheMode = new boolean[classesLength];
+        this.cache = InstrumentationCache.open();
         if (generateDebugCode) {
             for (int i = 0; i < classesLength; i++) {
                 debugMode[i] = true;
@@ -165,6 +356,16 @@ final class CoroutineInstrumentator implements ClassFileTransformer {
                 overrideFramesMode[i] = true;
             }
         }
+        if (lazy) {
+            for (int i = 0; i < classesLength; i++) {
+                lazyMode[i] = true;
+            }
+        }
+        if (fuseLoops) {
+            for (int i = 0; i < classesLength; i++) {
+                fuseLoopsMode[i] = true;
+            }
+        }
         for (int i = 0; i < classesLength; i++) {
             String classname = coroutineEnabledClassnames[i];
             int indexOfOptionSeparator = classname.lastIndexOf('-');
@@ -174,6 +375,14 @@ final class CoroutineInstrumentator implements ClassFileTransformer {
                 for (String option : options) {
                     if (option.equals("debug")) {
                         debugMode[i] = true;
+                    } else if (option.equals("fuse")) {
+                        fuseLoopsMode[i] = true;
+                    } else if (option.equals("lazy")) {
+                        lazyMode[i] = true;
+                    } else if (option.equals("nocache")) {
+                        noCacheMode[i] = true;
+                    } else if (option.equals("nodebug")) {
+                        debugMode[i] = false;
                     } else if (option.equals("overrideframes")) {
                         overrideFramesMode[i] = true;
                     } else if (option.equals("print")) {
@@ -185,81 +394,140 @@ final class CoroutineInstrumentator implements ClassFileTransformer {
                     }
                 }
             }
-            this.coroutineEnabledClassnames[i] = classname.replace('.', '/');
+            coroutineEnabledClassnames[i] = classname;
+        }
+        this.coroutineEnabledClassnames = new ClassnameMatcher(coroutineEnabledClassnames);
+    }
+
+    private void defineGeneratedClasses(ClassLoader loader, Map<String, byte[]> generatedClasses, boolean outputBin, boolean lazy) {
+        for (Map.Entry<String, byte[]> generatedClass : generatedClasses.entrySet()) {
+            String generatedClassName = generatedClass.getKey();
+            byte[] generatedClassContents = generatedClass.getValue();
+            boolean defined =
+                              lazy && LazyCoIterators.register(loader, generatedClassName, generatedClassContents)
+                                  || ClassDefiner.define(loader, generatedClassName, generatedClassContents);
+            if (!defined && !classgenPathWarned) {
+                classgenPathWarned = true;
+                logger.warning("Generated classes cannot be defined in memory, they will be written to "
+                               + classgenPath + " which must be on the classpath");
+            }
+            if (!defined || outputBin) {
+                try {
+                    dumpClass(generatedClassName, generatedClassContents);
+                } catch (IOException e) {
+                    throw new CoroutineGenerationException("Unable to write class " + generatedClassName, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return index of options applying to class, negative if class is not
+     *         coroutine enabled
+     */
+    private int getClassnameIndex(String className) {
+        return coroutineEnabledClassnames.match(className);
+    }
+
+    /**
+     * Tells whether class loaded before this transformer was registered has to
+     * be retransformed. Class file is read from class' loader and scanned as
+     * in {@link #mayContainCoroutines(byte[])}; classes whose class files
+     * cannot be found are candidates
+     */
+    boolean isRetransformationCandidate(Class<?> loadedClass) {
+        ClassLoader loader = loadedClass.getClassLoader();
+        if (loader == null || loadedClass.isArray() || loadedClass.isPrimitive()) {
+            return false;
         }
+        String className = loadedClass.getName().replace('.', '/');
+        if (isSystemClass(className) || !detectCoroutineClasses && getClassnameIndex(className) < 0) {
+            return false;
+        }
+        byte[] classFile = readClassFile(loader, className);
+        return classFile == null || mayContainCoroutines(classFile);
     }
 
     @Override
     public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
-        if (classBeingRedefined != null) {
-            return null;
-        }
-        if (className.startsWith("java/") || className.startsWith("javax/") || className.startsWith("sun/")) {
+        if (isSystemClass(className)) {
             return null;
         }
-        List<MethodNode> coroutineMethodsInCurrentClass;
         boolean debug = generateDebugCode;
         boolean print = printCode;
         boolean verify = runVerification;
         boolean outputBin = generateBinaryOutput;
         boolean asmComputeFrames = overrideFrames;
+        boolean lazyCoIterators = lazy;
+        boolean fuse = fuseLoops;
+        boolean cached = cache != null;
         if (!detectCoroutineClasses) {
-            int classnameIndex = Arrays.binarySearch(coroutineEnabledClassnames, className);
+            int classnameIndex = getClassnameIndex(className);
             if (classnameIndex < 0) {
-                // search package
-                String packageName = className;
-                int indexOfSlash;
-                while ((indexOfSlash = packageName.lastIndexOf('/')) != -1) {
-                    packageName = packageName.substring(0, indexOfSlash);
-                    classnameIndex = Arrays.binarySearch(coroutineEnabledClassnames, packageName);
-                    if (classnameIndex >= 0) {
-                        break;
-                    }
-                }
-                if (classnameIndex < 0)
-                    return null;
+                return null;
             }
             debug = debugMode[classnameIndex];
             print = printMode[classnameIndex];
             verify = verifyMode[classnameIndex];
             outputBin = outputBinMode[classnameIndex];
             asmComputeFrames = overrideFramesMode[classnameIndex];
+            lazyCoIterators = lazyMode[classnameIndex];
+            fuse = fuseLoopsMode[classnameIndex];
+            cached &= !noCacheMode[classnameIndex];
         }
-        boolean log = logger.isLoggable(Level.FINEST);
-        if (log) {
-            logger.finest(className + ": Analyzing");
-        }
-        ClassReader asmClassReader = new ClassReader(classfileBuffer);
-        ClassNode cn = new ClassNode();
-        asmClassReader.accept(cn, debug ? 0 : ClassReader.SKIP_DEBUG);
-        ClassAnalyzer analyzer = new ClassAnalyzer(cn);
-        analyzer.analyze();
-        coroutineMethodsInCurrentClass = analyzer.getCoroutineMethods();
-        if (coroutineMethodsInCurrentClass.isEmpty()) {
+        if (classBeingRedefined == null && !mayContainCoroutines(classfileBuffer)) {
             return null;
         }
-        if (log) {
-            logger.finest(className + ": Instrumenting coroutines "
-                          + methodNodeListToString(coroutineMethodsInCurrentClass));
-        }
-        ClassWriter asmClassWriter =
-                                     new ClassWriter((asmComputeFrames ? ClassWriter.COMPUTE_FRAMES : 0)
-                                                     | ClassWriter.COMPUTE_MAXS);
-        ClassVisitor cv = asmClassWriter;
+        Map<String, byte[]> generatedClasses = new LinkedHashMap<String, byte[]>();
         byte[] instrumentedClassContents;
         try {
-            if (print) {
-                try {
-                    cv = createTracer(className, cv);
-                } catch (FileNotFoundException e) {
-                    throw new CoroutineGenerationException("Unable to write trace file ", e);
+            String cacheKey = null;
+            TypeHierarchy hierarchy = TypeHierarchy.forLoader(loader);
+            /*
+             * what redefined class becomes depends on how it was loaded, cache
+             * only classes being loaded
+             */
+            if (cached && classBeingRedefined == null) {
+                cacheKey = cache.key(classfileBuffer, debug, verify, asmComputeFrames, lazyCoIterators, fuse);
+                Map<String, byte[]> cachedClasses = cache.get(cacheKey, TypeHierarchy.forLoader(loader));
+                if (cachedClasses != null) {
+                    instrumentedClassContents = cachedClasses.remove(className);
+                    if (instrumentedClassContents != null) {
+                        if (logger.isLoggable(Level.FINEST)) {
+                            logger.finest(className + ": Instrumented class found in cache");
+                        }
+                        defineGeneratedClasses(loader, cachedClasses, outputBin, lazyCoIterators);
+                        return instrumentedClassContents;
+                    }
                 }
             }
-            new ClassTransformer(cn, coroutineMethodsInCurrentClass, debug).transform();
-            cn.accept(cv);
-            instrumentedClassContents = asmClassWriter.toByteArray();
-            if (verify) {
-                verifyClass(className, new ClassReader(instrumentedClassContents), print);
+            instrumentedClassContents =
+                                        instrument(hierarchy, className, classBeingRedefined, classfileBuffer,
+                                                   generatedClasses, debug, print, verify, asmComputeFrames,
+                                                   lazyCoIterators, fuse);
+            if (instrumentedClassContents == null && classBeingRedefined != null) {
+                /*
+                 * JVM reconstitutes class file of retransformed class without
+                 * invisible annotations, so @Coroutine is gone - original class
+                 * file is used if the loader still has it
+                 */
+                byte[] originalClassfile = readClassFile(loader, className);
+                if (originalClassfile != null && mayContainCoroutines(originalClassfile)) {
+                    instrumentedClassContents =
+                                                instrument(hierarchy, className, classBeingRedefined, originalClassfile,
+                                                           generatedClasses, debug, print, verify, asmComputeFrames,
+                                                           lazyCoIterators, fuse);
+                }
+            }
+            if (instrumentedClassContents == null) {
+                return null;
+            }
+            defineGeneratedClasses(loader, generatedClasses, outputBin, lazyCoIterators);
+            if (cacheKey != null) {
+                Map<String, byte[]> cachedClasses = new LinkedHashMap<String, byte[]>();
+                cachedClasses.put(className, instrumentedClassContents);
+                cachedClasses.putAll(generatedClasses);
+                cache.put(cacheKey, cachedClasses, hierarchy);
             }
             if (outputBin) {
                 dumpClass(className + "Instrumented", instrumentedClassContents);
@@ -282,7 +550,9 @@ final class CoroutineInstrumentator implements ClassFileTransformer {
         return instrumentedClassContents;
     }
 
-    private static final String classgenPath = System.getProperty("pl.clareo.coroutines.ClassgenPath", ".");
-    private static final Logger logger       = Logger.getLogger("pl.clareo.coroutines.CoroutineInstrumentator");
-    private static final String printPath    = System.getProperty("pl.clareo.coroutines.PrintPath", ".");
+    private static final String     classgenPath        = System.getProperty("pl.clareo.coroutines.ClassgenPath", ".");
+    private static final byte[]     coroutineDescriptor = toAscii(COROUTINE_DESCRIPTOR);
+    private static final Logger     logger              = Logger.getLogger("pl.clareo.coroutines.CoroutineInstrumentator");
+    private static final String     printPath           = System.getProperty("pl.clareo.coroutines.PrintPath", ".");
+    private static volatile boolean classgenPathWarned;
 }
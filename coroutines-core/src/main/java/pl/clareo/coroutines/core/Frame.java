@@ -15,19 +15,72 @@ limitations under the License.
  */
 package pl.clareo.coroutines.core;
 
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.CoroutineExitException;
+
 public final class Frame {
 
-    private boolean        coroutineClosed;
-    private int            lineOfCode;
-    private Object[]       operands;
-    private int            state;
-    private final String[] variableNames;
-    private final Object[] variables;
+    /**
+     * Called first by coroutine resumed in place (see
+     * {@link ReflectiveCoroutine}), other calls of its method create new
+     * coroutine
+     * 
+     * @return frame of coroutine being resumed, null if method is called to
+     *         create coroutine
+     */
+    public static Frame takeResumedInPlace() {
+        Frame frame = resumedInPlace.get();
+        if (frame != null) {
+            resumedInPlace.set(null);
+        }
+        return frame;
+    }
+
+    private final FrameArena              arena;
+    private final int                     arenaId;
+    private Object[]                      batch;
+    private RuntimeException              batchFailure;
+    private int                           batchIndex;
+    private int                           batchSize;
+    private boolean                       coroutineClosed;
+    private Object                        inPlaceValue;
+    private int                           lineOfCode;
+    private Object[]                      operands;
+    private final long[][]                primitives;
+    private final Object[][]              references;
+    private final int                     row;
+    private int                           state;
+    private CoIteratorInternal<?, Object> transferredTo;
+    private CoIteratorInternal<?, Object> transferTarget;
+    private Object                        transferValue;
+    private final String[]                variableNames;
+    private final Object[]                variables;
 
     public Frame(Frame frame) {
         this.variables = frame.variables.clone();
         this.operands = frame.operands.clone();
-        this.variableNames = frame.variableNames.clone();
+        // names are not known unless debugged, shared if they are
+        this.variableNames = frame.variableNames;
+        this.arena = null;
+        this.arenaId = -1;
+        this.primitives = null;
+        this.references = null;
+        this.row = 0;
+    }
+
+    /**
+     * Frame of coroutine kept in arena, its locals live in row of arena
+     * columns instead of its own array
+     */
+    Frame(FrameArena arena, int arenaId, Object[][] references, long[][] primitives, int row) {
+        this.variables = null;
+        this.operands = new Object[0];
+        this.variableNames = null;
+        this.arena = arena;
+        this.arenaId = arenaId;
+        this.primitives = primitives;
+        this.references = references;
+        this.row = row;
     }
 
     public Frame(int nMaxVariables) {
@@ -38,16 +91,78 @@ public final class Frame {
         this.variables = new Object[maxVariables];
         this.operands = new Object[0];
         this.variableNames = variableNames;
+        this.arena = null;
+        this.arenaId = -1;
+        this.primitives = null;
+        this.references = null;
+        this.row = 0;
+    }
+
+    /**
+     * Called by coroutine yielding in batches instead of suspending
+     * 
+     * @return true if batch is full and coroutine has to suspend
+     */
+    public boolean addBatched(Object value, int capacity) {
+        if (batch == null) {
+            batch = new Object[capacity];
+        } else if (batchIndex == batchSize) {
+            batchIndex = 0;
+            batchSize = 0;
+        }
+        batch[batchSize++] = value;
+        return batchSize == batch.length;
+    }
+
+    /**
+     * Check made when coroutine resumes, called instead of inlined check by
+     * coroutines compacted to be small enough for JIT
+     */
+    public void checkCoroutineExit() {
+        if (coroutineClosed) {
+            throw new CoroutineExitException();
+        }
+    }
+
+    /*
+     * values left when coroutine is closed are dropped
+     */
+    void clearBatched() {
+        batchIndex = batchSize;
+        batchFailure = null;
+    }
+
+    public double getDouble(int slot) {
+        return Double.longBitsToDouble(primitives[slot][row]);
+    }
+
+    public float getFloat(int slot) {
+        return Float.intBitsToFloat((int) primitives[slot][row]);
+    }
+
+    public int getInt(int slot) {
+        return (int) primitives[slot][row];
     }
 
     public int getLineOfCode() {
         return lineOfCode;
     }
 
+    /**
+     * @return locals array, or null if frame is kept in arena
+     */
     public Object[] getLocals() {
         return variables;
     }
 
+    public long getLong(int slot) {
+        return primitives[slot][row];
+    }
+
+    public Object getObject(int slot) {
+        return references[slot][row];
+    }
+
     public Object[] getOperands() {
         return operands;
     }
@@ -57,13 +172,28 @@ public final class Frame {
     }
 
     public Object getThis() {
+        if (variables == null) {
+            return references[0][row];
+        }
         return variables[0];
     }
 
+    /**
+     * @return coroutine resumed in place of this one, since control was
+     *         transferred to it
+     */
+    CoIteratorInternal<?, Object> getTransferredTo() {
+        return transferredTo;
+    }
+
     public String[] getVariableNames() {
         return variableNames;
     }
 
+    boolean hasBatched() {
+        return batchIndex < batchSize;
+    }
+
     public boolean isCoroutineClosed() {
         return coroutineClosed;
     }
@@ -72,10 +202,69 @@ public final class Frame {
         coroutineClosed = true;
     }
 
+    public Object nextBatched() {
+        Object value = batch[batchIndex];
+        batch[batchIndex++] = null;
+        return value;
+    }
+
+    /**
+     * Row of closed coroutine is given back to arena
+     */
+    void release() {
+        if (arena != null) {
+            arena.release(arenaId, this);
+        }
+    }
+
+    /*
+     * next call to method of coroutine resumes it with input
+     */
+    void resumeInPlace(Object input) {
+        inPlaceValue = input;
+        resumedInPlace.set(this);
+    }
+
+    /**
+     * Exception which ended coroutine is thrown once values it batched before
+     * are handed out
+     */
+    void setBatchFailure(RuntimeException failure) {
+        batchFailure = failure;
+    }
+
+    public void setDouble(int slot, double value) {
+        primitives[slot][row] = Double.doubleToRawLongBits(value);
+    }
+
+    public void setFloat(int slot, float value) {
+        primitives[slot][row] = Float.floatToRawIntBits(value);
+    }
+
+    /**
+     * Called by coroutine resumed in place, which returns null from its method
+     * instead of value it yields
+     */
+    public void setInPlaceValue(Object value) {
+        inPlaceValue = value;
+    }
+
+    public void setInt(int slot, int value) {
+        primitives[slot][row] = value;
+    }
+
     public void setLineOfCode(int lineOfCode) {
         this.lineOfCode = lineOfCode;
     }
 
+    public void setLong(int slot, long value) {
+        primitives[slot][row] = value;
+    }
+
+    public void setObject(int slot, Object value) {
+        references[slot][row] = value;
+    }
+
     public void setOperands(Object[] stack) {
         operands = stack;
     }
@@ -84,11 +273,72 @@ public final class Frame {
         this.state = state;
     }
 
+    /**
+     * Called by coroutine transferring control to target, it suspends then
+     */
+    @SuppressWarnings("unchecked")
+    public void setTransfer(CoIterator<?, ?> target, Object value) {
+        if (!(target instanceof CoIteratorInternal)) {
+            throw new IllegalArgumentException("Control can be transferred only to coroutine");
+        }
+        transferTarget = (CoIteratorInternal<?, Object>) target;
+        transferValue = value;
+    }
+
+    void setTransferredTo(CoIteratorInternal<?, Object> transferredTo) {
+        this.transferredTo = transferredTo;
+    }
+
+    /**
+     * Called by coroutine resumed in place for its input, its yielded value is
+     * taken after it returns
+     */
+    public Object takeInPlaceValue() {
+        Object value = inPlaceValue;
+        inPlaceValue = null;
+        return value;
+    }
+
+    /**
+     * @return coroutine control was transferred to when this coroutine
+     *         suspended, or null if it yielded
+     */
+    CoIteratorInternal<?, Object> takeTransferTarget() {
+        CoIteratorInternal<?, Object> target = transferTarget;
+        transferTarget = null;
+        return target;
+    }
+
+    Object takeTransferValue() {
+        Object value = transferValue;
+        transferValue = null;
+        return value;
+    }
+
+    void throwBatchFailure() {
+        RuntimeException failure = batchFailure;
+        if (failure != null) {
+            batchFailure = null;
+            throw failure;
+        }
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder("\n[Frame:\nLocal variables:\n");
         int varIndex = 0;
-        if (variableNames == null) {
+        if (variables == null) {
+            for (int slot = 0; slot < references.length; slot++) {
+                Object reference = references[slot][row];
+                sb.append(slot).append(':').append('\t');
+                if (reference == null) {
+                    sb.append("null/").append(primitives[slot][row]);
+                } else {
+                    sb.append(reference.toString());
+                }
+                sb.append('\n');
+            }
+        } else if (variableNames == null) {
             for (Object variable : variables) {
                 sb.append(varIndex++).append(':').append('\t');
                 if (variable == null) {
@@ -128,5 +378,6 @@ public final class Frame {
         return sb.toString();
     }
 
-    public static final int CLOSED_STATE = -1;
+    public static final int                CLOSED_STATE   = -1;
+    private static final ThreadLocal<Frame> resumedInPlace = new ThreadLocal<Frame>();
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2009-2010 Marcin Rzeźnicki
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package pl.clareo.coroutines.core;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps frames of all instances of one arena coroutine in columns - one array
+ * of references and one array of unboxed primitives per local of coroutine -
+ * indexed by row of coroutine instance. Columns are split into chunks of 256
+ * rows, which are never reallocated. Row of coroutine is
+ * given back to arena when coroutine is closed or its frame is garbage
+ * collected. Public, as stubs in user classes call it
+ */
+public final class FrameArena {
+
+    /*
+     * arena of redefined coroutine having more locals replaces old one, old
+     * frames keep their arena
+     */
+    private static synchronized FrameArena newArena(String coroutineName, int slots) {
+        FrameArena arena = arenas.get(coroutineName);
+        if (arena == null || arena.slots < slots) {
+            arena = new FrameArena(slots);
+            arenas.put(coroutineName, arena);
+        }
+        return arena;
+    }
+
+    public static Frame newFrame(String coroutineName, int slots) {
+        FrameArena arena = arenas.get(coroutineName);
+        if (arena == null || arena.slots < slots) {
+            arena = newArena(coroutineName, slots);
+        }
+        return arena.allocate();
+    }
+
+    private final ReferenceQueue<Frame> abandoned = new ReferenceQueue<Frame>();
+    private final List<Chunk>           chunks    = new ArrayList<Chunk>();
+    private int[]                       freeIds   = new int[CHUNK_ROWS];
+    private int                         nFreeIds;
+    private int                         nIds;
+    private final int                   slots;
+
+    private FrameArena(int slots) {
+        this.slots = slots;
+    }
+
+    private synchronized Frame allocate() {
+        reclaim();
+        int id;
+        if (nFreeIds > 0) {
+            id = freeIds[--nFreeIds];
+        } else {
+            id = nIds++;
+            if ((id & CHUNK_MASK) == 0) {
+                chunks.add(new Chunk(slots));
+            }
+        }
+        Chunk chunk = chunks.get(id >>> CHUNK_SHIFT);
+        int row = id & CHUNK_MASK;
+        Frame frame = new Frame(this, id, chunk.references, chunk.primitives, row);
+        chunk.leases[row] = new Lease(frame, id, abandoned);
+        return frame;
+    }
+
+    private void free(int id) {
+        Chunk chunk = chunks.get(id >>> CHUNK_SHIFT);
+        int row = id & CHUNK_MASK;
+        chunk.leases[row] = null;
+        // references left in row must not keep objects alive
+        for (Object[] column : chunk.references) {
+            column[row] = null;
+        }
+        if (nFreeIds == freeIds.length) {
+            int[] newFreeIds = new int[nFreeIds * 2];
+            System.arraycopy(freeIds, 0, newFreeIds, 0, nFreeIds);
+            freeIds = newFreeIds;
+        }
+        freeIds[nFreeIds++] = id;
+    }
+
+    /*
+     * rows of frames which were garbage collected without being closed
+     */
+    private void reclaim() {
+        Lease lease;
+        while ((lease = (Lease) abandoned.poll()) != null) {
+            Chunk chunk = chunks.get(lease.id >>> CHUNK_SHIFT);
+            if (chunk.leases[lease.id & CHUNK_MASK] == lease) {
+                free(lease.id);
+            }
+        }
+    }
+
+    /*
+     * row is given back only by frame which still holds it
+     */
+    synchronized void release(int id, Frame frame) {
+        Lease lease = chunks.get(id >>> CHUNK_SHIFT).leases[id & CHUNK_MASK];
+        if (lease != null && lease.get() == frame) {
+            lease.clear();
+            free(id);
+        }
+    }
+
+    private static final class Chunk {
+
+        final Lease[]    leases = new Lease[CHUNK_ROWS];
+        final long[][]   primitives;
+        final Object[][] references;
+
+        Chunk(int slots) {
+            primitives = new long[slots][CHUNK_ROWS];
+            references = new Object[slots][CHUNK_ROWS];
+        }
+    }
+
+    /*
+     * kept by arena, enqueued when frame holding row is garbage collected
+     */
+    private static final class Lease extends WeakReference<Frame> {
+
+        final int id;
+
+        Lease(Frame frame, int id, ReferenceQueue<Frame> queue) {
+            super(frame, queue);
+            this.id = id;
+        }
+    }
+
+    private static final Map<String, FrameArena> arenas      = new ConcurrentHashMap<String, FrameArena>();
+    private static final int                     CHUNK_MASK  = 255;
+    private static final int                     CHUNK_ROWS  = 256;
+    private static final int                     CHUNK_SHIFT = 8;
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2009-2010 Marcin Rzeźnicki
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package pl.clareo.coroutines.core;
+
+import static pl.clareo.coroutines.core.CodeGenerationUtils.JAVA_LANG_OBJECT;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.Value;
+
+import pl.clareo.coroutines.core.asm.Analyzer;
+
+/**
+ * Computes stack map frames of methods whose code was rewritten before they
+ * are transformed, so that {@link MethodTransformer} finds frames as javac
+ * would have emitted them
+ */
+final class FrameComputer implements Opcodes {
+
+    private static List<Object> getFrameTypes(Frame f, boolean locals) {
+        List<Object> types = new ArrayList<Object>();
+        int nValues = locals ? f.getLocals() : f.getStackSize();
+        for (int i = 0; i < nValues; i++) {
+            Type t = ((BasicValue) (locals ? f.getLocal(i) : f.getStack(i))).getType();
+            types.add(MethodTransformer.getFrameOpcode(t));
+            if (locals && t != null && t.getSize() == 2) {
+                i++;
+            }
+        }
+        int nTypes = types.size();
+        while (nTypes > 0 && types.get(nTypes - 1) == TOP) {
+            types.remove(--nTypes);
+        }
+        return types;
+    }
+
+    static List<LabelNode> getTargets(AbstractInsnNode insn) {
+        List<LabelNode> targets = new ArrayList<LabelNode>();
+        switch (insn.getType()) {
+            case AbstractInsnNode.JUMP_INSN:
+                targets.add(((JumpInsnNode) insn).label);
+            break;
+            case AbstractInsnNode.LOOKUPSWITCH_INSN:
+                LookupSwitchInsnNode lookupSwitch = (LookupSwitchInsnNode) insn;
+                targets.add(lookupSwitch.dflt);
+                for (Object label : lookupSwitch.labels) {
+                    targets.add((LabelNode) label);
+                }
+            break;
+            case AbstractInsnNode.TABLESWITCH_INSN:
+                TableSwitchInsnNode tableSwitch = (TableSwitchInsnNode) insn;
+                targets.add(tableSwitch.dflt);
+                for (Object label : tableSwitch.labels) {
+                    targets.add((LabelNode) label);
+                }
+            break;
+        }
+        return targets;
+    }
+
+    private final TypeHierarchy hierarchy;
+    private final ClassNode     thisNode;
+
+    FrameComputer(ClassNode node, TypeHierarchy hierarchy) {
+        this.thisNode = node;
+        this.hierarchy = hierarchy;
+    }
+
+    Frame[] analyze(MethodNode method) {
+        Analyzer analyzer = new Analyzer(new HierarchyInterpreter(hierarchy) {
+
+            @Override
+            public Value merge(Value v, Value w) {
+                Value merged = super.merge(v, w);
+                BasicValue v1 = (BasicValue) v;
+                BasicValue w1 = (BasicValue) w;
+                if (merged == BasicValue.UNINITIALIZED_VALUE && v1.isReference() && w1.isReference()) {
+                    // frames name common superclass as those of javac do
+                    Type t1 = v1.getType();
+                    Type t2 = w1.getType();
+                    if (t1.getSort() == Type.OBJECT && t2.getSort() == Type.OBJECT) {
+                        return new BasicValue(Type.getObjectType(hierarchy.getCommonSuperClass(t1.getInternalName(),
+                                                                                               t2.getInternalName())));
+                    }
+                    return new BasicValue(JAVA_LANG_OBJECT);
+                }
+                return merged;
+            }
+        });
+        try {
+            return analyzer.analyze(thisNode.name, method);
+        } catch (AnalyzerException e) {
+            throw new CoroutineGenerationException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Frames of method are computed anew; every jump target and handler gets
+     * full frame
+     */
+    void computeFrames(MethodNode method) {
+        InsnList code = method.instructions;
+        Iterator<AbstractInsnNode> i = code.iterator();
+        Set<LabelNode> targets = new HashSet<LabelNode>();
+        while (i.hasNext()) {
+            AbstractInsnNode insn = i.next();
+            if (insn.getType() == AbstractInsnNode.FRAME) {
+                i.remove();
+            } else {
+                targets.addAll(getTargets(insn));
+            }
+        }
+        for (Object o : method.tryCatchBlocks) {
+            targets.add(((TryCatchBlockNode) o).handler);
+        }
+        Frame[] frames = analyze(method);
+        AbstractInsnNode[] insns = code.toArray();
+        for (int j = 0; j < insns.length; j++) {
+            if (frames[j] == null && insns[j].getOpcode() != -1) {
+                throw new CoroutineGenerationException("it would leave unreachable code");
+            }
+        }
+        if ((thisNode.version & 0xFFFF) < V1_6) {
+            return;
+        }
+        AbstractInsnNode framed = null;
+        for (int j = 0; j < insns.length; j++) {
+            if (!targets.contains(insns[j])) {
+                continue;
+            }
+            int k = j;
+            while (insns[k].getOpcode() == -1) {
+                k++;
+            }
+            if (insns[k] != framed) {
+                framed = insns[k];
+                List<Object> locals = getFrameTypes(frames[k], true);
+                List<Object> stack = getFrameTypes(frames[k], false);
+                code.insertBefore(framed, new FrameNode(F_FULL, locals.size(), locals.toArray(), stack.size(),
+                                                        stack.toArray()));
+            }
+        }
+    }
+}
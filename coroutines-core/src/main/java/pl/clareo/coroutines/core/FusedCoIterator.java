@@ -0,0 +1,306 @@
+/*
+ * Copyright 2009-2010 Marcin Rzeźnicki
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package pl.clareo.coroutines.core;
+
+import java.util.NoSuchElementException;
+
+import pl.clareo.coroutines.user.Accumulator;
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.Combiner;
+import pl.clareo.coroutines.user.CoroutineClosedException;
+import pl.clareo.coroutines.user.CoroutineExitException;
+import pl.clareo.coroutines.user.Function;
+import pl.clareo.coroutines.user.Predicate;
+
+/**
+ * Result of operators applied to coroutine. Whole chain of operators is driven
+ * by single loop which pulls values from the source and pushes them through
+ * stages, so every result costs one call to the source no matter how many
+ * stages there are. Applying next operator does not wrap this iterator but
+ * creates new one sharing the source with one more stage appended
+ */
+final class FusedCoIterator<E, A> extends CoIteratorInternal<E, A> {
+
+    private static Stage[] append(Stage[] stages, Stage stage) {
+        int nStages = stages.length;
+        Stage[] newStages = new Stage[nStages + 1];
+        System.arraycopy(stages, 0, newStages, 0, nStages);
+        newStages[nStages] = stage;
+        return newStages;
+    }
+
+    private final Frame   frame = new Frame(0);
+    private final Source  source;
+    private final Stage[] stages;
+
+    FusedCoIterator(Source source, Stage... stages) {
+        this.source = source;
+        this.stages = stages;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    protected E call(Frame frame, A a) {
+        if (frame.getState() == Frame.CLOSED_STATE) {
+            throw new CoroutineClosedException();
+        }
+        if (frame.isCoroutineClosed()) {
+            source.close();
+            throw new CoroutineExitException();
+        }
+        return (E) pull(a);
+    }
+
+    @Override
+    <R> CoIterator<R, A> fuse(Stage stage) {
+        return new FusedCoIterator<R, A>(source, append(stages, stage));
+    }
+
+    @Override
+    protected Frame getFrame() {
+        return frame;
+    }
+
+    private Object pull(Object a) {
+        final Stage[] stages = this.stages;
+        final int nStages = stages.length;
+        pulling: while (true) {
+            Object value = source.pull(a);
+            // value sent by caller is consumed by the first call only
+            a = null;
+            for (int i = 0; i < nStages; i++) {
+                value = stages[i].apply(value);
+                if (value == SKIP) {
+                    continue pulling;
+                }
+                if (value == END) {
+                    close();
+                    throw new NoSuchElementException();
+                }
+            }
+            return value;
+        }
+    }
+
+    @Override
+    Source source() {
+        if (stages.length == 0) {
+            return source;
+        }
+        return new Source() {
+
+            @Override
+            public void close() {
+                FusedCoIterator.this.close();
+            }
+
+            @Override
+            public Object pull(Object a) {
+                return FusedCoIterator.this.pull(a);
+            }
+        };
+    }
+
+    static final class AccumulatorStage extends Stage {
+
+        private final Accumulator<Object, Object> accumulator;
+        private Object                            accumulated;
+
+        @SuppressWarnings("unchecked")
+        AccumulatorStage(Object initial, Accumulator<?, ?> accumulator) {
+            this.accumulated = initial;
+            this.accumulator = (Accumulator<Object, Object>) accumulator;
+        }
+
+        @Override
+        Object apply(Object value) {
+            accumulated = accumulator.accumulate(accumulated, value);
+            return accumulated;
+        }
+    }
+
+    static final class CombiningSource implements Source {
+
+        private final Combiner<Object, Object, ?> combiner;
+        private final Source                      first;
+        private final CoIterator<?, ?>            second;
+
+        @SuppressWarnings("unchecked")
+        CombiningSource(Source first, CoIterator<?, ?> second, Combiner<?, ?, ?> combiner) {
+            this.first = first;
+            this.second = second;
+            this.combiner = (Combiner<Object, Object, ?>) combiner;
+        }
+
+        @Override
+        public void close() {
+            try {
+                first.close();
+            } finally {
+                second.close();
+            }
+        }
+
+        @Override
+        public Object pull(Object a) {
+            Object e;
+            try {
+                e = first.pull(a);
+            } catch (NoSuchElementException ex) {
+                second.close();
+                throw ex;
+            }
+            Object f;
+            try {
+                f = second.next();
+            } catch (NoSuchElementException ex) {
+                first.close();
+                throw ex;
+            } catch (CoroutineClosedException ex) {
+                first.close();
+                throw new NoSuchElementException();
+            }
+            return combiner.combine(e, f);
+        }
+    }
+
+    static final class CoroutineSource implements Source {
+
+        private final CoIteratorInternal<?, Object> coroutine;
+
+        @SuppressWarnings("unchecked")
+        CoroutineSource(CoIteratorInternal<?, ?> coroutine) {
+            this.coroutine = (CoIteratorInternal<?, Object>) coroutine;
+        }
+
+        @Override
+        public void close() {
+            coroutine.close();
+        }
+
+        @Override
+        public Object pull(Object a) {
+            return coroutine.send(a);
+        }
+    }
+
+    static final class FilteringStage extends Stage {
+
+        private final Predicate<Object> predicate;
+
+        @SuppressWarnings("unchecked")
+        FilteringStage(Predicate<?> predicate) {
+            this.predicate = (Predicate<Object>) predicate;
+        }
+
+        @Override
+        Object apply(Object value) {
+            return predicate.apply(value) ? value : SKIP;
+        }
+    }
+
+    static final class FlatteningSource implements Source {
+
+        private final Function<Object, ? extends CoIterator<?, ?>> function;
+        private CoIterator<?, ?>                                   inner;
+        private final Source                                       outer;
+
+        @SuppressWarnings("unchecked")
+        FlatteningSource(Source outer, Function<?, ? extends CoIterator<?, ?>> function) {
+            this.outer = outer;
+            this.function = (Function<Object, ? extends CoIterator<?, ?>>) function;
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (inner != null) {
+                    inner.close();
+                    inner = null;
+                }
+            } finally {
+                outer.close();
+            }
+        }
+
+        @Override
+        public Object pull(Object a) {
+            while (true) {
+                if (inner != null) {
+                    try {
+                        return inner.next();
+                    } catch (NoSuchElementException e) {
+                        inner = null;
+                    } catch (CoroutineClosedException e) {
+                        inner = null;
+                    }
+                }
+                inner = function.apply(outer.pull(a));
+                a = null;
+            }
+        }
+    }
+
+    static final class MappingStage extends Stage {
+
+        private final Function<Object, ?> function;
+
+        @SuppressWarnings("unchecked")
+        MappingStage(Function<?, ?> function) {
+            this.function = (Function<Object, ?>) function;
+        }
+
+        @Override
+        Object apply(Object value) {
+            return function.apply(value);
+        }
+    }
+
+    interface Source {
+
+        void close();
+
+        Object pull(Object a);
+    }
+
+    static abstract class Stage {
+
+        /**
+         * @return transformed value, {@link FusedCoIterator#SKIP} if value
+         *         should be dropped or {@link FusedCoIterator#END} if no more
+         *         values should be pulled
+         */
+        abstract Object apply(Object value);
+    }
+
+    static final class TruncatingStage extends Stage {
+
+        private final Predicate<Object> predicate;
+
+        @SuppressWarnings("unchecked")
+        TruncatingStage(Predicate<?> predicate) {
+            this.predicate = (Predicate<Object>) predicate;
+        }
+
+        @Override
+        Object apply(Object value) {
+            return predicate.apply(value) ? value : END;
+        }
+    }
+
+    static final Object END  = new Object();
+    static final Object SKIP = new Object();
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2009-2010 Marcin Rzeźnicki
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package pl.clareo.coroutines.core;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Value;
+
+/**
+ * Interpreter keeping exact types of references, merged along type hierarchy
+ */
+class HierarchyInterpreter extends BasicInterpreter {
+
+    protected final TypeHierarchy hierarchy;
+
+    HierarchyInterpreter(TypeHierarchy hierarchy) {
+        this.hierarchy = hierarchy;
+    }
+
+    @Override
+    public Value binaryOperation(AbstractInsnNode insn, Value value1, Value value2) throws AnalyzerException {
+        if (insn.getOpcode() == Opcodes.AALOAD) {
+            return new BasicValue(((BasicValue) value1).getType().getElementType());
+        }
+        return super.binaryOperation(insn, value1, value2);
+    };
+
+    @Override
+    public Value merge(Value v, Value w) {
+        if (v == NULL_VALUE) {
+            BasicValue w1 = (BasicValue) w;
+            if (w1.isReference()) {
+                return w1;
+            }
+        }
+        if (w == NULL_VALUE) {
+            BasicValue v1 = (BasicValue) v;
+            if (v1.isReference())
+                return v1;
+        }
+        if (!v.equals(w)) {
+            BasicValue v1 = (BasicValue) v;
+            BasicValue w1 = (BasicValue) w;
+            if (v1.isReference() & w1.isReference()) {
+                Type t1 = v1.getType();
+                Type t2 = w1.getType();
+                if (hierarchy.isAssignableFrom(t1, t2)) {
+                    return v;
+                }
+                if (hierarchy.isAssignableFrom(t2, t1)) {
+                    return w;
+                }
+            }
+        } else {
+            return v;
+        }
+        return BasicValue.UNINITIALIZED_VALUE;
+    }
+
+    @Override
+    public Value newValue(Type type) {
+        if (type != null) {
+            int typeSort = type.getSort();
+            switch (typeSort) {
+                case Type.VOID:
+                    // void method returns no value
+                    return null;
+                case Type.BOOLEAN:
+                case Type.CHAR:
+                case Type.BYTE:
+                case Type.SHORT:
+                case Type.INT:
+                    return BasicValue.INT_VALUE;
+                case Type.FLOAT:
+                    return BasicValue.FLOAT_VALUE;
+                case Type.LONG:
+                    return BasicValue.LONG_VALUE;
+                case Type.DOUBLE:
+                    return BasicValue.DOUBLE_VALUE;
+                case Type.ARRAY:
+                case Type.OBJECT:
+                    if (type.getInternalName().equals("null")) {
+                        return NULL_VALUE;
+                    }
+                    return new BasicValue(type);
+                default:
+                    throw new Error("Internal error");
+            }
+        }
+        return BasicValue.UNINITIALIZED_VALUE;
+    }
+
+    static final Value NULL_VALUE = new BasicValue(Type.VOID_TYPE);
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2009-2010 Marcin Rzeźnicki
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package pl.clareo.coroutines.core;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import pl.clareo.coroutines.core.asm.Analyzer;
+
+/**
+ * Persistent cache of instrumented classes. Entries are keyed by SHA-1 of
+ * original class file, instrumentation options and of instrumenter itself (so
+ * that new version of this package does not use stale entries). Instrumented
+ * class depends on other types too - frames of coroutines name common
+ * superclasses of merged values - so each entry starts with names of types
+ * consulted while instrumenting and digest of their hierarchy. Entry whose
+ * types have changed since (or are gone) is stale and the class is instrumented
+ * again. Then come instrumented class and CoIterators generated for it. Entries
+ * are read through memory mapping and written to temporary files renamed into
+ * place, so JVMs sharing one cache directory never see partial entries.
+ * Classes selected with agent's nocache option bypass the cache, so they are
+ * instrumented (and logged about) on every load
+ */
+final class InstrumentationCache {
+
+    private static byte[] fingerprint() throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        byte[] buffer = new byte[8192];
+        for (Class<?> c : INSTRUMENTER_CLASSES) {
+            InputStream in = c.getResourceAsStream(c.getSimpleName() + ".class");
+            if (in == null) {
+                throw new IOException("Cannot read " + c.getName());
+            }
+            try {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * @return cache in <code>pl.clareo.coroutines.CachePath</code> or null if
+     *         caching is not turned on or not possible
+     */
+    static InstrumentationCache open() {
+        String cachePath = System.getProperty("pl.clareo.coroutines.CachePath");
+        if (cachePath == null) {
+            return null;
+        }
+        File directory = new File(cachePath);
+        directory.mkdirs();
+        if (!directory.isDirectory()) {
+            logger.warning("Cache directory " + directory + " cannot be created, caching is off");
+            return null;
+        }
+        try {
+            return new InstrumentationCache(directory, fingerprint());
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Instrumenter cannot be fingerprinted, caching is off", e);
+            return null;
+        }
+    }
+
+    private final File   directory;
+    private final byte[] instrumenterFingerprint;
+
+    private InstrumentationCache(File directory, byte[] instrumenterFingerprint) {
+        this.directory = directory;
+        this.instrumenterFingerprint = instrumenterFingerprint;
+    }
+
+    /**
+     * @param hierarchy
+     *            types visible to the loader of class, entry is valid if its
+     *            dependencies are the same there
+     * @return instrumented class followed by generated classes, keyed by
+     *         internal names, or null if there is no (valid) entry
+     */
+    Map<String, byte[]> get(String key, TypeHierarchy hierarchy) {
+        File entry = new File(directory, key);
+        if (!entry.isFile()) {
+            return null;
+        }
+        try {
+            RandomAccessFile file = new RandomAccessFile(entry, "r");
+            try {
+                FileChannel channel = file.getChannel();
+                MappedByteBuffer contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (contents.getInt() != MAGIC) {
+                    return null;
+                }
+                int dependencyCount = contents.getInt();
+                List<String> dependencies = new ArrayList<String>(dependencyCount);
+                for (int i = 0; i < dependencyCount; i++) {
+                    byte[] name = new byte[contents.getShort() & 0xFFFF];
+                    contents.get(name);
+                    dependencies.add(new String(name, "UTF-8"));
+                }
+                byte[] dependenciesDigest = new byte[DIGEST_LENGTH];
+                contents.get(dependenciesDigest);
+                if (!isValid(dependencies, dependenciesDigest, hierarchy)) {
+                    if (logger.isLoggable(Level.FINEST)) {
+                        logger.finest("Cache entry " + entry + " is stale, its dependencies have changed");
+                    }
+                    return null;
+                }
+                int count = contents.getInt();
+                Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+                for (int i = 0; i < count; i++) {
+                    byte[] name = new byte[contents.getShort() & 0xFFFF];
+                    contents.get(name);
+                    byte[] classContents = new byte[contents.getInt()];
+                    contents.get(classContents);
+                    classes.put(new String(name, "UTF-8"), classContents);
+                }
+                return classes;
+            } finally {
+                file.close();
+            }
+        } catch (BufferUnderflowException e) {
+            logger.warning("Cache entry " + entry + " is corrupted");
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cache entry " + entry + " cannot be read", e);
+        }
+        return null;
+    }
+
+    private boolean isValid(List<String> dependencies, byte[] dependenciesDigest, TypeHierarchy hierarchy) {
+        try {
+            return Arrays.equals(dependenciesDigest, hierarchy.digest(dependencies));
+        } catch (CoroutineGenerationException e) {
+            return false;
+        }
+    }
+
+    String key(byte[] classfileBuffer, boolean debug, boolean verify, boolean asmComputeFrames, boolean lazy,
+               boolean fuseLoops) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new CoroutineGenerationException(e);
+        }
+        digest.update(instrumenterFingerprint);
+        int options =
+                      (debug ? 1 : 0) | (verify ? 2 : 0) | (asmComputeFrames ? 4 : 0) | (lazy ? 8 : 0)
+                          | (fuseLoops ? 32 : 0);
+        if (ClassTransformer.shareCoIterators) {
+            options |= 16;
+        }
+        digest.update((byte) options);
+        int hugeMethodLimit = ClassTransformer.hugeMethodLimit;
+        digest.update(new byte[] { (byte) (hugeMethodLimit >>> 24), (byte) (hugeMethodLimit >>> 16),
+                (byte) (hugeMethodLimit >>> 8), (byte) hugeMethodLimit });
+        int inlineLimit = ClassTransformer.inlineLimit;
+        digest.update(new byte[] { (byte) (inlineLimit >>> 24), (byte) (inlineLimit >>> 16), (byte) (inlineLimit >>> 8),
+                (byte) inlineLimit });
+        digest.update(classfileBuffer);
+        byte[] hash = digest.digest();
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX[(hash[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX[hash[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * @param hierarchy
+     *            types consulted while instrumenting the class
+     */
+    void put(String key, Map<String, byte[]> classes, TypeHierarchy hierarchy) {
+        File entry = new File(directory, key);
+        Set<String> dependencies = new TreeSet<String>(hierarchy.getConsultedTypes());
+        dependencies.removeAll(classes.keySet());
+        try {
+            File temp = File.createTempFile(key, ".tmp", directory);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(dependencies.size());
+                for (String dependency : dependencies) {
+                    byte[] name = dependency.getBytes("UTF-8");
+                    out.writeShort(name.length);
+                    out.write(name);
+                }
+                out.write(hierarchy.digest(dependencies));
+                out.writeInt(classes.size());
+                for (Map.Entry<String, byte[]> c : classes.entrySet()) {
+                    byte[] name = c.getKey().getBytes("UTF-8");
+                    out.writeShort(name.length);
+                    out.write(name);
+                    byte[] classContents = c.getValue();
+                    out.writeInt(classContents.length);
+                    out.write(classContents);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(entry)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cache entry " + entry + " cannot be written", e);
+        }
+    }
+
+    private static final int        DIGEST_LENGTH        = 20;
+    private static final char[]     HEX                  = "0123456789abcdef".toCharArray();
+    private static final Class<?>[] INSTRUMENTER_CLASSES = { Analyzer.class, ClassAnalyzer.class,
+            ClassTransformer.class, CodeGenerationUtils.class, CoroutineInstrumentator.class, FrameComputer.class,
+            HierarchyInterpreter.class, LoopFuser.class, MethodTransformer.class, SuspendableCalls.class,
+            TypeHierarchy.class, YieldBatcher.class };
+    private static final Logger     logger               = Logger.getLogger("pl.clareo.coroutines.InstrumentationCache");
+    private static final int        MAGIC                = 0xC0C0CAC2;
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2009-2010 Marcin Rzeźnicki
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package pl.clareo.coroutines.core;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import pl.clareo.coroutines.user.CoIterator;
+
+/**
+ * Defers definition of CoIterators generated in lazy mode until their
+ * coroutines are called for the first time. Stub of lazy coroutine does not
+ * refer to its CoIterator class, it asks for CoIterator by its owner and name
+ * here. First request defines the class and keeps its instance, further
+ * requests are served by that prototype's {@link Factory#create(Frame)}.
+ * Classes of coroutines which are never called are never defined. CoIterators
+ * are registered per loader of owner, as copies of owner in other loaders have
+ * CoIterators of the same name, and loaders are held weakly. Public, as stubs
+ * in user classes call it
+ */
+public final class LazyCoIterators {
+
+    public static CoIterator<?, ?> create(Frame frame, Class<?> owner, String coIteratorName) {
+        ClassLoader loader = owner.getClassLoader();
+        Registry registry = registries.get(loader);
+        Factory factory = registry == null ? null : registry.factory(coIteratorName);
+        if (factory == null) {
+            factory = define(loader, coIteratorName);
+        }
+        return factory.create(frame);
+    }
+
+    /*
+     * class registered as pending is defined, class defined before whose
+     * prototype was garbage collected is only instantiated again
+     */
+    private static synchronized Factory define(ClassLoader loader, String coIteratorName) {
+        Registry registry = registries.get(loader);
+        if (registry == null) {
+            throw new NoClassDefFoundError(coIteratorName);
+        }
+        Factory factory = registry.factory(coIteratorName);
+        if (factory != null) {
+            return factory;
+        }
+        byte[] classContents = registry.pending.get(coIteratorName);
+        try {
+            if (classContents != null && !ClassDefiner.define(loader, coIteratorName, classContents)) {
+                throw new NoClassDefFoundError(coIteratorName + " cannot be defined");
+            }
+            Class<?> coIteratorClass = Class.forName(coIteratorName.replace('/', '.'), true, loader);
+            factory = (Factory) coIteratorClass.getConstructor(Frame.class).newInstance(new Frame(0));
+        } catch (Exception e) {
+            NoClassDefFoundError error = new NoClassDefFoundError(coIteratorName);
+            error.initCause(e);
+            throw error;
+        }
+        registry.factories.put(coIteratorName, new WeakReference<Factory>(factory));
+        registry.pending.remove(coIteratorName);
+        return factory;
+    }
+
+    /**
+     * Registers generated class in the copy of this class the owner of
+     * coroutine sees, which need not be the copy instrumenting it
+     * 
+     * @return false if class cannot be registered and has to be defined
+     *         eagerly
+     */
+    static boolean register(ClassLoader ownerLoader, String coIteratorName, byte[] classContents) {
+        Class<?> registryClass;
+        try {
+            registryClass = Class.forName(LazyCoIterators.class.getName(), false, ownerLoader);
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+        if (registryClass == LazyCoIterators.class) {
+            synchronized (LazyCoIterators.class) {
+                Registry registry = registries.get(ownerLoader);
+                if (registry == null) {
+                    registry = new Registry();
+                    registries.put(ownerLoader, registry);
+                }
+                registry.pending.put(coIteratorName, classContents);
+            }
+            return true;
+        }
+        try {
+            Method register =
+                              registryClass.getDeclaredMethod("register", ClassLoader.class, String.class,
+                                                              byte[].class);
+            register.setAccessible(true);
+            return (Boolean) register.invoke(null, ownerLoader, coIteratorName, classContents);
+        } catch (Exception e) {
+            logger.log(Level.FINE, "Unable to register " + coIteratorName + " lazily", e);
+            return false;
+        }
+    }
+
+    private LazyCoIterators() {
+    }
+
+    /**
+     * Implemented by CoIterators generated in lazy mode, creates another
+     * CoIterator of the same coroutine
+     */
+    public interface Factory {
+
+        CoIterator<?, ?> create(Frame frame);
+    }
+
+    /*
+     * CoIterators of one loader; prototypes are defined by that loader and
+     * would keep it reachable, so they are held weakly as well
+     */
+    private static final class Registry {
+
+        final Map<String, WeakReference<Factory>> factories = new ConcurrentHashMap<String, WeakReference<Factory>>();
+        final Map<String, byte[]>                 pending   = new ConcurrentHashMap<String, byte[]>();
+
+        Factory factory(String coIteratorName) {
+            WeakReference<Factory> factory = factories.get(coIteratorName);
+            return factory == null ? null : factory.get();
+        }
+    }
+
+    private static final Logger                     logger     = Logger.getLogger("pl.clareo.coroutines.LazyCoIterators");
+    private static final Map<ClassLoader, Registry> registries = Collections.synchronizedMap(new WeakHashMap<ClassLoader, Registry>());
+}
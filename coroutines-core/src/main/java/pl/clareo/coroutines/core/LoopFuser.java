@@ -0,0 +1,511 @@
+/*
+ * Copyright 2009-2010 Marcin Rzeźnicki
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package pl.clareo.coroutines.core;
+
+import static pl.clareo.coroutines.core.CodeGenerationUtils.copy;
+import static pl.clareo.coroutines.core.CodeGenerationUtils.getCodeSize;
+import static pl.clareo.coroutines.core.StringConstants.COROUTINES_NAME;
+import static pl.clareo.coroutines.core.StringConstants.CO_ITERATOR_NAME;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.Frame;
+
+/**
+ * Fuses generators with for-each loops consuming them. Loop over
+ * <code>generator(args).each()</code>, where generator is a coroutine of the
+ * same class which cannot be overriden, is replaced with code of the generator
+ * whose every yield runs body of the loop. Fused loop creates neither frame nor
+ * CoIterator and passes elements without suspending. Unlike iterator of
+ * {@link CoIterator#each()} fused generator does not run one element ahead of
+ * the loop and exceptions it throws are not swallowed, so loops are fused only
+ * if agent is given fuse option. Coroutine which yields elements of a generator in such
+ * a loop gets generator's yields inlined into its own, it is transformed into
+ * one state machine afterwards
+ */
+final class LoopFuser implements Opcodes {
+
+    private static void checkFrames(MethodNode method) {
+        Iterator<AbstractInsnNode> i = method.instructions.iterator();
+        while (i.hasNext()) {
+            AbstractInsnNode insn = i.next();
+            if (insn.getType() == AbstractInsnNode.FRAME) {
+                FrameNode frame = (FrameNode) insn;
+                if (containsLabel(frame.local) || containsLabel(frame.stack)) {
+                    throw new CoroutineGenerationException("it creates objects across branches");
+                }
+            }
+        }
+    }
+
+    private static boolean containsLabel(List<?> types) {
+        if (types != null) {
+            for (Object type : types) {
+                if (type instanceof LabelNode) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isCall(AbstractInsnNode insn, int opcode, String owner, String name, String desc) {
+        if (insn == null || insn.getOpcode() != opcode) {
+            return false;
+        }
+        MethodInsnNode call = (MethodInsnNode) insn;
+        return call.owner.equals(owner) && call.name.equals(name) && call.desc.equals(desc);
+    }
+
+    private static AbstractInsnNode nextInsn(AbstractInsnNode insn) {
+        AbstractInsnNode next = insn.getNext();
+        while (next != null && next.getOpcode() == -1) {
+            next = next.getNext();
+        }
+        return next;
+    }
+
+    private static AbstractInsnNode previousInsn(AbstractInsnNode insn) {
+        AbstractInsnNode previous = insn.getPrevious();
+        while (previous != null && previous.getOpcode() == -1) {
+            previous = previous.getPrevious();
+        }
+        return previous;
+    }
+
+    private final FrameComputer           frames;
+    private final Map<String, MethodNode> generators = new HashMap<String, MethodNode>();
+    private final ClassNode               thisNode;
+    private final Set<MethodNode>         visited    = new HashSet<MethodNode>();
+
+    /**
+     * @param generators
+     *            coroutines of the class which are generators, generators
+     *            which cannot be fused are skipped
+     */
+    LoopFuser(ClassNode node, List<MethodNode> generators, TypeHierarchy hierarchy) {
+        this.thisNode = node;
+        this.frames = new FrameComputer(node, hierarchy);
+        for (MethodNode generator : generators) {
+            try {
+                checkGenerator(generator);
+                this.generators.put(generator.name + generator.desc, generator);
+            } catch (CoroutineGenerationException e) {
+                if (log.isLoggable(Level.FINEST)) {
+                    log.finest("Coroutine " + generator.name + generator.desc + " cannot be fused: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Generator can be fused if it does not catch exceptions (they would catch
+     * those thrown by loop's body), does not call itself, does not transfer
+     * control and yields only from statements - loop's body runs with empty
+     * stack then
+     */
+    private void checkGenerator(MethodNode generator) {
+        if (!generator.tryCatchBlocks.isEmpty()) {
+            throw new CoroutineGenerationException("it catches exceptions");
+        }
+        Frame[] generatorFrames = frames.analyze(generator);
+        InsnList code = generator.instructions;
+        for (int i = 0; i < generatorFrames.length; i++) {
+            AbstractInsnNode insn = code.get(i);
+            if (insn.getType() != AbstractInsnNode.METHOD_INSN || generatorFrames[i] == null) {
+                continue;
+            }
+            MethodInsnNode call = (MethodInsnNode) insn;
+            if (call.owner.equals(thisNode.name) && call.name.equals(generator.name)
+                && call.desc.equals(generator.desc)) {
+                throw new CoroutineGenerationException("it is recursive");
+            }
+            if (call.owner.equals(COROUTINES_NAME) && call.name.equals("transfer")) {
+                throw new CoroutineGenerationException("it transfers control");
+            }
+            if (call.owner.equals(COROUTINES_NAME) && call.name.equals("yield")
+                && generatorFrames[i].getStackSize() != Type.getArgumentTypes(call.desc).length) {
+                throw new CoroutineGenerationException("it yields inside expression");
+            }
+        }
+    }
+
+    private InsnList copyBody(ForEachLoop loop, LabelNode resume) {
+        Map<LabelNode, LabelNode> labels = new HashMap<LabelNode, LabelNode>() {
+
+            @Override
+            public LabelNode get(Object label) {
+                // labels outside of the body are kept
+                LabelNode copy = super.get(label);
+                return copy != null ? copy : (LabelNode) label;
+            }
+        };
+        labels.put(loop.condition, resume);
+        for (AbstractInsnNode insn = loop.bodyStart; insn != loop.backJump; insn = insn.getNext()) {
+            if (insn.getType() == AbstractInsnNode.LABEL) {
+                labels.put((LabelNode) insn, new LabelNode());
+            }
+        }
+        InsnList body = new InsnList();
+        for (AbstractInsnNode insn = loop.bodyStart; insn != loop.backJump; insn = insn.getNext()) {
+            if (insn.getType() != AbstractInsnNode.FRAME) {
+                body.add(insn.clone(labels));
+            }
+        }
+        return body;
+    }
+
+    private ForEachLoop findLoop(MethodNode method, MethodInsnNode call) {
+        MethodNode generator = generators.get(call.name + call.desc);
+        if (generator == null || !call.owner.equals(thisNode.name)) {
+            return null;
+        }
+        if ((generator.access & ACC_STATIC) != 0) {
+            if (call.getOpcode() != INVOKESTATIC) {
+                return null;
+            }
+        } else if (call.getOpcode() != INVOKESPECIAL
+                   && (call.getOpcode() != INVOKEVIRTUAL || ((generator.access | thisNode.access) & (ACC_PRIVATE | ACC_FINAL)) == 0)) {
+            return null;
+        }
+        AbstractInsnNode each = nextInsn(call);
+        if (!isCall(each, INVOKEINTERFACE, CO_ITERATOR_NAME, "each", "()Ljava/lang/Iterable;")) {
+            return null;
+        }
+        AbstractInsnNode iterator = nextInsn(each);
+        if (!isCall(iterator, INVOKEINTERFACE, "java/lang/Iterable", "iterator", "()Ljava/util/Iterator;")) {
+            return null;
+        }
+        AbstractInsnNode store = nextInsn(iterator);
+        if (store == null || store.getOpcode() != ASTORE) {
+            return null;
+        }
+        int iteratorVar = ((VarInsnNode) store).var;
+        AbstractInsnNode load = nextInsn(store);
+        if (load == null || load.getOpcode() != ALOAD || ((VarInsnNode) load).var != iteratorVar) {
+            return null;
+        }
+        LabelNode condition = null;
+        for (AbstractInsnNode insn = load.getPrevious(); insn != store; insn = insn.getPrevious()) {
+            if (insn.getType() == AbstractInsnNode.LABEL) {
+                condition = (LabelNode) insn;
+                break;
+            }
+        }
+        AbstractInsnNode hasNext = nextInsn(load);
+        if (condition == null || !isCall(hasNext, INVOKEINTERFACE, "java/util/Iterator", "hasNext", "()Z")) {
+            return null;
+        }
+        AbstractInsnNode test = nextInsn(hasNext);
+        if (test == null || test.getOpcode() != IFEQ) {
+            return null;
+        }
+        LabelNode exit = ((JumpInsnNode) test).label;
+        load = nextInsn(test);
+        if (load == null || load.getOpcode() != ALOAD || ((VarInsnNode) load).var != iteratorVar) {
+            return null;
+        }
+        AbstractInsnNode next = nextInsn(load);
+        if (!isCall(next, INVOKEINTERFACE, "java/util/Iterator", "next", "()Ljava/lang/Object;")) {
+            return null;
+        }
+        AbstractInsnNode backJump = previousInsn(exit);
+        InsnList code = method.instructions;
+        int start = code.indexOf(call);
+        int end = code.indexOf(backJump);
+        if (backJump.getOpcode() != GOTO || ((JumpInsnNode) backJump).label != condition || end < code.indexOf(next)) {
+            return null;
+        }
+        /*
+         * loop may be entered only through the call to generator and left
+         * only through its exit or jumps out of its body; iterator is not used
+         * in the body
+         */
+        int bodyStart = code.indexOf(next);
+        for (int i = 0; i < code.size(); i++) {
+            AbstractInsnNode insn = code.get(i);
+            boolean inBody = i > bodyStart && i < end;
+            if (insn.getType() == AbstractInsnNode.VAR_INSN && inBody && ((VarInsnNode) insn).var == iteratorVar) {
+                return null;
+            }
+            if (i >= start && i <= end && !inBody) {
+                continue;
+            }
+            for (LabelNode target : FrameComputer.getTargets(insn)) {
+                int t = code.indexOf(target);
+                if (t > start && t <= end && !(inBody && (t > bodyStart || target == condition))) {
+                    return null;
+                }
+            }
+        }
+        for (Object o : method.tryCatchBlocks) {
+            TryCatchBlockNode tcb = (TryCatchBlockNode) o;
+            for (LabelNode label : new LabelNode[] { tcb.start, tcb.end, tcb.handler }) {
+                int l = code.indexOf(label);
+                if (l > start && l <= end) {
+                    return null;
+                }
+            }
+        }
+        return new ForEachLoop(generator, call, next.getNext(), (JumpInsnNode) backJump, condition, exit);
+    }
+
+    /**
+     * Fuses loops over generators found in method
+     * 
+     * @return true if method was changed
+     */
+    boolean fuse(MethodNode method) {
+        return fuse(method, Integer.MAX_VALUE);
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean fuse(MethodNode method, int generatorLimit) {
+        if (!visited.add(method) || generators.isEmpty() || method.name.equals("<init>")
+            || method.instructions.size() == 0) {
+            return false;
+        }
+        MethodNode fused = copy(method);
+        List<ForEachLoop> loops = new ArrayList<ForEachLoop>();
+        Iterator<AbstractInsnNode> i = fused.instructions.iterator();
+        while (i.hasNext()) {
+            AbstractInsnNode insn = i.next();
+            if (insn.getType() == AbstractInsnNode.METHOD_INSN) {
+                ForEachLoop loop = findLoop(fused, (MethodInsnNode) insn);
+                if (loop != null) {
+                    loops.add(loop);
+                }
+            }
+        }
+        String description = thisNode.name.replace('/', '.') + "." + method.name + method.desc;
+        Iterator<ForEachLoop> j = loops.iterator();
+        while (j.hasNext()) {
+            MethodNode generator = j.next().generator;
+            // generators are fused first, so that pipelines are flattened
+            if (!visited.contains(generator)) {
+                inline(generator);
+            }
+            int codeSize = getCodeSize(generator.instructions);
+            if (codeSize > generatorLimit) {
+                if (log.isLoggable(Level.FINE)) {
+                    log.fine("Coroutine " + generator.name + generator.desc + " not inlined into " + description
+                             + ": it has " + codeSize + " bytes of code");
+                }
+                j.remove();
+            }
+        }
+        if (loops.isEmpty()) {
+            return false;
+        }
+        try {
+            checkFrames(method);
+            // inner loops first, they are copied along with bodies of outer
+            // ones
+            for (int l = loops.size() - 1; l >= 0; l--) {
+                fuseLoop(fused, loops.get(l));
+            }
+            frames.computeFrames(fused);
+            int codeSize = getCodeSize(fused.instructions);
+            if (codeSize > ClassTransformer.hugeMethodLimit) {
+                throw new CoroutineGenerationException("it would have " + codeSize + " bytes of code");
+            }
+        } catch (CoroutineGenerationException e) {
+            if (log.isLoggable(Level.FINE)) {
+                log.fine("Loops over coroutines in " + description + " not fused: " + e.getMessage());
+            }
+            return false;
+        }
+        method.instructions.clear();
+        method.instructions.add(fused.instructions);
+        method.tryCatchBlocks = fused.tryCatchBlocks;
+        method.localVariables = fused.localVariables;
+        if (method.localVariables != null) {
+            // debugging information of loops' iterators and variables is gone
+            Set<LabelNode> labels = new HashSet<LabelNode>();
+            i = method.instructions.iterator();
+            while (i.hasNext()) {
+                AbstractInsnNode insn = i.next();
+                if (insn.getType() == AbstractInsnNode.LABEL) {
+                    labels.add((LabelNode) insn);
+                }
+            }
+            Iterator<LocalVariableNode> k = method.localVariables.iterator();
+            while (k.hasNext()) {
+                LocalVariableNode local = k.next();
+                if (!labels.contains(local.start) || !labels.contains(local.end)) {
+                    k.remove();
+                }
+            }
+        }
+        method.maxLocals = fused.maxLocals;
+        method.maxStack = fused.maxStack;
+        if (log.isLoggable(Level.FINE)) {
+            for (ForEachLoop loop : loops) {
+                log.fine("Loop over coroutine " + loop.generator.name + loop.generator.desc + " fused into "
+                         + description);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replaces loop with code of generator, arguments of the call become its
+     * first locals, placed after locals of the method
+     */
+    private void fuseLoop(MethodNode method, ForEachLoop loop) {
+        MethodNode generator = loop.generator;
+        int base = method.maxLocals;
+        method.maxLocals += generator.maxLocals;
+        method.maxStack += generator.maxStack;
+        InsnList fusedLoop = new InsnList();
+        boolean isStatic = (generator.access & ACC_STATIC) != 0;
+        Type[] argsTypes = Type.getArgumentTypes(generator.desc);
+        int[] argsIndexes = new int[argsTypes.length];
+        int argIndex = isStatic ? 0 : 1;
+        for (int a = 0; a < argsTypes.length; a++) {
+            argsIndexes[a] = argIndex;
+            argIndex += argsTypes[a].getSize();
+        }
+        for (int a = argsTypes.length - 1; a >= 0; a--) {
+            fusedLoop.add(new VarInsnNode(argsTypes[a].getOpcode(ISTORE), base + argsIndexes[a]));
+        }
+        if (!isStatic) {
+            fusedLoop.add(new VarInsnNode(ASTORE, base));
+        }
+        Map<LabelNode, LabelNode> labels = new HashMap<LabelNode, LabelNode>();
+        Iterator<AbstractInsnNode> i = generator.instructions.iterator();
+        while (i.hasNext()) {
+            AbstractInsnNode insn = i.next();
+            if (insn.getType() == AbstractInsnNode.LABEL) {
+                labels.put((LabelNode) insn, new LabelNode());
+            }
+        }
+        i = generator.instructions.iterator();
+        while (i.hasNext()) {
+            AbstractInsnNode insn = i.next();
+            switch (insn.getType()) {
+                case AbstractInsnNode.FRAME:
+                break;
+                case AbstractInsnNode.IINC_INSN:
+                    IincInsnNode iinc = (IincInsnNode) insn.clone(labels);
+                    iinc.var += base;
+                    fusedLoop.add(iinc);
+                break;
+                case AbstractInsnNode.VAR_INSN:
+                    VarInsnNode var = (VarInsnNode) insn.clone(labels);
+                    var.var += base;
+                    fusedLoop.add(var);
+                break;
+                case AbstractInsnNode.INSN:
+                    if (insn.getOpcode() >= IRETURN && insn.getOpcode() <= RETURN) {
+                        fusedLoop.add(new InsnNode(POP));
+                        fusedLoop.add(new JumpInsnNode(GOTO, loop.exit));
+                    } else {
+                        fusedLoop.add(insn.clone(labels));
+                    }
+                break;
+                case AbstractInsnNode.METHOD_INSN:
+                    MethodInsnNode call = (MethodInsnNode) insn;
+                    if (call.owner.equals(COROUTINES_NAME)) {
+                        if (call.name.equals("_")) {
+                            fusedLoop.add(new InsnNode(ACONST_NULL));
+                            break;
+                        }
+                        if (call.name.equals("yield")) {
+                            /*
+                             * yielded value is the next element, loop sends
+                             * nothing back
+                             */
+                            if (Type.getArgumentTypes(call.desc).length == 0) {
+                                fusedLoop.add(new InsnNode(ACONST_NULL));
+                            }
+                            LabelNode resume = new LabelNode();
+                            fusedLoop.add(copyBody(loop, resume));
+                            fusedLoop.add(resume);
+                            fusedLoop.add(new InsnNode(ACONST_NULL));
+                            break;
+                        }
+                    }
+                    fusedLoop.add(insn.clone(labels));
+                break;
+                default:
+                    fusedLoop.add(insn.clone(labels));
+            }
+        }
+        // results of yields and generator are mostly discarded
+        i = fusedLoop.iterator();
+        while (i.hasNext()) {
+            AbstractInsnNode insn = i.next();
+            AbstractInsnNode next = insn.getNext();
+            if (insn.getOpcode() == ACONST_NULL && next != null && next.getOpcode() == POP) {
+                i.next();
+                fusedLoop.remove(insn);
+                fusedLoop.remove(next);
+            }
+        }
+        InsnList code = method.instructions;
+        AbstractInsnNode insn = loop.call;
+        while (insn != loop.backJump) {
+            AbstractInsnNode next = insn.getNext();
+            code.remove(insn);
+            insn = next;
+        }
+        code.insert(loop.backJump, fusedLoop);
+        code.remove(loop.backJump);
+    }
+
+    /**
+     * Fuses loops over generators found in coroutine, generators bigger than
+     * {@link ClassTransformer#inlineLimit} are left as they are
+     * 
+     * @return true if coroutine was changed
+     */
+    boolean inline(MethodNode coroutine) {
+        return fuse(coroutine, ClassTransformer.inlineLimit);
+    }
+
+    private static final class ForEachLoop {
+
+        final JumpInsnNode     backJump;
+        final AbstractInsnNode bodyStart;
+        final MethodInsnNode   call;
+        final LabelNode        condition;
+        final LabelNode        exit;
+        final MethodNode       generator;
+
+        ForEachLoop(MethodNode generator, MethodInsnNode call, AbstractInsnNode bodyStart, JumpInsnNode backJump, LabelNode condition, LabelNode exit) {
+            this.generator = generator;
+            this.call = call;
+            this.bodyStart = bodyStart;
+            this.backJump = backJump;
+            this.condition = condition;
+            this.exit = exit;
+        }
+    }
+
+    private static final Logger log = Logger.getLogger("pl.clareo.coroutines.LoopFuser");
+}
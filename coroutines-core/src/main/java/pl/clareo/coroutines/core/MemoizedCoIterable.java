@@ -0,0 +1,273 @@
+/*
+ * Copyright 2009-2010 Marcin Rzeźnicki
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package pl.clareo.coroutines.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import pl.clareo.coroutines.user.CoroutineClosedException;
+
+/**
+ * Records results of coroutine so that they can be iterated over many times.
+ * Results are kept in chunks, when there are more chunks than allowed older
+ * ones are serialized into temporary file and read back through memory
+ * mapping. File is deleted once this iterable is garbage collected. Every
+ * iterator reads at its own position and calls coroutine only
+ * when it gets past results recorded so far
+ */
+final class MemoizedCoIterable<E> implements Iterable<E> {
+
+    /*
+     * files of iterables which were garbage collected; mappings stay valid
+     * after file is deleted, where it cannot be deleted it is left for
+     * deleteOnExit
+     */
+    private static void deleteAbandonedSpillFiles() {
+        SpillFile spillFile;
+        while ((spillFile = (SpillFile) abandoned.poll()) != null) {
+            spillFiles.remove(spillFile);
+            if (!spillFile.file.delete() && logger.isLoggable(Level.FINE)) {
+                logger.fine("Unable to delete " + spillFile.file);
+            }
+        }
+    }
+
+    private final int                      chunkSize;
+    private final List<Object[]>           chunks        = new ArrayList<Object[]>();
+    private final CoIteratorInternal<E, ?> coroutine;
+    private boolean                        exhausted;
+    private int                            firstChunkInMemory;
+    private final int                      maxChunksInMemory;
+    private int                            size;
+    private File                           spillFile;
+    private final List<MappedByteBuffer>   spilledChunks = new ArrayList<MappedByteBuffer>();
+    private long                           spillPosition;
+
+    MemoizedCoIterable(CoIteratorInternal<E, ?> coroutine, int inMemoryLimit) {
+        if (inMemoryLimit <= 0) {
+            throw new IllegalArgumentException("inMemoryLimit <= 0");
+        }
+        this.coroutine = coroutine;
+        this.chunkSize = Math.min(DEFAULT_CHUNK_SIZE, inMemoryLimit);
+        this.maxChunksInMemory = inMemoryLimit / chunkSize;
+    }
+
+    /*
+     * element is recorded before older chunks are spilled, chunk which failed
+     * to spill stays in memory and spilling it is retried with next chunk
+     */
+    private void append(Object e) {
+        int offset = size % chunkSize;
+        if (offset == 0) {
+            chunks.add(new Object[chunkSize]);
+            spilledChunks.add(null);
+        }
+        chunks.get(chunks.size() - 1)[offset] = e;
+        size++;
+        if (offset == 0) {
+            while (chunks.size() - firstChunkInMemory > maxChunksInMemory) {
+                spill(firstChunkInMemory);
+                firstChunkInMemory++;
+            }
+        }
+    }
+
+    /*
+     * returns chunk containing element at index (reading it from disk if
+     * needed) or null if coroutine is exhausted before index
+     */
+    private synchronized Object[] chunk(int index, Reader reader) {
+        while (index >= size) {
+            if (exhausted) {
+                return null;
+            }
+            try {
+                append(coroutine.next());
+            } catch (NoSuchElementException e) {
+                exhausted = true;
+            } catch (CoroutineClosedException e) {
+                exhausted = true;
+            }
+        }
+        int chunkIndex = index / chunkSize;
+        Object[] chunk = chunks.get(chunkIndex);
+        if (chunk != null) {
+            return chunk;
+        }
+        if (reader.spilledChunkIndex != chunkIndex) {
+            reader.spilledChunk = readChunk(spilledChunks.get(chunkIndex));
+            reader.spilledChunkIndex = chunkIndex;
+        }
+        return reader.spilledChunk;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return new Reader();
+    }
+
+    private Object[] readChunk(MappedByteBuffer mappedChunk) {
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteBufferInputStream(mappedChunk.duplicate()));
+            try {
+                return (Object[]) in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read memoized results from disk", e);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Unable to read memoized results from disk", e);
+        }
+    }
+
+    private void spill(int chunkIndex) {
+        Object[] chunk = chunks.get(chunkIndex);
+        try {
+            if (spillFile == null) {
+                deleteAbandonedSpillFiles();
+                spillFile = File.createTempFile("coroutine", ".memo", new File(spillPath));
+                spillFile.deleteOnExit();
+                spillFiles.add(new SpillFile(this, spillFile));
+                if (logger.isLoggable(Level.FINEST)) {
+                    logger.finest("Spilling memoized results to " + spillFile);
+                }
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(chunk);
+            out.close();
+            int length = bytes.size();
+            // mapped chunk stays valid after file is closed
+            RandomAccessFile file = new RandomAccessFile(spillFile, "rw");
+            try {
+                FileChannel channel = file.getChannel();
+                channel.write(ByteBuffer.wrap(bytes.toByteArray()), spillPosition);
+                spilledChunks.set(chunkIndex, channel.map(FileChannel.MapMode.READ_ONLY, spillPosition, length));
+            } finally {
+                file.close();
+            }
+            spillPosition += length;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to spill memoized results to disk", e);
+        }
+        chunks.set(chunkIndex, null);
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public int read() {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            return buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int remaining = buffer.remaining();
+            if (remaining == 0) {
+                return -1;
+            }
+            if (len > remaining) {
+                len = remaining;
+            }
+            buffer.get(b, off, len);
+            return len;
+        }
+    }
+
+    private final class Reader implements Iterator<E> {
+
+        private int      position;
+        private Object[] spilledChunk;
+        private int      spilledChunkIndex = -1;
+
+        @Override
+        public boolean hasNext() {
+            return chunk(position, this) != null;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public E next() {
+            Object[] chunk = chunk(position, this);
+            if (chunk == null) {
+                throw new NoSuchElementException();
+            }
+            return (E) chunk[position++ % chunkSize];
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /*
+     * enqueued when iterable which spilled to file is garbage collected
+     */
+    private static final class SpillFile extends PhantomReference<MemoizedCoIterable<?>> {
+
+        final File file;
+
+        SpillFile(MemoizedCoIterable<?> memoized, File file) {
+            super(memoized, abandoned);
+            this.file = file;
+        }
+    }
+
+    private static final ReferenceQueue<MemoizedCoIterable<?>> abandoned          = new ReferenceQueue<MemoizedCoIterable<?>>();
+    private static final int                                  DEFAULT_CHUNK_SIZE = 1024;
+    private static final Logger                               logger             = Logger.getLogger("pl.clareo.coroutines.MemoizedCoIterable");
+    private static final String                               spillPath          = System.getProperty("pl.clareo.coroutines.SpillPath",
+                                                                                                      System.getProperty("java.io.tmpdir"));
+    /*
+     * keeps references until they are enqueued
+     */
+    private static final Set<SpillFile>                       spillFiles         = Collections.synchronizedSet(new HashSet<SpillFile>());
+}
@@ -18,7 +18,6 @@ package pl.clareo.coroutines.core;
 import static pl.clareo.coroutines.core.CodeGenerationUtils.*;
 import static pl.clareo.coroutines.core.StringConstants.COROUTINES_NAME;
 import static pl.clareo.coroutines.core.StringConstants.COROUTINE_CLOSED_EXCEPTION;
-import static pl.clareo.coroutines.core.StringConstants.COROUTINE_EXIT_EXCEPTION;
 import static pl.clareo.coroutines.core.StringConstants.COROUTINE_METHOD_DESCRIPTOR;
 import static pl.clareo.coroutines.core.StringConstants.FRAME_NAME;
 import static pl.clareo.coroutines.core.StringConstants.INVALID_COROUTINE_EXCEPTION;
@@ -29,7 +28,6 @@ import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.*;
 import org.objectweb.asm.tree.analysis.AnalyzerException;
-import org.objectweb.asm.tree.analysis.BasicInterpreter;
 import org.objectweb.asm.tree.analysis.BasicValue;
 import org.objectweb.asm.tree.analysis.Frame;
 import org.objectweb.asm.tree.analysis.Value;
@@ -74,16 +72,7 @@ final class MethodTransformer implements Opcodes {
         return null;
     }
 
-    private static Class<?> getClass(BasicValue v) throws ClassNotFoundException {
-        Type t = v.getType();
-        ClassLoader loader = MethodTransformer.class.getClassLoader();
-        if (t.getSort() == Type.ARRAY) {
-            return Class.forName(t.getDescriptor().replace('/', '.'), false, loader);
-        }
-        return Class.forName(t.getClassName(), false, loader);
-    }
-
-    private static Object getFrameOpcode(Type t) {
+    static Object getFrameOpcode(Type t) {
         if (t == null) {
             return TOP;
         }
@@ -146,6 +135,76 @@ final class MethodTransformer implements Opcodes {
         return ((BasicValue) f.getStack(i)).getType();
     }
 
+    /**
+     * Finds locals which may have been assigned, on any path leading to yield,
+     * since coroutine started or was last suspended. Only these are saved when
+     * coroutine is suspended, others are in frame already - arguments are
+     * saved when coroutine is created, other locals when they are assigned
+     * 
+     * @param successors
+     *            control flow graph, by instruction index
+     * @param handlers
+     *            exception handlers, by instruction index
+     * @return written locals, by yield
+     */
+    private static BitSet[] getWrittenLocals(InsnList code, List<Integer> yields, Set<Integer>[] successors,
+                                             Set<Integer>[] handlers) {
+        int nInsns = code.size();
+        boolean[] suspends = new boolean[nInsns];
+        for (int yield : yields) {
+            suspends[yield] = true;
+        }
+        BitSet[] written = new BitSet[nInsns];
+        written[0] = new BitSet();
+        Deque<Integer> pending = new ArrayDeque<Integer>();
+        pending.add(0);
+        while (!pending.isEmpty()) {
+            int insn = pending.poll();
+            BitSet writtenBefore = written[insn];
+            AbstractInsnNode insnNode = code.get(insn);
+            if (insnNode.getOpcode() == -1) {
+                // analyzer does not report all edges leaving labels and frames
+                if (insn + 1 < nInsns) {
+                    mergeWrittenLocals(written, writtenBefore, insn + 1, pending);
+                }
+                continue;
+            }
+            BitSet writtenAfter;
+            if (suspends[insn]) {
+                writtenAfter = new BitSet();
+            } else {
+                writtenAfter = writtenBefore;
+                int var = -1;
+                if (insnNode.getType() == AbstractInsnNode.IINC_INSN) {
+                    var = ((IincInsnNode) insnNode).var;
+                } else if (insnNode.getType() == AbstractInsnNode.VAR_INSN && insnNode.getOpcode() >= ISTORE) {
+                    var = ((VarInsnNode) insnNode).var;
+                }
+                if (var >= 0 && !writtenBefore.get(var)) {
+                    writtenAfter = (BitSet) writtenBefore.clone();
+                    writtenAfter.set(var);
+                }
+            }
+            if (successors[insn] != null) {
+                for (int successor : successors[insn]) {
+                    mergeWrittenLocals(written, writtenAfter, successor, pending);
+                }
+            }
+            if (handlers[insn] != null) {
+                // handler sees locals as they were before instruction threw
+                for (int handler : handlers[insn]) {
+                    mergeWrittenLocals(written, writtenBefore, handler, pending);
+                }
+            }
+        }
+        BitSet[] writtenLocals = new BitSet[yields.size()];
+        for (int i = 0; i < writtenLocals.length; i++) {
+            BitSet writtenBeforeYield = written[yields.get(i)];
+            writtenLocals[i] = writtenBeforeYield != null ? writtenBeforeYield : new BitSet();
+        }
+        return writtenLocals;
+    }
+
     private static InsnList loadstack(int frameIndex, Type[] stackTypes, int stackTop) {
         InsnList insn = new InsnList();
         int top = stackTypes.length - 1;
@@ -199,6 +258,21 @@ final class MethodTransformer implements Opcodes {
         return insn;
     }
 
+    private static void mergeWrittenLocals(BitSet[] written, BitSet writtenLocals, int successor,
+                                           Deque<Integer> pending) {
+        BitSet successorWritten = written[successor];
+        if (successorWritten == null) {
+            written[successor] = (BitSet) writtenLocals.clone();
+            pending.add(successor);
+        } else {
+            int cardinality = successorWritten.cardinality();
+            successorWritten.or(writtenLocals);
+            if (successorWritten.cardinality() != cardinality) {
+                pending.add(successor);
+            }
+        }
+    }
+
     private static InsnList savestack(int frameIndex, Type[] stack, int stackTop) {
         InsnList insn = new InsnList();
         int top = stack.length - 1;
@@ -254,12 +328,13 @@ final class MethodTransformer implements Opcodes {
         return insn;
     }
 
+    private final boolean                   arena;
     private final Object[]                  argsStackMapWithThis;
-    private final boolean[]                 finals;
     private final int                       frame;
+    private final TypeHierarchy             hierarchy;
     private final int                       in;
     private final boolean                   isStatic;
-    private final Map<LabelNode, LabelNode> labelsMap  = new HashMap<LabelNode, LabelNode>();
+    private final Map<LabelNode, LabelNode> labelsMap         = new HashMap<LabelNode, LabelNode>();
     private int                             lineNumber;
     private final int                       localsArray;
     private final int                       localsStartIndex;
@@ -267,23 +342,42 @@ final class MethodTransformer implements Opcodes {
     private final Type[]                    methodArguments;
     private final String                    methodOwner;
     private final int                       out;
+    private final Map<String, RestoreBlock> restoreBlocks     = new LinkedHashMap<String, RestoreBlock>();
+    private final InsnList                  restoreBlocksCode = new InsnList();
+    private int                             restoreBytesSaved;
+    private final Map<String, LabelNode>    saveBlocks        = new HashMap<String, LabelNode>();
+    private final InsnList                  saveBlocksCode    = new InsnList();
     private final int                       state;
-    private final LabelNode                 yieldLabel = new LabelNode();
+    private final boolean                   suspendable;
+    private final LabelNode                 yieldLabel        = new LabelNode();
+
+    MethodTransformer(MethodNode method, Type owner, TypeHierarchy hierarchy) {
+        this(method, owner, hierarchy, false, false);
+    }
 
-    MethodTransformer(MethodNode method, Type owner) {
+    /**
+     * @param suspendable
+     *            if true method is a suspendable method, its state machine
+     *            returns boxed result of the method and closes its frame
+     *            instead of throwing NoSuchElementException
+     * @param arena
+     *            if true frames of coroutine are kept in arena, locals are
+     *            saved in and restored from its columns
+     */
+    MethodTransformer(MethodNode method, Type owner, TypeHierarchy hierarchy, boolean suspendable, boolean arena) {
         this.method = method;
+        this.suspendable = suspendable;
+        this.arena = arena;
+        this.hierarchy = hierarchy;
         this.methodOwner = owner.getInternalName();
-        this.finals = new boolean[method.maxLocals];
         isStatic = (method.access & ACC_STATIC) != 0;
         methodArguments = Type.getArgumentTypes(method.desc);
-        int localIndex;
         if (isStatic) {
             this.frame = 0;
             this.in = 1;
             this.out = 2;
             this.state = 3;
             this.localsArray = 4;
-            localIndex = 0;
             argsStackMapWithThis = null;
         } else {
             this.frame = 1;
@@ -291,21 +385,17 @@ final class MethodTransformer implements Opcodes {
             this.out = 3;
             this.state = 4;
             this.localsArray = 5;
-            finals[0] = true;
-            localIndex = 1;
             List<Object> argsStackMapWithThis = new ArrayList<Object>(argsStackMapList);
             argsStackMapWithThis.add(0, methodOwner);
             this.argsStackMapWithThis = argsStackMapWithThis.toArray();
         }
-        for (int i = 0; i < methodArguments.length; i++) {
-            finals[localIndex] = true;
-            localIndex += methodArguments[i].getSize();
-        }
         this.localsStartIndex = localsArray + 1;
     }
 
     private InsnList codeAfter() {
         InsnList insn = new InsnList();
+        insn.add(saveBlocksCode);
+        insn.add(restoreBlocksCode);
         insn.add(yieldLabel);
         insn.add(emitCleanFrame());
         insn.add(new VarInsnNode(ALOAD, in));
@@ -324,8 +414,13 @@ final class MethodTransformer implements Opcodes {
             insn.add(new VarInsnNode(ALOAD, frame));
             insn.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "getState", "()I"));
             insn.add(new VarInsnNode(ISTORE, state));
-            insn.add(new VarInsnNode(ALOAD, frame));
-            insn.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "getLocals", "()[Ljava/lang/Object;"));
+            if (arena) {
+                // frame kept in arena has no locals array
+                insn.add(new InsnNode(ACONST_NULL));
+            } else {
+                insn.add(new VarInsnNode(ALOAD, frame));
+                insn.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "getLocals", "()[Ljava/lang/Object;"));
+            }
             insn.add(new VarInsnNode(ASTORE, localsArray));
         }
         /*
@@ -367,7 +462,11 @@ final class MethodTransformer implements Opcodes {
             insn.add(throwex(INVALID_COROUTINE_EXCEPTION));
             insn.add(gotos.get(0));
             insn.add(new FrameNode(F_SAME, 0, EMPTY_LOCALS, 0, EMPTY_STACK));
-            insn.add(getlocs(localsArray, localsStartIndex, isStatic ? 0 : 1, methodArguments));
+            if (arena) {
+                insn.add(getcols(frame, localsStartIndex, isStatic ? 0 : 1, methodArguments));
+            } else {
+                insn.add(getlocs(localsArray, localsStartIndex, isStatic ? 0 : 1, methodArguments));
+            }
             insn.add(new VarInsnNode(ALOAD, frame));
             insn.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "isCoroutineClosed", "()Z"));
             LabelNode continueHere = new LabelNode();
@@ -422,6 +521,86 @@ final class MethodTransformer implements Opcodes {
         return types.toArray(result);
     }
 
+    /**
+     * Yields restoring the same locals are grouped, so that they can share
+     * block of code which restores them
+     */
+    private RestoreBlock getRestoreBlock(Type[] locals) {
+        StringBuilder key = new StringBuilder();
+        for (int i = isStatic ? 0 : 1; i < locals.length; i++) {
+            Type local = locals[i];
+            if (local != null) {
+                key.append(i).append(local.getDescriptor());
+            }
+        }
+        RestoreBlock restoreBlock = restoreBlocks.get(key.toString());
+        if (restoreBlock == null) {
+            restoreBlock = new RestoreBlock(locals);
+            restoreBlocks.put(key.toString(), restoreBlock);
+        }
+        return restoreBlock;
+    }
+
+    /**
+     * @return number of bytes of code saved by sharing blocks restoring
+     *         locals, valid after transformation
+     */
+    int getRestoreBytesSaved() {
+        return restoreBytesSaved;
+    }
+
+    /**
+     * In compact code yields saving the same locals share block of code which
+     * saves them, sets state (kept in state variable) and jumps to exit
+     */
+    private LabelNode getSaveBlock(Type[] locals, BitSet writtenLocals) {
+        int nLocals = locals.length;
+        Type[] savedLocals = new Type[nLocals];
+        StringBuilder key = new StringBuilder();
+        for (int i = isStatic ? 0 : 1; i < nLocals; i++) {
+            Type local = locals[i];
+            if (local != null && writtenLocals.get(i)) {
+                savedLocals[i] = local;
+                key.append(i).append(local.getDescriptor());
+            }
+        }
+        LabelNode saveBlock = saveBlocks.get(key.toString());
+        if (saveBlock != null) {
+            return saveBlock;
+        }
+        saveBlock = new LabelNode();
+        saveBlocks.put(key.toString(), saveBlock);
+        saveBlocksCode.add(saveBlock);
+        // frame: clean frame followed by saved locals, other locals are unknown
+        List<Object> frameLocals = new ArrayList<Object>();
+        if (!isStatic) {
+            frameLocals.add(methodOwner);
+        }
+        frameLocals.addAll(argsStackMapList);
+        int lastSaved = nLocals - 1;
+        while (lastSaved >= 0 && savedLocals[lastSaved] == null) {
+            lastSaved--;
+        }
+        int i = isStatic ? 0 : 1;
+        while (i <= lastSaved) {
+            Type local = savedLocals[i];
+            frameLocals.add(getFrameOpcode(local));
+            i += local != null ? local.getSize() : 1;
+        }
+        saveBlocksCode.add(new FrameNode(F_FULL, frameLocals.size(), frameLocals.toArray(), 0, new Object[0]));
+        for (i = 0; i <= lastSaved; i++) {
+            Type local = savedLocals[i];
+            if (local != null) {
+                saveBlocksCode.add(saveLocal(i, local));
+            }
+        }
+        saveBlocksCode.add(new VarInsnNode(ALOAD, frame));
+        saveBlocksCode.add(new VarInsnNode(ILOAD, state));
+        saveBlocksCode.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "setState", "(I)V"));
+        saveBlocksCode.add(new JumpInsnNode(GOTO, yieldLabel));
+        return saveBlock;
+    }
+
     private InsnList input(Type type) {
         InsnList insn = new InsnList();
         if (type != null) {
@@ -499,6 +678,70 @@ final class MethodTransformer implements Opcodes {
         return fullLocals;
     }
 
+    /**
+     * Yields restoring the same locals jump from state switch to one block of
+     * code which restores them and switches on state once again to resume
+     * each yield. Block is shared only if it makes code smaller, otherwise
+     * restoring code is put back in front of each yield
+     */
+    private void shareRestoreBlocks(InsnList code, List<LabelNode> gotos) {
+        for (RestoreBlock restoreBlock : restoreBlocks.values()) {
+            InsnList restore = restoreLocals(restoreBlock.locals);
+            int restoreSize = getCodeSize(restore);
+            int nYields = restoreBlock.states.size();
+            InsnList shared = new InsnList();
+            LabelNode sharedLabel = new LabelNode();
+            shared.add(sharedLabel);
+            shared.add(emitCleanFrame());
+            shared.add(restore);
+            shared.add(new VarInsnNode(ILOAD, state));
+            int minState = restoreBlock.states.get(0);
+            int maxState = restoreBlock.states.get(nYields - 1);
+            LabelNode defaultBranch = restoreBlock.resumes.get(0);
+            if (maxState - minState + 1 <= 2 * nYields) {
+                LabelNode[] labels = new LabelNode[maxState - minState + 1];
+                Arrays.fill(labels, defaultBranch);
+                for (int i = 0; i < nYields; i++) {
+                    labels[restoreBlock.states.get(i) - minState] = restoreBlock.resumes.get(i);
+                }
+                shared.add(new TableSwitchInsnNode(minState, maxState, defaultBranch, labels));
+            } else {
+                int[] keys = new int[nYields];
+                for (int i = 0; i < nYields; i++) {
+                    keys[i] = restoreBlock.states.get(i);
+                }
+                shared.add(new LookupSwitchInsnNode(defaultBranch, keys,
+                                                    restoreBlock.resumes.toArray(new LabelNode[nYields])));
+            }
+            int sharedSize = getCodeSize(shared);
+            if (sharedSize < nYields * restoreSize) {
+                restoreBlocksCode.add(shared);
+                for (int yieldState : restoreBlock.states) {
+                    gotos.set(yieldState - 1, sharedLabel);
+                }
+                restoreBytesSaved += nYields * restoreSize - sharedSize;
+            } else {
+                for (int i = 0; i < nYields; i++) {
+                    InsnList inline = new InsnList();
+                    inline.add(gotos.get(restoreBlock.states.get(i) - 1));
+                    // two frames must not share an offset
+                    if (restoreSize > 0) {
+                        inline.add(emitCleanFrame());
+                        inline.add(restoreLocals(restoreBlock.locals));
+                    }
+                    code.insertBefore(restoreBlock.resumes.get(i), inline);
+                }
+            }
+        }
+    }
+
+    private InsnList restoreLocal(int index, Type type) {
+        if (arena) {
+            return getcol(frame, index + variableIndexOffset, index, type);
+        }
+        return getloc(localsArray, index + variableIndexOffset, index, type);
+    }
+
     private InsnList restoreLocals(Type[] locals) {
         // restore saved locals
         int varIndex = isStatic ? 0 : 1;
@@ -507,7 +750,7 @@ final class MethodTransformer implements Opcodes {
         while (varIndex < nLocals) {
             Type t = locals[varIndex];
             if (t != null) {
-                insn.add(getloc(localsArray, varIndex + variableIndexOffset, varIndex, t));
+                insn.add(restoreLocal(varIndex, t));
                 varIndex += t.getSize();
             } else {
                 varIndex += 1;
@@ -516,109 +759,60 @@ final class MethodTransformer implements Opcodes {
         return insn;
     }
 
-    private InsnList saveLocals(Type[] locals) {
+    private InsnList saveLocal(int index, Type type) {
+        if (arena) {
+            return savecol(frame, index + variableIndexOffset, index, type);
+        }
+        return saveloc(localsArray, index + variableIndexOffset, index, type);
+    }
+
+    private InsnList saveLocals(Type[] locals, BitSet writtenLocals) {
         InsnList insn = new InsnList();
         int nLocals = locals.length;
-        for (int i = 0; i < nLocals; i++) {
+        for (int i = isStatic ? 0 : 1; i < nLocals; i++) {
             Type local = locals[i];
-            if (local != null && !finals[i]) {
-                insn.add(saveloc(localsArray, i + variableIndexOffset, i, local));
-                finals[i] = true;
+            if (local != null && writtenLocals.get(i)) {
+                insn.add(saveLocal(i, local));
             }
         }
         return insn;
     }
 
+    /**
+     * @param compact
+     *            generate smaller, but slower code for coroutines whose
+     *            methods would be too big to be compiled by JIT - yields share
+     *            blocks saving locals too
+     */
     @SuppressWarnings("unchecked")
-    MethodNode transform(String coroutineName, boolean generateDebugCode) {
+    MethodNode transform(String coroutineName, boolean generateDebugCode, boolean compact) {
         MethodNode transformedMethod = new MethodNode();
         transformedMethod.access = ACC_PUBLIC | ACC_FINAL | (method.access & ACC_STATIC);
         transformedMethod.name = coroutineName;
         transformedMethod.desc = COROUTINE_METHOD_DESCRIPTOR;
         transformedMethod.exceptions = method.exceptions;
         final InsnList newCode = transformedMethod.instructions;
-        Analyzer analyzer = new Analyzer(new BasicInterpreter() {
+        final Set<Integer>[] successors = new Set[method.instructions.size()];
+        final Set<Integer>[] handlers = new Set[method.instructions.size()];
+        Analyzer analyzer = new Analyzer(new HierarchyInterpreter(hierarchy)) {
 
             @Override
-            public Value binaryOperation(AbstractInsnNode insn, Value value1, Value value2) throws AnalyzerException {
-                if (insn.getOpcode() == AALOAD) {
-                    return new BasicValue(((BasicValue) value1).getType().getElementType());
+            protected void newControlFlowEdge(int insn, int successor) {
+                if (successors[insn] == null) {
+                    successors[insn] = new HashSet<Integer>();
                 }
-                return super.binaryOperation(insn, value1, value2);
-            };
-
-            @Override
-            public Value merge(Value v, Value w) {
-                if (v == NULL_VALUE) {
-                    BasicValue w1 = (BasicValue) w;
-                    if (w1.isReference()) {
-                        return w1;
-                    }
-                }
-                if (w == NULL_VALUE) {
-                    BasicValue v1 = (BasicValue) v;
-                    if (v1.isReference())
-                        return v1;
-                }
-                if (!v.equals(w)) {
-                    BasicValue v1 = (BasicValue) v;
-                    BasicValue w1 = (BasicValue) w;
-                    if (v1.isReference() & w1.isReference()) {
-                        Class<?> c1;
-                        Class<?> c2;
-                        try {
-                            c1 = MethodTransformer.getClass(v1);
-                            c2 = MethodTransformer.getClass(w1);
-                        } catch (ClassNotFoundException e) {
-                            throw new CoroutineGenerationException(
-                                                                   "It was needed to load a class during transformation process but loading unexpectedly failed",
-                                                                   e);
-                        }
-                        if (c1.isAssignableFrom(c2)) {
-                            return v;
-                        }
-                        if (c2.isAssignableFrom(c1)) {
-                            return w;
-                        }
-                    }
-                } else {
-                    return v;
-                }
-                return BasicValue.UNINITIALIZED_VALUE;
+                successors[insn].add(successor);
             }
 
             @Override
-            public Value newValue(Type type) {
-                if (type != null) {
-                    int typeSort = type.getSort();
-                    switch (typeSort) {
-                        case Type.VOID:
-                            return NULL_VALUE;
-                        case Type.BOOLEAN:
-                        case Type.CHAR:
-                        case Type.BYTE:
-                        case Type.SHORT:
-                        case Type.INT:
-                            return BasicValue.INT_VALUE;
-                        case Type.FLOAT:
-                            return BasicValue.FLOAT_VALUE;
-                        case Type.LONG:
-                            return BasicValue.LONG_VALUE;
-                        case Type.DOUBLE:
-                            return BasicValue.DOUBLE_VALUE;
-                        case Type.ARRAY:
-                        case Type.OBJECT:
-                            if (type.getInternalName().equals("null")) {
-                                return NULL_VALUE;
-                            }
-                            return new BasicValue(type);
-                        default:
-                            throw new Error("Internal error");
-                    }
+            protected boolean newControlFlowExceptionEdge(int insn, int successor) {
+                if (handlers[insn] == null) {
+                    handlers[insn] = new HashSet<Integer>();
                 }
-                return BasicValue.UNINITIALIZED_VALUE;
+                handlers[insn].add(successor);
+                return true;
             }
-        });
+        };
         Frame[] frames;
         try {
             frames = analyzer.analyze(methodOwner, method);
@@ -661,8 +855,17 @@ final class MethodTransformer implements Opcodes {
                         case LRETURN:
                         case ARETURN:
                         case RETURN:
-                            newCode.add(new InsnNode(POP));
-                            newCode.add(throwex("java/util/NoSuchElementException"));
+                            if (suspendable) {
+                                // closed state tells caller it is result
+                                newCode.add(box(Type.getReturnType(this.method.desc)));
+                                newCode.add(new VarInsnNode(ALOAD, this.frame));
+                                newCode.add(new InsnNode(ICONST_M1));
+                                newCode.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "setState", "(I)V"));
+                                newCode.add(new InsnNode(ARETURN));
+                            } else {
+                                newCode.add(new InsnNode(POP));
+                                newCode.add(throwex("java/util/NoSuchElementException"));
+                            }
                         break;
                         default:
                             newCode.add(insn.clone(labelsMap));
@@ -688,6 +891,32 @@ final class MethodTransformer implements Opcodes {
                 case AbstractInsnNode.METHOD_INSN:
                     if (insn.getOpcode() == INVOKESTATIC) {
                         MethodInsnNode method = (MethodInsnNode) insn;
+                        if (method.owner.equals(FRAME_NAME)) {
+                            /*
+                             * calls made to frame of coroutine before it was
+                             * transformed, see YieldBatcher and
+                             * ClassTransformer.rewriteTransfers
+                             */
+                            int argumentsSize = 0;
+                            for (Type argument : Type.getArgumentTypes(method.desc)) {
+                                argumentsSize += argument.getSize();
+                            }
+                            newCode.add(new VarInsnNode(ALOAD, this.frame));
+                            // frame goes under arguments, which take no more
+                            // than two slots
+                            if (argumentsSize == 1) {
+                                newCode.add(new InsnNode(SWAP));
+                            } else if (argumentsSize == 2) {
+                                // two values of one slot or one of two
+                                newCode.add(new InsnNode(DUP_X2));
+                                newCode.add(new InsnNode(POP));
+                            } else if (argumentsSize != 0) {
+                                throw new CoroutineGenerationException("Frame." + method.name + method.desc
+                                                                       + " cannot be called by coroutine");
+                            }
+                            newCode.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, method.name, method.desc));
+                            break;
+                        }
                         if (method.owner.equals(COROUTINES_NAME)) {
                             String methodName = method.name;
                             if (methodName.equals("_")) {
@@ -727,6 +956,7 @@ final class MethodTransformer implements Opcodes {
             }
             ic += 1;
         }
+        BitSet[] writtenLocals = getWrittenLocals(code, yields, successors, handlers);
         /*
          * patch yields in transformed code
          */
@@ -736,21 +966,10 @@ final class MethodTransformer implements Opcodes {
         i = newCode.iterator();
         while (i.hasNext()) {
             AbstractInsnNode insn = i.next();
-            /*
-             * track locals
-             */
-            int insnType = insn.getType();
-            if (insnType == AbstractInsnNode.VAR_INSN) {
-                int opcode = insn.getOpcode();
-                if (opcode == ASTORE || opcode == DSTORE || opcode == LSTORE || opcode == ISTORE || opcode == FSTORE) {
-                    int varIndex = ((VarInsnNode) insn).var - variableIndexOffset;
-                    finals[varIndex] = false;
-                }
-                continue;
-            }
             /*
              * track line numbers
              */
+            int insnType = insn.getType();
             if (insnType == AbstractInsnNode.LINE) {
                 lineNumber = ((LineNumberNode) insn).line;
                 continue;
@@ -765,6 +984,7 @@ final class MethodTransformer implements Opcodes {
             InsnList yieldCode = new InsnList();
             int index = yields.get(yieldIndex);
             Frame f = frames[index];
+            BitSet written = writtenLocals[yieldIndex];
             /*
              * a) operand on the top of stack is passed to the caller, we will
              * save it in 'in' parameter OR there is nothing to be passed to the
@@ -799,10 +1019,15 @@ final class MethodTransformer implements Opcodes {
              * c) save locals and state
              */
             Type[] locals = getLocals(f);
-            yieldCode.add(saveLocals(locals));
-            yieldCode.add(new VarInsnNode(ALOAD, frame));
-            yieldCode.add(makeInt(++yieldIndex));
-            yieldCode.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "setState", "(I)V"));
+            if (compact) {
+                yieldCode.add(makeInt(++yieldIndex));
+                yieldCode.add(new VarInsnNode(ISTORE, state));
+            } else {
+                yieldCode.add(saveLocals(locals, written));
+                yieldCode.add(new VarInsnNode(ALOAD, frame));
+                yieldCode.add(makeInt(++yieldIndex));
+                yieldCode.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "setState", "(I)V"));
+            }
             /*
              * d) jump to exit - in debug mode save line number
              */
@@ -811,28 +1036,14 @@ final class MethodTransformer implements Opcodes {
                 yieldCode.add(makeInt(lineNumber));
                 yieldCode.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "setLineOfCode", "(I)V"));
             }
-            yieldCode.add(new JumpInsnNode(GOTO, yieldLabel));
+            yieldCode.add(new JumpInsnNode(GOTO, compact ? getSaveBlock(locals, written) : yieldLabel));
             /*
              * e) fix jump from switch statement
              */
             LabelNode jump = new LabelNode();
             gotos.add(jump);
-            yieldCode.add(jump);
-            yieldCode.add(emitCleanFrame());
-            /*
-             * f) check if exit condition occurs, load locals, restore stack and
-             * stack map
-             */
-            yieldCode.add(new VarInsnNode(ALOAD, frame));
-            yieldCode.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "isCoroutineClosed", "()Z"));
-            LabelNode continueHere = new LabelNode();
-            yieldCode.add(new JumpInsnNode(IFEQ, continueHere));
-            yieldCode.add(throwex(COROUTINE_EXIT_EXCEPTION));
-            yieldCode.add(continueHere);
-            yieldCode.add(new FrameNode(F_SAME, 0, EMPTY_LOCALS, 0, EMPTY_STACK));
             /*
-             * find previous frame node, load locals then emit new frame node
-             * and load rest
+             * find previous frame node, its locals are restored first
              */
             FrameNode prevFrame = findPreviousFrame(code.get(index));
             Type[] prevLocals;
@@ -842,13 +1053,22 @@ final class MethodTransformer implements Opcodes {
             } else {
                 prevLocals = getLocals(frames[0]);
             }
-            yieldCode.add(restoreLocals(prevLocals));
-            FrameNode frameNode = mergeFrames(getFrameTypes(prevLocals), null);
-            if (frameNode.type != F_SAME) {
-                // bug fix - when no locals are restored and the stack is empty
-                // two frames are collapsed
-                yieldCode.add(frameNode);
-            }
+            /*
+             * f) load locals, check if exit condition occurs, restore stack and
+             * stack map - locals of previous frame are restored by a block
+             * placed later, in front of yield or shared by yields restoring the
+             * same locals
+             */
+            RestoreBlock restoreBlock = getRestoreBlock(prevLocals);
+            LabelNode resume = new LabelNode();
+            restoreBlock.states.add(yieldIndex);
+            restoreBlock.resumes.add(resume);
+            yieldCode.add(resume);
+            Type[] resumeTypes = getFrameTypes(prevLocals);
+            Object[] resumeLocals = mergeLocals(resumeTypes, resumeTypes.length);
+            yieldCode.add(new FrameNode(F_FULL, resumeLocals.length, resumeLocals, 0, new Object[0]));
+            yieldCode.add(new VarInsnNode(ALOAD, frame));
+            yieldCode.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "checkCoroutineExit", "()V"));
             if (nonemptyStack) {
                 yieldCode.add(loadstack(frame, stackContents, stackTop));
             }
@@ -872,19 +1092,27 @@ final class MethodTransformer implements Opcodes {
                         FrameNode catchFrame = emitCatchFrame(exceptionType);
                         handlerPatch.add(catchFrame);
                         Type[] ls = getLocals(frames[code.indexOf(handler)]);
-                        handlerPatch.add(restoreLocals(ls));
-                        handlerPatch.add(mergeFrames(getFrameTypes(ls),
-                                                     new Type[] { Type.getObjectType(exceptionType) }));
+                        InsnList restore = restoreLocals(ls);
+                        // two frames must not share an offset
+                        if (restore.size() > 0) {
+                            handlerPatch.add(restore);
+                            handlerPatch.add(mergeFrames(getFrameTypes(ls),
+                                                         new Type[] { Type.getObjectType(exceptionType) }));
+                        }
                         patchedTryCatchBlocks.add(tryCatchBlock);
                         AbstractInsnNode newHandler = labelsMap.get(handler);
                         // remove "real" frame since it is not needed now
-                        newCode.remove(findNextFrame(newHandler));
+                        FrameNode realFrame = findNextFrame(newHandler);
+                        if (realFrame != null) {
+                            newCode.remove(realFrame);
+                        }
                         newCode.insert(newHandler, handlerPatch);
                     }
                 }
             }
             newCode.remove(method);
         }
+        shareRestoreBlocks(newCode, gotos);
         /*
          * copy local variables (wath out for indices change) and try catch
          * blocks to new method (clone)
@@ -919,6 +1147,17 @@ final class MethodTransformer implements Opcodes {
         return transformedMethod;
     }
 
+    private static final class RestoreBlock {
+
+        final Type[]          locals;
+        final List<LabelNode> resumes = new ArrayList<LabelNode>();
+        final List<Integer>   states  = new ArrayList<Integer>();
+
+        RestoreBlock(Type[] locals) {
+            this.locals = locals;
+        }
+    }
+
     private static final Object[]     argsStackMapArray   = new Object[] { FRAME_NAME, "java/lang/Object",
             "java/lang/Object", INTEGER, "[Ljava/lang/Object;" };
     private static final List<Object> argsStackMapList    = Arrays.asList(argsStackMapArray);
@@ -926,7 +1165,6 @@ final class MethodTransformer implements Opcodes {
     private static final Value        BOOLEAN_VALUE       = new BasicValue(Type.BOOLEAN_TYPE);
     private static final Value        BYTE_VALUE          = new BasicValue(Type.BYTE_TYPE);
     private static final Value        CHAR_VALUE          = new BasicValue(Type.CHAR_TYPE);
-    private static final Value        NULL_VALUE          = new BasicValue(Type.VOID_TYPE);
     private static final Value        SHORT_VALUE         = new BasicValue(Type.SHORT_TYPE);
     private static final int          variableIndexOffset = 5;
 }
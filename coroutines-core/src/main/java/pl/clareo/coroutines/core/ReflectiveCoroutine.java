@@ -0,0 +1,114 @@
+/*
+ * Copyright 2009-2010 Marcin Rzeźnicki
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package pl.clareo.coroutines.core;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Calls coroutines of classes instrumented by redefinition or retransformation.
+ * Redefined class cannot gain methods (since Java 13 not even private ones), so
+ * implementation of a coroutine new to a loaded class is put into the method
+ * of the coroutine itself, which first asks {@link Frame#takeResumedInPlace()}
+ * if it is resumed or called to create coroutine. CoIterator looks the method
+ * up once when it is initialized and invokes it reflectively with default
+ * arguments, input and yielded value are handed over by frame. Public, as
+ * CoIterators defined by loaders of their owners are in another runtime
+ * package
+ */
+public final class ReflectiveCoroutine {
+
+    /*
+     * zeros of primitive types, nulls otherwise
+     */
+    private static Object[] defaultArguments(Method coroutine) {
+        Class<?>[] parameterTypes = coroutine.getParameterTypes();
+        Object[] arguments = new Object[parameterTypes.length];
+        for (int i = 0; i < arguments.length; i++) {
+            if (parameterTypes[i].isPrimitive()) {
+                arguments[i] = Array.get(Array.newInstance(parameterTypes[i], 1), 0);
+            }
+        }
+        return arguments;
+    }
+
+    private static String descriptor(Class<?> type) {
+        if (type.isArray()) {
+            return type.getName().replace('.', '/');
+        }
+        if (!type.isPrimitive()) {
+            return "L" + type.getName().replace('.', '/') + ";";
+        }
+        if (type == boolean.class) {
+            return "Z";
+        }
+        if (type == long.class) {
+            return "J";
+        }
+        if (type == void.class) {
+            return "V";
+        }
+        // B, C, D, F, I, S
+        return String.valueOf(Character.toUpperCase(type.getName().charAt(0)));
+    }
+
+    public static Method find(Class<?> owner, String name, String desc) {
+        for (Method method : owner.getDeclaredMethods()) {
+            if (method.getName().equals(name) && methodDescriptor(method).equals(desc)) {
+                method.setAccessible(true);
+                return method;
+            }
+        }
+        throw new NoSuchMethodError(owner.getName() + "." + name + desc);
+    }
+
+    public static Object invoke(Method coroutine, Object thisObject, Frame frame, Object input) {
+        frame.resumeInPlace(input);
+        try {
+            coroutine.invoke(thisObject, defaultArguments(coroutine));
+            return frame.takeInPlaceValue();
+        } catch (IllegalAccessException e) {
+            throw new IllegalAccessError(e.getMessage());
+        } catch (InvocationTargetException e) {
+            ReflectiveCoroutine.<RuntimeException> rethrow(e.getCause());
+            return null;
+        } finally {
+            // left if method was not entered
+            Frame.takeResumedInPlace();
+        }
+    }
+
+    private static String methodDescriptor(Method method) {
+        StringBuilder desc = new StringBuilder("(");
+        for (Class<?> parameterType : method.getParameterTypes()) {
+            desc.append(descriptor(parameterType));
+        }
+        return desc.append(')').append(descriptor(method.getReturnType())).toString();
+    }
+
+    /*
+     * coroutine's exceptions, checked ones too, have to reach its caller
+     * unwrapped
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends Throwable> void rethrow(Throwable t) throws T {
+        throw (T) t;
+    }
+
+    private ReflectiveCoroutine() {
+    }
+}
@@ -15,7 +15,11 @@ limitations under the License.
  */
 package pl.clareo.coroutines.core;
 
-abstract class SingleThreadedCoIterator<E, A> extends CoIteratorInternal<E, A> {
+/**
+ * Base of CoIterators keeping one frame. Public, as CoIterators defined by
+ * loaders of their owners are in another runtime package
+ */
+public abstract class SingleThreadedCoIterator<E, A> extends CoIteratorInternal<E, A> {
 
     private final Frame frame;
 
@@ -28,6 +28,14 @@ final class StringConstants {
     static final String COROUTINE_METHOD_DESCRIPTOR        =
                                                              "(Lpl/clareo/coroutines/core/Frame;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;";
     static final String COROUTINES_NAME                    = "pl/clareo/coroutines/user/Coroutines";
+    static final String FRAME_ARENA_NAME                   = "pl/clareo/coroutines/core/FrameArena";
     static final String FRAME_NAME                         = "pl/clareo/coroutines/core/Frame";
     static final String INVALID_COROUTINE_EXCEPTION        = "pl/clareo/coroutines/user/InvalidCoroutineException";
+    static final String LAZY_CO_ITERATORS_NAME             = "pl/clareo/coroutines/core/LazyCoIterators";
+    static final String LAZY_FACTORY_NAME                  = "pl/clareo/coroutines/core/LazyCoIterators$Factory";
+    static final String REFLECTIVE_COROUTINE_NAME          = "pl/clareo/coroutines/core/ReflectiveCoroutine";
+    static final String REFLECTIVE_INVOKE_DESCRIPTOR       =
+                                                             "(Ljava/lang/reflect/Method;Ljava/lang/Object;Lpl/clareo/coroutines/core/Frame;Ljava/lang/Object;)Ljava/lang/Object;";
+    static final String SHARED_CONSTRUCTOR_DESCRIPTOR      = "(Lpl/clareo/coroutines/core/Frame;I)V";
+    static final String SUSPENDABLE_DESCRIPTOR             = "Lpl/clareo/coroutines/user/Suspendable;";
 }
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2009-2010 Marcin Rzeźnicki
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package pl.clareo.coroutines.core;
+
+import static pl.clareo.coroutines.core.CodeGenerationUtils.unbox;
+import static pl.clareo.coroutines.core.StringConstants.COROUTINES_NAME;
+import static pl.clareo.coroutines.core.StringConstants.COROUTINE_EXIT_EXCEPTION;
+import static pl.clareo.coroutines.core.StringConstants.COROUTINE_METHOD_DESCRIPTOR;
+import static pl.clareo.coroutines.core.StringConstants.FRAME_NAME;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+/**
+ * Turns calls to suspendable methods of the class, made by coroutines or
+ * suspendable methods, into suspension points. Suspendable method is
+ * transformed into state machine as coroutine is, its frame is created by a
+ * factory method and kept in a local of the caller - so frames of calls form a
+ * chain rooted at the frame of coroutine. Call runs the state machine until it
+ * returns; values it yields are yielded by the caller, which on resume passes
+ * value it was sent down the chain:
+ * 
+ * <pre>
+ * Frame callee = factory(args);
+ * Object sent = null;
+ * Object result;
+ * while (true) {
+ *     result = stateMachine(callee, null, sent);
+ *     if (callee.getState() == Frame.CLOSED_STATE) {
+ *         break;
+ *     }
+ *     try {
+ *         sent = yield(result);
+ *     } catch (CoroutineExitException e) {
+ *         callee.markCoroutineClosed();
+ *         stateMachine(callee, null, null);
+ *         throw e;
+ *     }
+ * }
+ * (R) result
+ * </pre>
+ * 
+ * Closing coroutine closes the chain from the deepest call, so that their
+ * finally blocks run
+ */
+final class SuspendableCalls implements Opcodes {
+
+    static String getFactoryDescriptor(String owner, MethodNode suspendable) {
+        Type[] argsTypes = Type.getArgumentTypes(suspendable.desc);
+        if ((suspendable.access & ACC_STATIC) == 0) {
+            Type[] argsWithThis = new Type[argsTypes.length + 1];
+            argsWithThis[0] = Type.getObjectType(owner);
+            System.arraycopy(argsTypes, 0, argsWithThis, 1, argsTypes.length);
+            argsTypes = argsWithThis;
+        }
+        return Type.getMethodDescriptor(Type.getObjectType(FRAME_NAME), argsTypes);
+    }
+
+    static String getFactoryName(String stateMachineName) {
+        return stateMachineName + "$frame";
+    }
+
+    private final FrameComputer           frames;
+    private final Map<String, String>     stateMachineNames = new HashMap<String, String>();
+    private final Map<String, MethodNode> suspendables      = new HashMap<String, MethodNode>();
+    private final ClassNode               thisNode;
+
+    /**
+     * @param stateMachineNames
+     *            names of state machines of suspendable methods, in order of
+     *            the methods
+     */
+    SuspendableCalls(ClassNode node, List<MethodNode> suspendables, List<String> stateMachineNames, TypeHierarchy hierarchy) {
+        this.thisNode = node;
+        this.frames = new FrameComputer(node, hierarchy);
+        for (int i = 0; i < suspendables.size(); i++) {
+            MethodNode suspendable = suspendables.get(i);
+            this.suspendables.put(suspendable.name + suspendable.desc, suspendable);
+            this.stateMachineNames.put(suspendable.name + suspendable.desc, stateMachineNames.get(i));
+        }
+    }
+
+    private InsnList callStateMachine(MethodNode suspendable, String stateMachineName, int callee, boolean send,
+                                      int sent) {
+        InsnList insn = new InsnList();
+        boolean isStatic = (suspendable.access & ACC_STATIC) != 0;
+        if (!isStatic) {
+            insn.add(new VarInsnNode(ALOAD, callee));
+            insn.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "getThis", "()Ljava/lang/Object;"));
+            insn.add(new TypeInsnNode(CHECKCAST, thisNode.name));
+        }
+        insn.add(new VarInsnNode(ALOAD, callee));
+        insn.add(new InsnNode(ACONST_NULL));
+        if (send) {
+            insn.add(new VarInsnNode(ALOAD, sent));
+        } else {
+            insn.add(new InsnNode(ACONST_NULL));
+        }
+        // state machines are private, they are called from the class only
+        insn.add(new MethodInsnNode(isStatic ? INVOKESTATIC : INVOKESPECIAL, thisNode.name, stateMachineName,
+                                    COROUTINE_METHOD_DESCRIPTOR));
+        return insn;
+    }
+
+    private MethodNode getSuspendable(MethodInsnNode call) {
+        if (!call.owner.equals(thisNode.name)) {
+            return null;
+        }
+        MethodNode suspendable = suspendables.get(call.name + call.desc);
+        if (suspendable == null || ((suspendable.access & ACC_STATIC) != 0) != (call.getOpcode() == INVOKESTATIC)) {
+            return null;
+        }
+        return suspendable;
+    }
+
+    /**
+     * Rewrites calls to suspendable methods found in method
+     * 
+     * @return true if method was changed
+     */
+    @SuppressWarnings("unchecked")
+    boolean rewrite(MethodNode method) {
+        List<MethodInsnNode> calls = new ArrayList<MethodInsnNode>();
+        Iterator<AbstractInsnNode> i = method.instructions.iterator();
+        while (i.hasNext()) {
+            AbstractInsnNode insn = i.next();
+            if (insn.getType() == AbstractInsnNode.METHOD_INSN && getSuspendable((MethodInsnNode) insn) != null) {
+                calls.add((MethodInsnNode) insn);
+            }
+        }
+        if (calls.isEmpty()) {
+            return false;
+        }
+        // calls do not overlap, they share two locals
+        int callee = method.maxLocals;
+        int sent = callee + 1;
+        method.maxLocals += 2;
+        method.maxStack += 4;
+        for (MethodInsnNode call : calls) {
+            MethodNode suspendable = getSuspendable(call);
+            String stateMachineName = stateMachineNames.get(call.name + call.desc);
+            InsnList callSite = new InsnList();
+            callSite.add(new MethodInsnNode(INVOKESTATIC, thisNode.name, getFactoryName(stateMachineName),
+                                            getFactoryDescriptor(thisNode.name, suspendable)));
+            callSite.add(new VarInsnNode(ASTORE, callee));
+            callSite.add(new InsnNode(ACONST_NULL));
+            callSite.add(new VarInsnNode(ASTORE, sent));
+            LabelNode resume = new LabelNode();
+            LabelNode returned = new LabelNode();
+            LabelNode yieldStart = new LabelNode();
+            LabelNode yieldEnd = new LabelNode();
+            LabelNode closed = new LabelNode();
+            callSite.add(resume);
+            callSite.add(callStateMachine(suspendable, stateMachineName, callee, true, sent));
+            callSite.add(new VarInsnNode(ALOAD, callee));
+            callSite.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "getState", "()I"));
+            callSite.add(new InsnNode(ICONST_M1));
+            callSite.add(new JumpInsnNode(IF_ICMPEQ, returned));
+            callSite.add(yieldStart);
+            callSite.add(new MethodInsnNode(INVOKESTATIC, COROUTINES_NAME, "yield",
+                                            "(Ljava/lang/Object;)Ljava/lang/Object;"));
+            callSite.add(yieldEnd);
+            callSite.add(new VarInsnNode(ASTORE, sent));
+            callSite.add(new JumpInsnNode(GOTO, resume));
+            // handler stays in the scope of handlers of the call
+            callSite.add(closed);
+            callSite.add(new VarInsnNode(ALOAD, callee));
+            callSite.add(new MethodInsnNode(INVOKEVIRTUAL, FRAME_NAME, "markCoroutineClosed", "()V"));
+            callSite.add(callStateMachine(suspendable, stateMachineName, callee, false, sent));
+            callSite.add(new InsnNode(POP));
+            callSite.add(new InsnNode(ATHROW));
+            callSite.add(returned);
+            callSite.add(unbox(Type.getReturnType(call.desc)));
+            method.instructions.insert(call, callSite);
+            method.instructions.remove(call);
+            method.tryCatchBlocks.add(0, new TryCatchBlockNode(yieldStart, yieldEnd, closed,
+                                                               COROUTINE_EXIT_EXCEPTION));
+        }
+        frames.computeFrames(method);
+        if (log.isLoggable(Level.FINE)) {
+            log.fine(calls.size() + " calls to suspendable methods in " + thisNode.name.replace('/', '.') + "."
+                     + method.name + method.desc + " made suspension points");
+        }
+        return true;
+    }
+
+    private static final Logger log = Logger.getLogger("pl.clareo.coroutines.SuspendableCalls");
+}
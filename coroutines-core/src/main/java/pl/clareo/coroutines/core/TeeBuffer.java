@@ -0,0 +1,206 @@
+/*
+ * Copyright 2009-2010 Marcin Rzeźnicki
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package pl.clareo.coroutines.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import pl.clareo.coroutines.user.CoroutineClosedException;
+import pl.clareo.coroutines.user.LagPolicy;
+import pl.clareo.coroutines.user.TeeIterator;
+
+/**
+ * Circular buffer shared by consumers of coroutine's results. Buffer holds
+ * results between the slowest and the foremost consumer, coroutine is called
+ * only when the foremost consumer needs more
+ */
+final class TeeBuffer<E> {
+
+    private final Object[]                 buffer;
+    private final boolean[]                closed;
+    private final CoIteratorInternal<E, ?> coroutine;
+    private final boolean[]                detached;
+    private boolean                        exhausted;
+    private long                           head;
+    private final LagPolicy                policy;
+    private final long[]                   positions;
+
+    TeeBuffer(CoIteratorInternal<E, ?> coroutine, int n, int bufferSize, LagPolicy policy) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("n <= 0");
+        }
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize <= 0");
+        }
+        this.coroutine = coroutine;
+        this.buffer = new Object[bufferSize];
+        this.positions = new long[n];
+        this.detached = new boolean[n];
+        this.closed = new boolean[n];
+        this.policy = policy;
+    }
+
+    /*
+     * waits (or detaches lagging consumers) until there is room for one more
+     * result and fetches it; returns false if coroutine has been exhausted
+     */
+    private boolean fetch(int consumer) {
+        int capacity = buffer.length;
+        while (head - tail() >= capacity) {
+            if (policy == LagPolicy.BLOCK) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for lagging consumers", e);
+                }
+                if (closed[consumer]) {
+                    return false;
+                }
+                checkDetached(consumer);
+                if (positions[consumer] < head) {
+                    return true;
+                }
+            } else {
+                long tail = tail();
+                for (int i = 0; i < positions.length; i++) {
+                    if (!detached[i] && positions[i] == tail) {
+                        detached[i] = true;
+                    }
+                }
+            }
+        }
+        if (exhausted) {
+            return false;
+        }
+        try {
+            buffer[(int) (head % capacity)] = coroutine.next();
+            head++;
+        } catch (NoSuchElementException e) {
+            exhausted = true;
+        } catch (CoroutineClosedException e) {
+            exhausted = true;
+        }
+        notifyAll();
+        return !exhausted;
+    }
+
+    /*
+     * results which only this consumer still needed are released, waiting
+     * consumers are woken up as there may be room now
+     */
+    synchronized void close(int consumer) {
+        if (closed[consumer]) {
+            return;
+        }
+        long tail = tail();
+        closed[consumer] = true;
+        long newTail = tail();
+        for (long position = tail; position < newTail; position++) {
+            buffer[(int) (position % buffer.length)] = null;
+        }
+        notifyAll();
+        for (boolean isClosed : closed) {
+            if (!isClosed) {
+                return;
+            }
+        }
+        coroutine.close();
+    }
+
+    private void checkDetached(int consumer) {
+        if (detached[consumer]) {
+            throw new IllegalStateException("Consumer " + consumer + " lagged more than " + buffer.length
+                                            + " results behind");
+        }
+    }
+
+    synchronized boolean hasNext(int consumer) {
+        if (closed[consumer]) {
+            return false;
+        }
+        checkDetached(consumer);
+        while (positions[consumer] == head) {
+            if (exhausted || !fetch(consumer)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    List<TeeIterator<E>> iterators() {
+        int n = positions.length;
+        List<TeeIterator<E>> iterators = new ArrayList<TeeIterator<E>>(n);
+        for (int i = 0; i < n; i++) {
+            final int consumer = i;
+            iterators.add(new TeeIterator<E>() {
+
+                @Override
+                public void close() {
+                    TeeBuffer.this.close(consumer);
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return TeeBuffer.this.hasNext(consumer);
+                }
+
+                @Override
+                public E next() {
+                    return TeeBuffer.this.next(consumer);
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            });
+        }
+        return iterators;
+    }
+
+    @SuppressWarnings("unchecked")
+    synchronized E next(int consumer) {
+        if (!hasNext(consumer)) {
+            throw new NoSuchElementException();
+        }
+        long position = positions[consumer]++;
+        int index = (int) (position % buffer.length);
+        E e = (E) buffer[index];
+        if (position == tail() - 1) {
+            // no one needs this result any more
+            buffer[index] = null;
+        }
+        if (policy == LagPolicy.BLOCK) {
+            notifyAll();
+        }
+        return e;
+    }
+
+    /*
+     * position of the slowest consumer still attached and not closed
+     */
+    private long tail() {
+        long tail = head;
+        for (int i = 0; i < positions.length; i++) {
+            if (!detached[i] && !closed[i] && positions[i] < tail) {
+                tail = positions[i];
+            }
+        }
+        return tail;
+    }
+}
@@ -15,7 +15,11 @@
  */
 package pl.clareo.coroutines.core;
 
-abstract class ThreadLocalCoIterator<E, A> extends CoIteratorInternal<E, A> {
+/**
+ * Base of CoIterators keeping a frame for each thread. Public, as CoIterators
+ * defined by loaders of their owners are in another runtime package
+ */
+public abstract class ThreadLocalCoIterator<E, A> extends CoIteratorInternal<E, A> {
 
     private final ThreadLocal<Frame> threadLocalFrame;
 
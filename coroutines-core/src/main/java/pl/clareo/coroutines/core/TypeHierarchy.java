@@ -0,0 +1,247 @@
+/*
+ * Copyright 2009-2010 Marcin Rzeźnicki
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package pl.clareo.coroutines.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.ClassNode;
+
+/**
+ * Answers subtyping questions asked during instrumentation by reading class
+ * files through loader's resources, so that no class is loaded (let alone
+ * initialized) from within class file transformer. Supertypes of each class
+ * are computed once per loader and cached. Each hierarchy remembers types it
+ * was asked about, instrumentation depends on them as well as on the class
+ * being instrumented
+ */
+final class TypeHierarchy {
+
+    static TypeHierarchy forLoader(ClassLoader loader) {
+        Map<String, TypeInfo> types;
+        synchronized (loadersTypes) {
+            types = loadersTypes.get(loader);
+            if (types == null) {
+                types = new ConcurrentHashMap<String, TypeInfo>();
+                loadersTypes.put(loader, types);
+            }
+        }
+        return new TypeHierarchy(loader, types);
+    }
+
+    private final Set<String>           consultedTypes = new TreeSet<String>();
+    private final ClassLoader           loader;
+    private final Map<String, TypeInfo> types;
+
+    private TypeHierarchy(ClassLoader loader, Map<String, TypeInfo> types) {
+        this.loader = loader;
+        this.types = types;
+    }
+
+    /**
+     * Makes class being instrumented known, its class file may not be
+     * available as a resource
+     */
+    @SuppressWarnings("unchecked")
+    void addType(ClassNode classNode) {
+        List<String> interfaces = classNode.interfaces;
+        types.put(classNode.name, createTypeInfo(classNode.name, classNode.superName,
+                                                 interfaces.toArray(new String[interfaces.size()]), classNode.access));
+    }
+
+    private TypeInfo createTypeInfo(String internalName, String superName, String[] interfaces, int access) {
+        Set<String> supertypes = new HashSet<String>();
+        if (superName != null) {
+            supertypes.add(superName);
+            supertypes.addAll(getTypeInfo(superName).supertypes);
+        }
+        for (String iface : interfaces) {
+            supertypes.add(iface);
+            supertypes.addAll(getTypeInfo(iface).supertypes);
+        }
+        return new TypeInfo(internalName, superName, (access & Opcodes.ACC_INTERFACE) != 0,
+                            Collections.unmodifiableSet(supertypes));
+    }
+
+    /**
+     * @return SHA-1 of what is known of given types - their superclasses, all
+     *         supertypes and kinds
+     * @throws CoroutineGenerationException
+     *             if some type cannot be found
+     */
+    byte[] digest(Collection<String> internalNames) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new CoroutineGenerationException(e);
+        }
+        for (String internalName : internalNames) {
+            TypeInfo info = getTypeInfo(internalName);
+            StringBuilder description = new StringBuilder(internalName);
+            description.append(info.isInterface ? " interface " : " class ").append(info.superName);
+            for (String supertype : new TreeSet<String>(info.supertypes)) {
+                description.append(' ').append(supertype);
+            }
+            description.append(';');
+            try {
+                digest.update(description.toString().getBytes("UTF-8"));
+            } catch (IOException e) {
+                throw new CoroutineGenerationException(e);
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Lowest common superclass of two classes, as needed by ASM when it
+     * computes frames
+     */
+    String getCommonSuperClass(String type1, String type2) {
+        if (isAssignableFrom(type1, type2)) {
+            return type1;
+        }
+        if (isAssignableFrom(type2, type1)) {
+            return type2;
+        }
+        TypeInfo info = getTypeInfo(type1);
+        if (info.isInterface || getTypeInfo(type2).isInterface) {
+            return JAVA_LANG_OBJECT;
+        }
+        do {
+            info = getTypeInfo(info.superName);
+        } while (!isAssignableFrom(info.name, type2));
+        return info.name;
+    }
+
+    /**
+     * @return names of all types this hierarchy was asked about, sorted
+     */
+    Set<String> getConsultedTypes() {
+        return Collections.unmodifiableSet(consultedTypes);
+    }
+
+    private TypeInfo getTypeInfo(String internalName) {
+        consultedTypes.add(internalName);
+        TypeInfo info = types.get(internalName);
+        if (info == null) {
+            info = readTypeInfo(internalName);
+            types.put(internalName, info);
+        }
+        return info;
+    }
+
+    private boolean isArraySupertype(String internalName) {
+        return internalName.equals(JAVA_LANG_OBJECT) || internalName.equals("java/lang/Cloneable")
+               || internalName.equals("java/io/Serializable");
+    }
+
+    /**
+     * @param t1
+     *            reference type
+     * @param t2
+     *            reference type
+     * @return true if value of t2 may be assigned to variable of type t1
+     */
+    boolean isAssignableFrom(Type t1, Type t2) {
+        if (t1.equals(t2)) {
+            return true;
+        }
+        if (t1.getSort() == Type.ARRAY) {
+            if (t2.getSort() != Type.ARRAY || t1.getDimensions() > t2.getDimensions()) {
+                return false;
+            }
+            Type e1 = t1.getElementType();
+            if (t1.getDimensions() < t2.getDimensions()) {
+                // t2's elements of the same dimension are arrays
+                return isArraySupertype(e1.getInternalName());
+            }
+            Type e2 = t2.getElementType();
+            if (e1.getSort() != Type.OBJECT || e2.getSort() != Type.OBJECT) {
+                return false;
+            }
+            return isAssignableFrom(e1.getInternalName(), e2.getInternalName());
+        }
+        if (t2.getSort() == Type.ARRAY) {
+            return isArraySupertype(t1.getInternalName());
+        }
+        return isAssignableFrom(t1.getInternalName(), t2.getInternalName());
+    }
+
+    private boolean isAssignableFrom(String type1, String type2) {
+        if (type1.equals(type2) || type1.equals(JAVA_LANG_OBJECT)) {
+            return true;
+        }
+        return getTypeInfo(type2).supertypes.contains(type1);
+    }
+
+    private TypeInfo readTypeInfo(String internalName) {
+        String resource = internalName + ".class";
+        InputStream in =
+                         loader == null ? ClassLoader.getSystemResourceAsStream(resource)
+                                        : loader.getResourceAsStream(resource);
+        if (in == null) {
+            throw new CoroutineGenerationException("Class file of " + internalName + " cannot be found");
+        }
+        ClassReader reader;
+        try {
+            try {
+                reader = new ClassReader(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new CoroutineGenerationException("Class file of " + internalName + " cannot be read", e);
+        }
+        return createTypeInfo(internalName, reader.getSuperName(), reader.getInterfaces(), reader.getAccess());
+    }
+
+    private static final class TypeInfo {
+
+        final boolean     isInterface;
+        final String      name;
+        final String      superName;
+        final Set<String> supertypes;
+
+        TypeInfo(String name, String superName, boolean isInterface, Set<String> supertypes) {
+            this.name = name;
+            this.superName = superName;
+            this.isInterface = isInterface;
+            this.supertypes = supertypes;
+        }
+    }
+
+    private static final String                                  JAVA_LANG_OBJECT = "java/lang/Object";
+    /*
+     * weak keys - cached types keep nothing but names, so loaders may go
+     */
+    private static final Map<ClassLoader, Map<String, TypeInfo>> loadersTypes     =
+                                                                                   new WeakHashMap<ClassLoader, Map<String, TypeInfo>>();
+}
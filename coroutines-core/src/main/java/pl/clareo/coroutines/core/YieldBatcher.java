@@ -0,0 +1,94 @@
+/*
+ * Copyright 2009-2010 Marcin Rzeźnicki
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package pl.clareo.coroutines.core;
+
+import static pl.clareo.coroutines.core.CodeGenerationUtils.makeInt;
+import static pl.clareo.coroutines.core.StringConstants.COROUTINES_NAME;
+import static pl.clareo.coroutines.core.StringConstants.FRAME_NAME;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.*;
+
+/**
+ * Makes coroutine yield in batches - it suspends only when batch kept in its
+ * frame is full, {@link CoIteratorInternal} hands out values of the batch
+ * without resuming it. Every yield becomes:
+ * 
+ * <pre>
+ * if (frame.addBatched(value, batch)) {
+ *     result = yield(frame.nextBatched());
+ * } else {
+ *     result = null;
+ * }
+ * </pre>
+ * 
+ * Frame does not exist before coroutine is transformed, calls to it are made
+ * as if its methods were static, {@link MethodTransformer} passes frame to
+ * them
+ */
+final class YieldBatcher implements Opcodes {
+
+    private final FrameComputer frames;
+
+    YieldBatcher(ClassNode node, TypeHierarchy hierarchy) {
+        this.frames = new FrameComputer(node, hierarchy);
+    }
+
+    @SuppressWarnings("unchecked")
+    void batch(MethodNode coroutine, int batch) {
+        List<MethodInsnNode> yields = new ArrayList<MethodInsnNode>();
+        Iterator<AbstractInsnNode> i = coroutine.instructions.iterator();
+        while (i.hasNext()) {
+            AbstractInsnNode insn = i.next();
+            if (insn.getOpcode() == INVOKESTATIC) {
+                MethodInsnNode method = (MethodInsnNode) insn;
+                if (method.owner.equals(COROUTINES_NAME) && method.name.equals("yield")) {
+                    yields.add(method);
+                }
+            }
+        }
+        if (yields.isEmpty()) {
+            return;
+        }
+        for (MethodInsnNode yield : yields) {
+            InsnList batching = new InsnList();
+            if (yield.desc.startsWith("()")) {
+                batching.add(new InsnNode(ACONST_NULL));
+            }
+            batching.add(makeInt(batch));
+            batching.add(new MethodInsnNode(INVOKESTATIC, FRAME_NAME, "addBatched", "(Ljava/lang/Object;I)Z"));
+            LabelNode batched = new LabelNode();
+            LabelNode resumed = new LabelNode();
+            batching.add(new JumpInsnNode(IFEQ, batched));
+            batching.add(new MethodInsnNode(INVOKESTATIC, FRAME_NAME, "nextBatched", "()Ljava/lang/Object;"));
+            batching.add(new MethodInsnNode(INVOKESTATIC, COROUTINES_NAME, "yield",
+                                            "(Ljava/lang/Object;)Ljava/lang/Object;"));
+            batching.add(new JumpInsnNode(GOTO, resumed));
+            batching.add(batched);
+            batching.add(new InsnNode(ACONST_NULL));
+            batching.add(resumed);
+            coroutine.instructions.insert(yield, batching);
+            coroutine.instructions.remove(yield);
+        }
+        // value, capacity and frame passed to it
+        coroutine.maxStack += 2;
+        frames.computeFrames(coroutine);
+    }
+}
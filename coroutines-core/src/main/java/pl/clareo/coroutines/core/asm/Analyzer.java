@@ -469,6 +469,7 @@ public class Analyzer implements Opcodes {
                 for (int i = stackMapTop; i < maxLocals; i++) {
                     result.setLocal(i, interpreter.newValue(null));
                 }
+                result.clearStack();
                 List<Object> stack = node.stack;
                 int nStack = stack.size();
                 for (int i = 0; i < nStack; i++) {
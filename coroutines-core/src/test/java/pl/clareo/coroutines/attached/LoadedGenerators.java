@@ -0,0 +1,55 @@
+package pl.clareo.coroutines.attached;
+
+import static pl.clareo.coroutines.user.Coroutines._;
+import static pl.clareo.coroutines.user.Coroutines.yield;
+
+import java.util.List;
+
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.Coroutine;
+
+/**
+ * Outside of packages agent instruments when tests start, gets coroutines once
+ * agent is attached
+ */
+public class LoadedGenerators {
+
+    @Coroutine
+    public static CoIterator<Integer, Void> range(int from, int to) {
+        int i = from;
+        while (i < to) {
+            yield(i);
+            i++;
+        }
+        return _();
+    }
+
+    @Coroutine
+    public static CoIterator<Integer, Integer> summing(List<String> closed) {
+        int sum = 0;
+        try {
+            while (true) {
+                Integer n = yield(sum);
+                sum += n;
+            }
+        } finally {
+            closed.add("closed at " + sum);
+        }
+    }
+
+    private final String prefix;
+
+    public LoadedGenerators(String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Coroutine
+    public CoIterator<String, Void> prefixed(int n) {
+        int i = 0;
+        while (i < n) {
+            yield(prefix + i);
+            i++;
+        }
+        return _();
+    }
+}
@@ -0,0 +1,118 @@
+package pl.clareo.coroutines.core;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static pl.clareo.coroutines.user.Coroutines._;
+import static pl.clareo.coroutines.user.Coroutines.yield;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.Coroutine;
+
+/**
+ * Class files are scanned for @Coroutine before they are parsed, class whose
+ * coroutines were missed would not be instrumented at all. Classes here are
+ * only scanned, they are not instrumented
+ */
+public class CoroutineDetectionTests {
+
+    /*
+     * class file as compiled, not as instrumented
+     */
+    private static byte[] classFile(Class<?> c) throws IOException {
+        String name = c.getName();
+        InputStream in = c.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + ".class");
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void detectCoroutine() throws IOException {
+        assertTrue(CoroutineInstrumentator.mayContainCoroutines(classFile(WithCoroutine.class)));
+    }
+
+    @Test
+    public void detectCoroutineAfterWideConstants() throws IOException {
+        assertTrue(CoroutineInstrumentator.mayContainCoroutines(classFile(WithConstants.class)));
+    }
+
+    @Test
+    public void detectCoroutineOfInnerClass() throws IOException {
+        assertTrue(CoroutineInstrumentator.mayContainCoroutines(classFile(Outer.Inner.class)));
+        // outer class refers to inner one only, it has no coroutines itself
+        assertFalse(CoroutineInstrumentator.mayContainCoroutines(classFile(Outer.class)));
+    }
+
+    @Test
+    public void detectNoCoroutine() throws IOException {
+        assertFalse(CoroutineInstrumentator.mayContainCoroutines(classFile(WithoutCoroutine.class)));
+    }
+
+    @Test
+    public void detectTruncatedClassFile() throws IOException {
+        byte[] classFile = classFile(WithoutCoroutine.class);
+        byte[] truncated = new byte[classFile.length / 2];
+        System.arraycopy(classFile, 0, truncated, 0, truncated.length);
+        // class which cannot be scanned is passed on to be instrumented
+        assertTrue(CoroutineInstrumentator.mayContainCoroutines(truncated));
+    }
+
+    public static class Outer {
+
+        public static class Inner {
+
+            @Coroutine
+            static CoIterator<Integer, Void> one() {
+                yield(1);
+                return _();
+            }
+        }
+
+        Inner inner = new Inner();
+    }
+
+    /*
+     * @Coroutine is retained in class file only, as invisible annotation
+     */
+    public static class WithConstants {
+
+        static final double HALF = 0.5;
+        static final long   MANY = 1L << 40;
+
+        @Coroutine
+        static CoIterator<Double, Void> constants() {
+            yield(HALF * MANY);
+            return _();
+        }
+    }
+
+    public static class WithCoroutine {
+
+        @Coroutine
+        static CoIterator<Integer, Void> one() {
+            yield(1);
+            return _();
+        }
+    }
+
+    public static class WithoutCoroutine {
+
+        static CoIterator<Integer, Void> none() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package pl.clareo.coroutines.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.Type;
+
+/**
+ * Cached class is valid as long as types consulted while instrumenting it have
+ * the same hierarchy
+ */
+public class InstrumentationCacheTests {
+
+    /*
+     * loader whose test/Dependency is given class of JDK, or is missing
+     */
+    private static ClassLoader dependencyAs(final String jdkClass) {
+        return new ClassLoader(null) {
+
+            @Override
+            public InputStream getResourceAsStream(String name) {
+                if (name.equals(DEPENDENCY + ".class")) {
+                    return jdkClass == null ? null : Object.class.getResourceAsStream("/" + jdkClass + ".class");
+                }
+                return super.getResourceAsStream(name);
+            }
+        };
+    }
+
+    private static TypeHierarchy instrumentedWith(ClassLoader loader) {
+        TypeHierarchy hierarchy = TypeHierarchy.forLoader(loader);
+        assertTrue(hierarchy.isAssignableFrom(Type.getObjectType("java/util/List"), Type.getObjectType(DEPENDENCY)));
+        return hierarchy;
+    }
+
+    private InstrumentationCache cache;
+    private File                 directory;
+    private String               previousCachePath;
+
+    @After
+    public void deleteCache() {
+        for (File entry : directory.listFiles()) {
+            entry.delete();
+        }
+        directory.delete();
+        if (previousCachePath == null) {
+            System.clearProperty("pl.clareo.coroutines.CachePath");
+        } else {
+            System.setProperty("pl.clareo.coroutines.CachePath", previousCachePath);
+        }
+    }
+
+    @Test
+    public void invalidateEntryWhenDependencyChanges() {
+        ClassLoader loader = dependencyAs("java/util/ArrayList");
+        byte[] instrumented = { 1, 2, 3 };
+        String key = cache.key(instrumented, false, false, false, false, false);
+        cache.put(key, Collections.singletonMap("test/Owner", instrumented), instrumentedWith(loader));
+        Map<String, byte[]> cached = cache.get(key, TypeHierarchy.forLoader(loader));
+        assertNotNull(cached);
+        assertArrayEquals(instrumented, cached.get("test/Owner"));
+        assertNotNull(cache.get(key, TypeHierarchy.forLoader(dependencyAs("java/util/ArrayList"))));
+        assertNull(cache.get(key, TypeHierarchy.forLoader(dependencyAs("java/util/LinkedList"))));
+        assertNull(cache.get(key, TypeHierarchy.forLoader(dependencyAs(null))));
+    }
+
+    @Before
+    public void openCache() throws IOException {
+        directory = File.createTempFile("coroutines", ".cache");
+        directory.delete();
+        previousCachePath = System.getProperty("pl.clareo.coroutines.CachePath");
+        System.setProperty("pl.clareo.coroutines.CachePath", directory.getPath());
+        cache = InstrumentationCache.open();
+        assertNotNull(cache);
+    }
+
+    private static final String DEPENDENCY = "test/Dependency";
+}
@@ -0,0 +1,151 @@
+package pl.clareo.coroutines.core.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static pl.clareo.coroutines.user.Coroutines._;
+import static pl.clareo.coroutines.user.Coroutines.yield;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.Coroutine;
+import pl.clareo.coroutines.user.CoroutineClosedException;
+
+/**
+ * Frames of arena coroutines are kept in columns shared by all their instances.
+ * Instrumented without debug code (see agent arguments), debugged coroutines
+ * have their own frames
+ */
+public class ArenaTests extends TestsBase {
+
+    private static String expectedStep(int id, int i) {
+        long total = 0;
+        double mean = 0;
+        float last = 0;
+        for (int j = 0; j <= i; j++) {
+            total += (long) id * j;
+            mean = (double) total / (j + 1);
+            last = j / 2f;
+        }
+        return "agent" + id + ":" + total + ":" + mean + ":" + last + ":" + (i % 2 == 0) + ":" + (char) ('a' + i);
+    }
+
+    /*
+     * frames are internal to runtime, their fields are read reflectively
+     */
+    private static Object frameField(CoIterator<?, ?> coIterator, String name) throws Exception {
+        Method getFrame = Class.forName("pl.clareo.coroutines.core.CoIteratorInternal").getDeclaredMethod("getFrame");
+        getFrame.setAccessible(true);
+        Object frame = getFrame.invoke(coIterator);
+        Field field = frame.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(frame);
+    }
+
+    @Coroutine(arena = true)
+    private static CoIterator<String, Void> agent(int id, int steps) {
+        String name = "agent" + id;
+        long total = 0;
+        double mean = 0;
+        float last = 0;
+        boolean even = true;
+        char letter = 'a';
+        for (int i = 0; i < steps; i++) {
+            total += (long) id * i;
+            mean = (double) total / (i + 1);
+            last = i / 2f;
+            yield(name + ":" + total + ":" + mean + ":" + last + ":" + even + ":" + letter);
+            even = !even;
+            letter++;
+        }
+        return _();
+    }
+
+    @Coroutine(arena = true)
+    private static CoIterator<Integer, Integer> summing(List<String> closed) {
+        int sum = 0;
+        try {
+            while (true) {
+                Integer n = yield(sum);
+                sum += n;
+            }
+        } finally {
+            closed.add("closed at " + sum);
+        }
+    }
+
+    private int base = 100;
+
+    @Coroutine(arena = true)
+    private CoIterator<Integer, Void> offsets(int n) {
+        for (int i = 0; i < n; i++) {
+            yield(base + i);
+        }
+        return _();
+    }
+
+    @Test
+    public void closeArenaCoroutine() throws Exception {
+        List<String> closed = new ArrayList<String>();
+        CoIterator<Integer, Integer> summing = summing(closed);
+        summing.next();
+        Object arena = frameField(summing, "arena");
+        assertNotNull(arena);
+        Object arenaId = frameField(summing, "arenaId");
+        assertEquals(Integer.valueOf(5), summing.send(5));
+        summing.close();
+        assertEquals("[closed at 5]", closed.toString());
+        try {
+            summing.next();
+            fail();
+        } catch (CoroutineClosedException e) {
+        }
+        // row given back is taken by new instance, which starts afresh
+        CoIterator<Integer, Integer> again = summing(closed);
+        assertEquals(Integer.valueOf(0), again.next());
+        assertSame(arena, frameField(again, "arena"));
+        assertEquals(arenaId, frameField(again, "arenaId"));
+        assertEquals(Integer.valueOf(7), again.send(7));
+        again.close();
+        assertEquals("[closed at 5, closed at 7]", closed.toString());
+    }
+
+    @Test
+    public void runArenaCoroutine() {
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 10; i++) {
+            expected.add(expectedStep(3, i));
+        }
+        runCoroutine(agent(3, 10), expected.toArray(new String[0]));
+    }
+
+    @Test
+    public void runInstanceArenaCoroutine() {
+        runCoroutine(offsets(3), new Integer[] { 100, 101, 102 });
+    }
+
+    @Test
+    public void runManyArenaCoroutines() {
+        int nAgents = 1000;
+        int steps = 5;
+        List<CoIterator<String, Void>> agents = new ArrayList<CoIterator<String, Void>>();
+        for (int id = 0; id < nAgents; id++) {
+            agents.add(agent(id, steps));
+        }
+        for (int i = 0; i < steps; i++) {
+            for (int id = 0; id < nAgents; id++) {
+                assertEquals(expectedStep(id, i), agents.get(id).next());
+            }
+        }
+        for (CoIterator<String, Void> agent : agents) {
+            agent.close();
+        }
+    }
+}
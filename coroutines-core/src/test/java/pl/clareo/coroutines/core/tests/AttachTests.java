@@ -0,0 +1,74 @@
+package pl.clareo.coroutines.core.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import pl.clareo.coroutines.attached.LoadedGenerators;
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.InvalidCoroutineException;
+
+public class AttachTests {
+
+    private static Class<?> findVirtualMachine() {
+        String name = "com.sun.tools.attach.VirtualMachine";
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            File toolsJar = new File(System.getProperty("java.home"), "../lib/tools.jar");
+            try {
+                return new URLClassLoader(new URL[] { toolsJar.toURI().toURL() }).loadClass(name);
+            } catch (Exception notFound) {
+                return null;
+            }
+        }
+    }
+
+    private static <E> List<E> toList(CoIterator<E, ?> coIterator) {
+        List<E> list = new ArrayList<E>();
+        for (E e : coIterator.each()) {
+            list.add(e);
+        }
+        return list;
+    }
+
+    @Test
+    public void runAttachTest() throws Exception {
+        LoadedGenerators generators = new LoadedGenerators("n");
+        try {
+            LoadedGenerators.range(0, 3);
+            fail("Coroutine instrumented before agent was attached");
+        } catch (InvalidCoroutineException e) {
+        }
+        Class<?> virtualMachine = findVirtualMachine();
+        assumeTrue(virtualMachine != null);
+        String jvmName = ManagementFactory.getRuntimeMXBean().getName();
+        Object vm = virtualMachine.getMethod("attach", String.class).invoke(null,
+                                                                            jvmName.substring(0, jvmName.indexOf('@')));
+        try {
+            virtualMachine.getMethod("loadAgent", String.class, String.class)
+                .invoke(vm, new File("target/coroutines.jar").getAbsolutePath(), "pl.clareo.coroutines.attached");
+        } finally {
+            virtualMachine.getMethod("detach").invoke(vm);
+        }
+        assertEquals(Arrays.asList(0, 1, 2), toList(LoadedGenerators.range(0, 3)));
+        assertEquals(Arrays.asList("n0", "n1"), toList(generators.prefixed(2)));
+        List<String> closed = new ArrayList<String>();
+        CoIterator<Integer, Integer> summing = LoadedGenerators.summing(closed);
+        assertEquals(Integer.valueOf(0), summing.next());
+        assertEquals(Integer.valueOf(5), summing.send(5));
+        assertEquals(Integer.valueOf(7), summing.send(2));
+        summing.close();
+        assertEquals("[closed at 7]", closed.toString());
+    }
+}
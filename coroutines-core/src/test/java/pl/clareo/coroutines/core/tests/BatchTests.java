@@ -0,0 +1,89 @@
+package pl.clareo.coroutines.core.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static pl.clareo.coroutines.user.Coroutines._;
+import static pl.clareo.coroutines.user.Coroutines.yield;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.Coroutine;
+
+/**
+ * Coroutines yielding in batches suspend once per batch
+ */
+public class BatchTests extends TestsBase {
+
+    @Coroutine(batch = 4)
+    private static CoIterator<Integer, Void> failing(int n) {
+        for (int i = 0; i < n; i++) {
+            yield(i);
+        }
+        throw new IllegalStateException("failed");
+    }
+
+    @Coroutine(batch = 4)
+    private static CoIterator<Integer, Void> range(int n, List<Integer> produced) {
+        for (int i = 0; i < n; i++) {
+            produced.add(i);
+            yield(i);
+        }
+        return _();
+    }
+
+    @Test
+    public void closeBatchingCoroutine() {
+        List<Integer> produced = new ArrayList<Integer>();
+        CoIterator<Integer, Void> range = range(10, produced);
+        assertEquals(Integer.valueOf(0), range.next());
+        range.close();
+        try {
+            range.next();
+            fail();
+        } catch (RuntimeException e) {
+        }
+        assertEquals(4, produced.size());
+    }
+
+    @Test
+    public void runBatchingCoroutine() {
+        List<Integer> produced = new ArrayList<Integer>();
+        CoIterator<Integer, Void> range = range(10, produced);
+        assertEquals(Integer.valueOf(0), range.next());
+        assertEquals(4, produced.size());
+        assertEquals(Integer.valueOf(1), range.next());
+        assertEquals(Integer.valueOf(2), range.next());
+        assertEquals(Integer.valueOf(3), range.next());
+        assertEquals(4, produced.size());
+        assertEquals(Integer.valueOf(4), range.next());
+        assertEquals(8, produced.size());
+        runCoroutine(range(10, new ArrayList<Integer>()), new Integer[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+    }
+
+    @Test
+    public void runFailingBatchingCoroutine() {
+        CoIterator<Integer, Void> failing = failing(6);
+        for (int i = 0; i < 6; i++) {
+            assertEquals(Integer.valueOf(i), failing.next());
+        }
+        try {
+            failing.next();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("failed", e.getMessage());
+        }
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void runOutBatchingCoroutine() {
+        CoIterator<Integer, Void> range = range(2, new ArrayList<Integer>());
+        range.next();
+        range.next();
+        range.next();
+    }
+}
@@ -0,0 +1,37 @@
+package pl.clareo.coroutines.core.tests;
+
+import static pl.clareo.coroutines.user.Coroutines._;
+import static pl.clareo.coroutines.user.Coroutines.yield;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.tck.PublisherVerification;
+import org.reactivestreams.tck.TestEnvironment;
+
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.CoPublisher;
+import pl.clareo.coroutines.user.Coroutine;
+
+public class CoPublisherVerification extends PublisherVerification<Long> {
+
+    @Coroutine
+    private static CoIterator<Long, Void> counting(long n) {
+        for (long i = 0; i < n; i++) {
+            yield(i);
+        }
+        return _();
+    }
+
+    public CoPublisherVerification() {
+        super(new TestEnvironment(300));
+    }
+
+    @Override
+    public Publisher<Long> createFailedPublisher() {
+        return null;
+    }
+
+    @Override
+    public Publisher<Long> createPublisher(long elements) {
+        return new CoPublisher<Long>(counting(elements));
+    }
+}
@@ -0,0 +1,237 @@
+package pl.clareo.coroutines.core.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static pl.clareo.coroutines.user.Coroutines._;
+import static pl.clareo.coroutines.user.Coroutines.yield;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.Coroutine;
+
+/**
+ * Loops over generators of the same class are fused with them. Fusion is
+ * asked for by agent's fuse option, see agent arguments
+ */
+public class FusionTests {
+
+    private static boolean isFused(String method) {
+        for (String message : messages) {
+            if (message.matches("Loop over coroutine .* fused into .*Loops\\." + method + "\\(.*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Loops is instrumented when loaded, here
+     */
+    @BeforeClass
+    public static void loadLoops() {
+        Handler handler = new Handler() {
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void publish(LogRecord record) {
+                messages.add(record.getMessage());
+            }
+        };
+        Logger logger = Logger.getLogger("pl.clareo.coroutines.LoopFuser");
+        logger.addHandler(handler);
+        try {
+            assertEquals("Loops", Loops.class.getSimpleName());
+        } finally {
+            logger.removeHandler(handler);
+        }
+    }
+
+    @Test
+    public void runFusedLoop() {
+        assertTrue(messages.toString(), isFused("sum"));
+        assertEquals(20 + 19 + 17 + 14 + 10, Loops.sum(20));
+    }
+
+    /*
+     * generator runs no further than the loop and its exceptions reach the
+     * loop, iterator of each() would run one element ahead and end the loop
+     */
+    @Test
+    public void runFusedLoopInOrder() {
+        assertTrue(messages.toString(), isFused("consume"));
+        List<String> events = new ArrayList<String>();
+        try {
+            Loops.consume(events, 3, true);
+            fail();
+        } catch (NoSuchElementException e) {
+        }
+        assertEquals(Arrays.asList("produce 0", "consume 0", "produce 1", "consume 1", "produce 2", "consume 2"),
+                     events);
+    }
+
+    @Test
+    public void runFusedNestedLoops() {
+        assertTrue(messages.toString(), isFused("nested"));
+        assertEquals(Arrays.asList("first3", "first2", "a1003", "a1002", "b1003", "b1002"), new Loops().nested());
+    }
+
+    @Test
+    public void runInlinedCoroutine() {
+        assertTrue(messages.toString(), isFused("doubled"));
+        assertTrue(messages.toString(), isFused("sumDoubled"));
+        List<Integer> doubled = new ArrayList<Integer>();
+        for (int i : Loops.doubled(20).each()) {
+            doubled.add(i);
+        }
+        assertEquals(Arrays.asList(40, 38, 34, 28, 20, 10), doubled);
+        assertEquals(2 * (20 + 19 + 17 + 14 + 10 + 5), Loops.sumDoubled(20));
+    }
+
+    @Test
+    public void runNotFusedLoops() {
+        assertFalse(messages.toString(), isFused("first"));
+        assertFalse(messages.toString(), isFused("closing"));
+        assertEquals(7, Loops.first(7));
+        Loops.closed = false;
+        assertEquals(2, Loops.closing());
+        assertTrue(Loops.closed);
+    }
+
+    public static class Loops {
+
+        @Coroutine
+        public static CoIterator<Integer, Void> countdown(int n, int step) {
+            while (n > 0) {
+                yield(n);
+                n -= step;
+                step++;
+            }
+            return _();
+        }
+
+        @Coroutine
+        public static CoIterator<Integer, Void> doubled(int n) {
+            for (int i : countdown(n, 1).each()) {
+                yield(2 * i);
+            }
+            return _();
+        }
+
+        /*
+         * body which always returns leaves rest of generator unreachable
+         */
+        public static int first(int n) {
+            for (int i : countdown(n, 1).each()) {
+                return i;
+            }
+            return -1;
+        }
+
+        public static int closing() {
+            int s = 0;
+            for (int i : guarded().each()) {
+                s += i;
+            }
+            return s;
+        }
+
+        public static void consume(List<String> events, int n, boolean fail) {
+            for (int i : producing(events, n, fail).each()) {
+                events.add("consume " + i);
+            }
+        }
+
+        @Coroutine
+        public static CoIterator<Integer, Void> guarded() {
+            try {
+                yield(1);
+                yield(1);
+            } finally {
+                closed = true;
+            }
+            return _();
+        }
+
+        @Coroutine
+        public static CoIterator<Integer, Void> producing(List<String> events, int n, boolean fail) {
+            for (int i = 0; i < n; i++) {
+                events.add("produce " + i);
+                yield(i);
+            }
+            if (fail) {
+                throw new NoSuchElementException();
+            }
+            return _();
+        }
+
+        public static int sum(int n) {
+            int s = 0;
+            for (int i : countdown(n, 1).each()) {
+                if (i == 5) {
+                    continue;
+                }
+                s += i;
+            }
+            return s;
+        }
+
+        public static int sumDoubled(int n) {
+            int s = 0;
+            for (int i : doubled(n).each()) {
+                s += i;
+            }
+            return s;
+        }
+
+        private int bias = 100;
+
+        public List<String> nested() {
+            List<String> result = new ArrayList<String>();
+            for (String w : words("a", "b").each()) {
+                for (int i : countdown(3, 1).each()) {
+                    if (i == 1) {
+                        break;
+                    }
+                    result.add(w + i);
+                }
+                if (w.equals("b" + bias)) {
+                    break;
+                }
+            }
+            return result;
+        }
+
+        @Coroutine
+        private CoIterator<String, Void> words(String... words) {
+            yield("first");
+            for (String word : words) {
+                yield(word + bias);
+            }
+            yield("last");
+            return _();
+        }
+
+        static boolean closed;
+    }
+
+    private static final List<String> messages = new ArrayList<String>();
+}
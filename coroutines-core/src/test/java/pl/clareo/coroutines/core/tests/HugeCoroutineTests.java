@@ -0,0 +1,463 @@
+package pl.clareo.coroutines.core.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static pl.clareo.coroutines.user.Coroutines._;
+import static pl.clareo.coroutines.user.Coroutines.yield;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.Coroutine;
+
+/**
+ * Coroutine whose method would be too big to be compiled by JIT is compacted,
+ * yields of any coroutine share restoring of locals
+ */
+public class HugeCoroutineTests extends TestsBase {
+
+    private static List<Long> expected(long a, int b, int n) {
+        List<Long> expected = new ArrayList<Long>();
+        double c = 0;
+        for (int i = 0; i < n; i++) {
+            a += b;
+            b = b * 2 - 1;
+            c += a;
+            expected.add(a + String.valueOf(c).length());
+        }
+        return expected;
+    }
+
+    /*
+     * Huge and Small are instrumented when loaded, here
+     */
+    @BeforeClass
+    public static void loadHuge() {
+        Handler handler = new Handler() {
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void publish(LogRecord record) {
+                messages.add(record.getMessage());
+            }
+        };
+        Logger logger = Logger.getLogger("pl.clareo.coroutines.ClassTransformer");
+        logger.addHandler(handler);
+        try {
+            assertEquals("Huge", Huge.class.getSimpleName());
+            assertEquals("Small", Small.class.getSimpleName());
+        } finally {
+            logger.removeHandler(handler);
+        }
+    }
+
+    @Test
+    public void runHugeCoroutine() {
+        boolean compacted = false;
+        for (String message : messages) {
+            compacted |= message.matches("Coroutine .*Huge\\.steps.* compacted from \\d+ to \\d+ bytes of code");
+        }
+        assertTrue(messages.toString(), compacted);
+        runCoroutine(Huge.steps(1, 2), expected(1, 2, HUGE_STEPS).toArray(new Long[0]));
+    }
+
+    @Test
+    public void runHugeCoroutineSharingRestore() {
+        int saved = -1;
+        for (String message : messages) {
+            if (message.matches("Coroutine .*Huge\\.steps.* shares restoring of locals, saving \\d+ bytes of code")) {
+                saved = Integer.parseInt(message.replaceFirst(".*saving (\\d+) bytes of code", "$1"));
+            }
+        }
+        assertTrue(messages.toString(), saved > 0);
+        runCoroutine(Huge.steps(1, 2), expected(1, 2, HUGE_STEPS).toArray(new Long[0]));
+    }
+
+    @Test
+    public void runHugeCoroutineClosing() {
+        Huge.closed = false;
+        CoIterator<Long, Void> steps = Huge.steps(1, 2);
+        List<Long> expected = expected(1, 2, 2);
+        assertEquals(expected.get(0), steps.next());
+        assertEquals(expected.get(1), steps.next());
+        steps.close();
+        assertTrue(Huge.closed);
+    }
+
+    @Test
+    public void runSmallCoroutineSharingRestore() {
+        int saved = -1;
+        for (String message : messages) {
+            assertFalse(message, message.matches("Coroutine .*Small\\.steps.* compacted .*"));
+            if (message.matches("Coroutine .*Small\\.steps.* shares restoring of locals, saving \\d+ bytes of code")) {
+                saved = Integer.parseInt(message.replaceFirst(".*saving (\\d+) bytes of code", "$1"));
+            }
+        }
+        assertTrue(messages.toString(), saved > 0);
+        runCoroutine(Small.steps(1, 2), expected(1, 2, 4).toArray(new Long[0]));
+    }
+
+    public static class Huge {
+
+        @Coroutine
+        static CoIterator<Long, Void> steps(long a, int b) {
+            double c = 0;
+            String s;
+            try {
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+                a += b;
+                b = b * 2 - 1;
+                c += a;
+                s = String.valueOf(c);
+                yield(a + s.length());
+            } finally {
+                closed = true;
+            }
+            return _();
+        }
+
+        static boolean closed;
+    }
+
+    public static class Small {
+
+        @Coroutine
+        static CoIterator<Long, Void> steps(long a, int b) {
+            double c = 0;
+            String s;
+            a += b;
+            b = b * 2 - 1;
+            c += a;
+            s = String.valueOf(c);
+            yield(a + s.length());
+            a += b;
+            b = b * 2 - 1;
+            c += a;
+            s = String.valueOf(c);
+            yield(a + s.length());
+            a += b;
+            b = b * 2 - 1;
+            c += a;
+            s = String.valueOf(c);
+            yield(a + s.length());
+            a += b;
+            b = b * 2 - 1;
+            c += a;
+            s = String.valueOf(c);
+            yield(a + s.length());
+            return _();
+        }
+    }
+
+    private static final int          HUGE_STEPS = 60;
+    private static final List<String> messages   = new ArrayList<String>();
+}
@@ -0,0 +1,134 @@
+package pl.clareo.coroutines.core.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static pl.clareo.coroutines.user.Coroutines._;
+import static pl.clareo.coroutines.user.Coroutines.yield;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+
+import org.junit.Test;
+
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.Coroutine;
+
+/**
+ * Instrumented with lazy option, see agent arguments
+ */
+public class LazyTests {
+
+    private static boolean started;
+
+    @SuppressWarnings("unchecked")
+    private static CoIterator<Integer, Void> counting(ClassLoader loader, int n) throws Exception {
+        Class<?> owner = loader.loadClass(Owner.class.getName());
+        return (CoIterator<Integer, Void>) owner.getMethod("counting", int.class).invoke(null, n);
+    }
+
+    private static boolean isPending(String coroutine) throws Exception {
+        Field registries = Class.forName("pl.clareo.coroutines.core.LazyCoIterators").getDeclaredField("registries");
+        registries.setAccessible(true);
+        Object registry = ((Map<?, ?>) registries.get(null)).get(LazyTests.class.getClassLoader());
+        Field pending = registry.getClass().getDeclaredField("pending");
+        pending.setAccessible(true);
+        for (Object name : ((Map<?, ?>) pending.get(registry)).keySet()) {
+            if (((String) name).startsWith("pl/clareo/coroutines/core/CoIterator$LazyTests$" + coroutine + "$")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Coroutine
+    private static CoIterator<Integer, Void> neverCalled() {
+        yield(0);
+        return _();
+    }
+
+    @Coroutine(generator = false)
+    private static CoIterator<Void, Integer> started() {
+        started = true;
+        Integer received = yield();
+        while (received != null) {
+            received = yield();
+        }
+        return _();
+    }
+
+    @Coroutine(threadLocal = true)
+    private static CoIterator<Integer, Void> upTo(int n) {
+        for (int i = 0; i < n; i++) {
+            yield(i);
+        }
+        return _();
+    }
+
+    private final int base = 10;
+
+    @Coroutine
+    private CoIterator<Integer, Void> fromBase(int n) {
+        for (int i = 0; i < n; i++) {
+            yield(base + i);
+        }
+        return _();
+    }
+
+    /*
+     * copies of owner in other loaders have CoIterators of the same name
+     */
+    @Test
+    public void runCopiesOfOwnerTest() throws Exception {
+        ClassLoader first = new LoaderTests.OwnerLoader(Owner.class, true);
+        ClassLoader second = new LoaderTests.OwnerLoader(Owner.class, true);
+        CoIterator<Integer, Void> firstCounting = counting(first, 3);
+        CoIterator<Integer, Void> secondCounting = counting(second, 2);
+        assertSame(first, firstCounting.getClass().getClassLoader());
+        assertSame(second, secondCounting.getClass().getClassLoader());
+        assertNotSame(firstCounting.getClass(), secondCounting.getClass());
+        assertEquals(Integer.valueOf(1), firstCounting.next());
+        assertEquals(Integer.valueOf(1), secondCounting.next());
+        assertEquals(Integer.valueOf(2), firstCounting.next());
+        assertEquals(Integer.valueOf(2), secondCounting.next());
+        assertSame(second, counting(second, 1).getClass().getClassLoader());
+    }
+
+    @Test
+    public void runLazyDefinitionTest() throws Exception {
+        assertTrue(isPending("neverCalled"));
+        int sum = 0;
+        // held in variable, loop is not fused with upTo
+        CoIterator<Integer, Void> upTo = upTo(4);
+        for (int i : upTo.each()) {
+            sum += i;
+        }
+        assertEquals(6, sum);
+        assertTrue(!isPending("upTo"));
+        CoIterator<Integer, Void> coIterator = fromBase(2);
+        assertTrue(coIterator.getClass().getName().startsWith("pl.clareo.coroutines.core.CoIterator$LazyTests$fromBase$"));
+        assertEquals(Integer.valueOf(10), coIterator.next());
+        assertEquals(Integer.valueOf(11), coIterator.next());
+        assertEquals(coIterator.getClass(), fromBase(1).getClass());
+        assertTrue(isPending("neverCalled"));
+    }
+
+    @Test
+    public void runNonGeneratorTest() {
+        started = false;
+        started();
+        assertTrue(started);
+    }
+
+    public static class Owner {
+
+        @Coroutine
+        public static CoIterator<Integer, Void> counting(int n) {
+            for (int i = 1; i <= n; i++) {
+                yield(i);
+            }
+            return _();
+        }
+    }
+}
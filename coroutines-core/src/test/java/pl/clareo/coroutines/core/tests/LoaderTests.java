@@ -0,0 +1,130 @@
+package pl.clareo.coroutines.core.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static pl.clareo.coroutines.user.Coroutines._;
+import static pl.clareo.coroutines.user.Coroutines.yield;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+
+import org.junit.Test;
+
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.Coroutine;
+import pl.clareo.coroutines.user.InvalidCoroutineException;
+
+/**
+ * CoIterators of owners loaded by descendants of the loader of coroutines
+ * runtime are defined by loaders of their owners. Other copies of owner share
+ * the loader of runtime with its own copy and cannot be instrumented
+ */
+public class LoaderTests {
+
+    @SuppressWarnings("unchecked")
+    private static CoIterator<Integer, Void> counting(ClassLoader loader, int n) throws Exception {
+        Class<?> owner = loader.loadClass(Owner.class.getName());
+        return (CoIterator<Integer, Void>) owner.getMethod("counting", int.class).invoke(null, n);
+    }
+
+    @Test
+    public void defineInLoaderOfOwner() throws Exception {
+        ClassLoader first = new OwnerLoader(Owner.class, true);
+        ClassLoader second = new OwnerLoader(Owner.class, true);
+        CoIterator<Integer, Void> firstCounting = counting(first, 3);
+        CoIterator<Integer, Void> secondCounting = counting(second, 2);
+        assertSame(first, firstCounting.getClass().getClassLoader());
+        assertSame(second, secondCounting.getClass().getClassLoader());
+        assertNotSame(firstCounting.getClass(), secondCounting.getClass());
+        assertEquals(Integer.valueOf(1), firstCounting.next());
+        assertEquals(Integer.valueOf(1), secondCounting.next());
+        assertEquals(Integer.valueOf(2), firstCounting.next());
+        assertEquals(Integer.valueOf(3), firstCounting.next());
+        assertEquals(Integer.valueOf(2), secondCounting.next());
+        // owner loaded by the loader of runtime has its CoIterator there
+        CoIterator<Integer, Void> counting = Owner.counting(1);
+        assertSame(LoaderTests.class.getClassLoader(), counting.getClass().getClassLoader());
+        assertEquals(Integer.valueOf(1), counting.next());
+    }
+
+    @Test
+    public void failOnAnotherCopyOfOwner() throws Exception {
+        assertEquals(Integer.valueOf(1), Owner.counting(1).next());
+        // CoIterator of this copy would be named as the one defined above
+        ClassLoader unrelated = new OwnerLoader(Owner.class, false);
+        try {
+            counting(unrelated, 1);
+            fail();
+        } catch (InvocationTargetException e) {
+            assertEquals(InvalidCoroutineException.class, e.getCause().getClass());
+        }
+    }
+
+    public static class Owner {
+
+        @Coroutine
+        public static CoIterator<Integer, Void> counting(int n) {
+            for (int i = 1; i <= n; i++) {
+                yield(i);
+            }
+            return _();
+        }
+    }
+
+    /*
+     * loads its own copy of owner, everything else comes from the loader of
+     * this class, which is its parent or not
+     */
+    static class OwnerLoader extends ClassLoader {
+
+        private final String ownerName;
+
+        OwnerLoader(Class<?> owner, boolean descendant) {
+            super(descendant ? LoaderTests.class.getClassLoader() : null);
+            ownerName = owner.getName();
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.equals(ownerName)) {
+                return LoaderTests.class.getClassLoader().loadClass(name);
+            }
+            Class<?> owner = findLoadedClass(name);
+            if (owner == null) {
+                owner = findClass(name);
+            }
+            if (resolve) {
+                resolveClass(owner);
+            }
+            return owner;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            InputStream in = LoaderTests.class.getClassLoader().getResourceAsStream(name.replace('.', '/') + ".class");
+            if (in == null) {
+                throw new ClassNotFoundException(name);
+            }
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    bytes.write(buffer, 0, read);
+                }
+                return defineClass(name, bytes.toByteArray(), 0, bytes.size());
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
@@ -4,6 +4,11 @@ import static org.junit.Assert.assertEquals;
 import static pl.clareo.coroutines.user.Coroutines._;
 import static pl.clareo.coroutines.user.Coroutines.yield;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
 import org.junit.Test;
 
 import pl.clareo.coroutines.user.CoIterator;
@@ -11,6 +16,26 @@ import pl.clareo.coroutines.user.Coroutine;
 
 public class LoopsTests extends TestsBase {
 
+    @Coroutine
+    private CoIterator<Integer, Void> countdownTest(int n, int step) {
+        while (n > 0) {
+            yield(n);
+            n -= step;
+            step++;
+        }
+        return _();
+    }
+
+    @Coroutine(generator = false)
+    private CoIterator<Void, Integer> countdownTestResults(int n, int step) {
+        while (n > 0) {
+            assertEquals(n, yield());
+            n -= step;
+            step++;
+        }
+        return _();
+    }
+
     @Coroutine
     private CoIterator<Integer, Void> doTest(int end) {
         int i = 0;
@@ -57,11 +82,39 @@ public class LoopsTests extends TestsBase {
         return _();
     }
 
+    @Coroutine
+    private CoIterator<Integer, Void> producing(List<String> events, int n) {
+        for (int i = 0; i < n; i++) {
+            events.add("produce " + i);
+            yield(i);
+        }
+        throw new NoSuchElementException();
+    }
+
+    @Test
+    public void runCountdownTest() {
+        runCoroutine(countdownTest(20, 1), countdownTestResults(20, 1));
+    }
+
     @Test
     public void runDoLoopTest() {
         runCoroutine(doTest(5), doTestResults(5));
     }
 
+    /*
+     * loops are not fused unless asked for - iterator runs generator one
+     * element ahead of the loop and ends it when generator fails to produce
+     */
+    @Test
+    public void runLoopOverGenerator() {
+        List<String> events = new ArrayList<String>();
+        for (int i : producing(events, 3).each()) {
+            events.add("consume " + i);
+        }
+        assertEquals(Arrays.asList("produce 0", "produce 1", "consume 0", "produce 2", "consume 1", "consume 2"),
+                     events);
+    }
+
     @Test
     public void runNestedForTest() {
         runCoroutine(nestedForTest(3, 3, 2), nestedForTestResults(3, 3, 2));
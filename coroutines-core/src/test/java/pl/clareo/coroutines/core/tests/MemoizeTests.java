@@ -0,0 +1,147 @@
+package pl.clareo.coroutines.core.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static pl.clareo.coroutines.user.Coroutines._;
+import static pl.clareo.coroutines.user.Coroutines.yield;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.junit.Test;
+
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.Coroutine;
+
+public class MemoizeTests extends TestsBase {
+
+    @Coroutine
+    private static CoIterator<String, Void> countingTest(int n) {
+        for (int i = 0; i < n; i++) {
+            resumes++;
+            yield(String.valueOf(i));
+        }
+        return _();
+    }
+
+    @Coroutine
+    private static CoIterator<Object, Void> unserializableTest(int n, Object unserializable, int at) {
+        for (int i = 0; i < n; i++) {
+            yield(i == at ? unserializable : String.valueOf(i));
+        }
+        return _();
+    }
+
+    private static Set<String> spillFiles() {
+        Set<String> spillFiles = new HashSet<String>();
+        for (String name : new File(System.getProperty("java.io.tmpdir")).list()) {
+            if (name.startsWith("coroutine") && name.endsWith(".memo")) {
+                spillFiles.add(name);
+            }
+        }
+        return spillFiles;
+    }
+
+    private static void spillAll(Iterable<String> memoized) {
+        for (Iterator<String> i = memoized.iterator(); i.hasNext();) {
+            i.next();
+        }
+    }
+
+    /*
+     * chunk which cannot be spilled stays in memory, element which was being
+     * recorded is not lost
+     */
+    @Test
+    public void runFailedSpillTest() {
+        Object unserializable = new Object();
+        Iterable<Object> memoized = unserializableTest(40, unserializable, 5).memoize(16);
+        Iterator<Object> reader = memoized.iterator();
+        int failures = 0;
+        for (int i = 0; i < 40; i++) {
+            Object e;
+            try {
+                e = reader.next();
+            } catch (IllegalStateException spillFailure) {
+                failures++;
+                e = reader.next();
+            }
+            assertEquals(i == 5 ? unserializable : String.valueOf(i), e);
+        }
+        assertFalse(reader.hasNext());
+        // spilling is retried whenever new chunk is started
+        assertEquals(2, failures);
+        int i = 0;
+        for (Object e : memoized) {
+            if (i == 5) {
+                assertSame(unserializable, e);
+            } else {
+                assertEquals(String.valueOf(i), e);
+            }
+            i++;
+        }
+        assertEquals(40, i);
+    }
+
+    @Test
+    public void runIndependentReadersTest() {
+        resumes = 0;
+        Iterable<String> memoized = countingTest(100).memoize();
+        Iterator<String> first = memoized.iterator();
+        Iterator<String> second = memoized.iterator();
+        for (int i = 0; i < 50; i++) {
+            assertEquals(String.valueOf(i), first.next());
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(String.valueOf(i), second.next());
+        }
+        for (int i = 50; i < 100; i++) {
+            assertEquals(String.valueOf(i), first.next());
+        }
+        assertFalse(first.hasNext());
+        assertFalse(second.hasNext());
+        assertEquals(100, resumes);
+    }
+
+    /*
+     * file is deleted when next iterable spills after the one owning it was
+     * garbage collected
+     */
+    @Test
+    public void runSpillFileDeletedTest() throws InterruptedException {
+        Set<String> before = spillFiles();
+        spillAll(countingTest(100).memoize(16));
+        Set<String> spilled = spillFiles();
+        spilled.removeAll(before);
+        assertEquals(1, spilled.size());
+        for (int attempt = 0; attempt < 50; attempt++) {
+            System.gc();
+            Thread.sleep(10);
+            spillAll(countingTest(100).memoize(16));
+            if (!spillFiles().containsAll(spilled)) {
+                return;
+            }
+        }
+        fail(spilled + " not deleted");
+    }
+
+    @Test
+    public void runSpillTest() {
+        resumes = 0;
+        Iterable<String> memoized = countingTest(1000).memoize(16);
+        for (int pass = 0; pass < 3; pass++) {
+            int i = 0;
+            for (String s : memoized) {
+                assertEquals(String.valueOf(i++), s);
+            }
+            assertEquals(1000, i);
+        }
+        assertEquals(1000, resumes);
+    }
+
+    private static int resumes;
+}
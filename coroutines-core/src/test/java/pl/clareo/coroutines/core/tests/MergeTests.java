@@ -0,0 +1,65 @@
+package pl.clareo.coroutines.core.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static pl.clareo.coroutines.user.Coroutines._;
+import static pl.clareo.coroutines.user.Coroutines.yield;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.CoIterators;
+import pl.clareo.coroutines.user.Coroutine;
+
+public class MergeTests extends TestsBase {
+
+    @Coroutine
+    private static CoIterator<Integer, Void> multiplesTest(int step, int n) {
+        for (int i = 0; i < n; i++) {
+            yield(i * step);
+        }
+        return _();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void runMergeSortedTest() {
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int step = 1; step <= 5; step++) {
+            for (int i = 0; i < step * 2; i++) {
+                expected.add(i * step);
+            }
+        }
+        Collections.sort(expected);
+        List<Integer> merged = new ArrayList<Integer>();
+        for (Integer i : CoIterators.mergeSorted(null, multiplesTest(3, 6), multiplesTest(1, 2), multiplesTest(5, 10),
+                                                 multiplesTest(2, 4), multiplesTest(4, 8))) {
+            merged.add(i);
+        }
+        assertArrayEquals(expected.toArray(), merged.toArray());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void runMergeWithEmptySourceTest() {
+        List<Integer> merged = new ArrayList<Integer>();
+        for (Integer i : CoIterators.mergeSorted(Collections.reverseOrder(), multiplesTest(-1, 3),
+                                                 multiplesTest(1, 0))) {
+            merged.add(i);
+        }
+        assertArrayEquals(new Object[] { 0, -1, -2 }, merged.toArray());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void runSameSequenceTest() {
+        assertTrue(CoIterators.sameSequence(null, multiplesTest(2, 5), multiplesTest(2, 5), multiplesTest(2, 5)));
+        assertFalse(CoIterators.sameSequence(null, multiplesTest(2, 5), multiplesTest(2, 4)));
+        assertFalse(CoIterators.sameSequence(null, multiplesTest(2, 5), multiplesTest(3, 5)));
+    }
+}
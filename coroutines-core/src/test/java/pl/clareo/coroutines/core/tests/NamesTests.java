@@ -0,0 +1,110 @@
+package pl.clareo.coroutines.core.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static pl.clareo.coroutines.user.Coroutines._;
+import static pl.clareo.coroutines.user.Coroutines.yield;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.Coroutine;
+
+public class NamesTests {
+
+    @Coroutine
+    private static CoIterator<Integer, Void> numbers(int n) {
+        for (int i = 0; i < n; i++) {
+            yield(i);
+        }
+        return _();
+    }
+
+    @Coroutine
+    private static CoIterator<String, Void> numbers(String prefix) {
+        yield(prefix);
+        return _();
+    }
+
+    @Test
+    public void runNamingTest() {
+        Class<?> coIteratorClass = numbers(1).getClass();
+        assertTrue(coIteratorClass.getName(), coIteratorClass.getName()
+            .startsWith("pl.clareo.coroutines.core.CoIterator$NamesTests$numbers$"));
+        assertEquals(coIteratorClass, numbers(2).getClass());
+        assertTrue(coIteratorClass != numbers("").getClass());
+    }
+
+    @Test
+    public void runParallelLoadingTest() throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final Throwable[] errors = new Throwable[LOADED.length];
+        Thread[] threads = new Thread[LOADED.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int loaded = t;
+            threads[t] = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        Class<?> c = Class.forName(NamesTests.class.getName() + '$' + LOADED[loaded]);
+                        CoIterator<?, ?> coroutine = (CoIterator<?, ?>) c.getMethod("coroutine").invoke(null);
+                        assertEquals(LOADED[loaded], coroutine.next());
+                    } catch (Throwable e) {
+                        errors[loaded] = e;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Throwable error : errors) {
+            assertNull(error);
+        }
+    }
+
+    public static class A {
+
+        @Coroutine
+        public static CoIterator<String, Void> coroutine() {
+            yield("A");
+            return _();
+        }
+    }
+
+    public static class B {
+
+        @Coroutine
+        public static CoIterator<String, Void> coroutine() {
+            yield("B");
+            return _();
+        }
+    }
+
+    public static class C {
+
+        @Coroutine
+        public static CoIterator<String, Void> coroutine() {
+            yield("C");
+            return _();
+        }
+    }
+
+    public static class D {
+
+        @Coroutine
+        public static CoIterator<String, Void> coroutine() {
+            yield("D");
+            return _();
+        }
+    }
+
+    private static final String[] LOADED = { "A", "B", "C", "D" };
+}
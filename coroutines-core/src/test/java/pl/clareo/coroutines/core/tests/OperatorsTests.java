@@ -0,0 +1,198 @@
+package pl.clareo.coroutines.core.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static pl.clareo.coroutines.user.Coroutines._;
+import static pl.clareo.coroutines.user.Coroutines.yield;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import pl.clareo.coroutines.user.Accumulator;
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.Combiner;
+import pl.clareo.coroutines.user.Coroutine;
+import pl.clareo.coroutines.user.Function;
+import pl.clareo.coroutines.user.Predicate;
+
+public class OperatorsTests extends TestsBase {
+
+    @Coroutine
+    private static CoIterator<Integer, Void> closingTest() {
+        int i = 0;
+        try {
+            while (i < 100) {
+                yield(i++);
+            }
+        } finally {
+            closed = true;
+        }
+        return _();
+    }
+
+    @Coroutine
+    private static CoIterator<Integer, Void> countingTest(int n) {
+        for (int i = 0; i < n; i++) {
+            resumes++;
+            yield(i);
+        }
+        return _();
+    }
+
+    @Coroutine(generator = false)
+    private static CoIterator<Integer, Integer> echoTest() {
+        Integer i = yield();
+        while (true) {
+            i = yield(i);
+        }
+    }
+
+    @Coroutine
+    private static CoIterator<String, Void> lettersTest(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            yield(s.substring(i, i + 1));
+        }
+        return _();
+    }
+
+    @Coroutine
+    private static CoIterator<Integer, Integer> receivingTest(List<Integer> received) {
+        int i = 0;
+        while (true) {
+            Integer sent = yield(i++);
+            received.add(sent);
+        }
+    }
+
+    @Test
+    public void runFilterSendTest() {
+        List<Integer> received = new ArrayList<Integer>();
+        CoIterator<Integer, Integer> filtered = receivingTest(received).filter(isEven);
+        assertEquals(Integer.valueOf(0), filtered.next());
+        // 7 is received with rejected 1, null with accepted 2
+        assertEquals(Integer.valueOf(2), filtered.send(7));
+        assertEquals(Arrays.asList(7, null), received);
+        filtered.close();
+    }
+
+    @Test
+    public void runFilterTest() {
+        runCoroutine(countingTest(10).filter(isEven), new Integer[] { 0, 2, 4, 6, 8 });
+    }
+
+    @Test
+    public void runFlatMapTest() {
+        CoIterator<String, Void> words = lettersTest("abc");
+        CoIterator<String, Void> flat = words.flatMap(new Function<String, CoIterator<String, Void>>() {
+
+            @Override
+            public CoIterator<String, Void> apply(String s) {
+                return lettersTest(s + s.toUpperCase());
+            }
+        });
+        runCoroutine(flat, new String[] { "a", "A", "b", "B", "c", "C" });
+    }
+
+    @Test
+    public void runFusionTest() {
+        resumes = 0;
+        CoIterator<Integer, Void> chain = countingTest(10).map(increment).map(increment).filter(isEven).map(increment)
+            .scan(0, sum);
+        Iterator<Integer> i = chain.each().iterator();
+        int count = 0;
+        while (i.hasNext()) {
+            i.next();
+            count++;
+        }
+        assertEquals(5, count);
+        assertEquals(10, resumes);
+    }
+
+    @Test
+    public void runMapTest() {
+        runCoroutine(countingTest(5).map(increment), new Integer[] { 1, 2, 3, 4, 5 });
+    }
+
+    @Test
+    public void runScanTest() {
+        runCoroutine(countingTest(5).scan(0, sum), new Integer[] { 0, 1, 3, 6, 10 });
+    }
+
+    @Test
+    public void runSendTest() {
+        CoIterator<Integer, Integer> doubled = echoTest().map(new Function<Integer, Integer>() {
+
+            @Override
+            public Integer apply(Integer i) {
+                return i * 2;
+            }
+        });
+        assertEquals(Integer.valueOf(2), doubled.send(1));
+        assertEquals(Integer.valueOf(10), doubled.send(5));
+        doubled.close();
+    }
+
+    @Test
+    public void runTakeWhileTest() {
+        closed = false;
+        Iterator<Integer> i = closingTest().takeWhile(new Predicate<Integer>() {
+
+            @Override
+            public boolean apply(Integer i) {
+                return i < 3;
+            }
+        }).each().iterator();
+        for (int expected = 0; expected < 3; expected++) {
+            assertEquals(Integer.valueOf(expected), i.next());
+        }
+        assertFalse(i.hasNext());
+        assertTrue(closed);
+    }
+
+    @Test
+    public void runZipTest() {
+        CoIterator<String, Void> zipped = countingTest(10).zip(lettersTest("abc"),
+                                                               new Combiner<Integer, String, String>() {
+
+                                                                   @Override
+                                                                   public String combine(Integer i, String s) {
+                                                                       return s + i;
+                                                                   }
+                                                               });
+        Iterator<String> i = zipped.each().iterator();
+        assertEquals("a0", i.next());
+        assertEquals("b1", i.next());
+        assertEquals("c2", i.next());
+        assertFalse(i.hasNext());
+    }
+
+    private static boolean                               closed;
+    private static final Function<Integer, Integer>      increment = new Function<Integer, Integer>() {
+
+                                                                       @Override
+                                                                       public Integer apply(Integer i) {
+                                                                           return i + 1;
+                                                                       }
+                                                                   };
+    private static final Predicate<Integer>              isEven    = new Predicate<Integer>() {
+
+                                                                       @Override
+                                                                       public boolean apply(Integer i) {
+                                                                           return i % 2 == 0;
+                                                                       }
+                                                                   };
+    private static int                                   resumes;
+    private static final Accumulator<Integer, Integer> sum       = new Accumulator<Integer, Integer>() {
+
+                                                                       @Override
+                                                                       public Integer accumulate(Integer accumulated,
+                                                                                                 Integer i) {
+                                                                           return accumulated + i;
+                                                                       }
+                                                                   };
+}
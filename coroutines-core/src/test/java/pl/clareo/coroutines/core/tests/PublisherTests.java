@@ -0,0 +1,88 @@
+package pl.clareo.coroutines.core.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static pl.clareo.coroutines.user.Coroutines._;
+import static pl.clareo.coroutines.user.Coroutines.yield;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.testng.TestListenerAdapter;
+import org.testng.TestNG;
+
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.CoPublisher;
+import pl.clareo.coroutines.user.Coroutine;
+
+public class PublisherTests extends TestsBase {
+
+    @Coroutine
+    private static CoIterator<Integer, Void> countingTest(int n) {
+        for (int i = 0; i < n; i++) {
+            resumes++;
+            yield(i);
+        }
+        return _();
+    }
+
+    @Test
+    public void runDemandTest() {
+        resumes = 0;
+        final List<Integer> received = new ArrayList<Integer>();
+        final Subscription[] subscription = new Subscription[1];
+        final boolean[] completed = new boolean[1];
+        new CoPublisher<Integer>(countingTest(10)).subscribe(new Subscriber<Integer>() {
+
+            @Override
+            public void onComplete() {
+                completed[0] = true;
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                throw new AssertionError(t);
+            }
+
+            @Override
+            public void onNext(Integer e) {
+                received.add(e);
+                if (received.size() == 4) {
+                    subscription[0].request(3);
+                }
+            }
+
+            @Override
+            public void onSubscribe(Subscription s) {
+                subscription[0] = s;
+            }
+        });
+        assertEquals(0, resumes);
+        subscription[0].request(2);
+        assertEquals(2, resumes);
+        subscription[0].request(2);
+        assertEquals(7, resumes);
+        assertEquals(7, received.size());
+        subscription[0].cancel();
+        subscription[0].request(5);
+        assertEquals(7, resumes);
+        assertFalse(completed[0]);
+    }
+
+    @Test
+    public void runTCK() {
+        TestListenerAdapter listener = new TestListenerAdapter();
+        TestNG testng = new TestNG(false);
+        testng.setTestClasses(new Class<?>[] { CoPublisherVerification.class });
+        testng.addListener(listener);
+        testng.run();
+        assertTrue(listener.getPassedTests().size() > 0);
+        assertEquals(listener.getFailedTests().toString(), 0, listener.getFailedTests().size());
+    }
+
+    private static int resumes;
+}
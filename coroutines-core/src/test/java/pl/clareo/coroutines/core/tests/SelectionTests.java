@@ -0,0 +1,24 @@
+package pl.clareo.coroutines.core.tests;
+
+import org.junit.Test;
+
+import pl.clareo.coroutines.core.tests.excluded.ExcludedGenerators;
+import pl.clareo.coroutines.core.tests.excluded.SelectedGenerators;
+import pl.clareo.coroutines.user.InvalidCoroutineException;
+
+/**
+ * Package excluded is excluded from instrumentation and classes whose names
+ * start with Selected are brought back, see agent arguments
+ */
+public class SelectionTests extends TestsBase {
+
+    @Test(expected = InvalidCoroutineException.class)
+    public void excludedClass() {
+        ExcludedGenerators.upTo(3);
+    }
+
+    @Test
+    public void selectedClass() {
+        runCoroutine(SelectedGenerators.upTo(3), new Integer[] { 0, 1, 2 });
+    }
+}
@@ -0,0 +1,115 @@
+package pl.clareo.coroutines.core.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static pl.clareo.coroutines.user.Coroutines._;
+import static pl.clareo.coroutines.user.Coroutines.yield;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.Coroutine;
+import pl.clareo.coroutines.user.CoroutineClosedException;
+
+/**
+ * Coroutines of one owner and base class share one CoIterator, which
+ * dispatches on coroutine's number. Instrumented without debug code (see agent
+ * arguments), debugged coroutines do not share
+ */
+public class SharedTests extends TestsBase {
+
+    @Coroutine
+    private static CoIterator<Integer, Void> counting(int n) {
+        for (int i = 0; i < n; i++) {
+            yield(i);
+        }
+        return _();
+    }
+
+    @Coroutine
+    private static CoIterator<String, String> echoing(List<String> closed) {
+        String received = "";
+        try {
+            while (true) {
+                received = yield("echo " + received);
+            }
+        } finally {
+            closed.add("echoing closed after " + received);
+        }
+    }
+
+    @Coroutine(threadLocal = true)
+    private static CoIterator<Integer, Void> perThread(int n) {
+        for (int i = n; i > 0; i--) {
+            yield(i);
+        }
+        return _();
+    }
+
+    private int step = 10;
+
+    @Test
+    public void closeSharedCoroutine() {
+        List<String> closed = new ArrayList<String>();
+        CoIterator<String, String> echoing = echoing(closed);
+        CoIterator<Integer, Void> counting = counting(5);
+        assertEquals("echo ", echoing.next());
+        assertEquals(Integer.valueOf(0), counting.next());
+        assertEquals("echo a", echoing.send("a"));
+        echoing.close();
+        assertEquals("[echoing closed after a]", closed.toString());
+        try {
+            echoing.next();
+            fail();
+        } catch (CoroutineClosedException e) {
+        }
+        // coroutine sharing the class is not affected
+        assertEquals(Integer.valueOf(1), counting.next());
+        counting.close();
+        assertEquals("[echoing closed after a]", closed.toString());
+    }
+
+    @Test
+    public void runInterleavedSharedCoroutines() {
+        List<String> closed = new ArrayList<String>();
+        CoIterator<Integer, Void> counting = counting(3);
+        CoIterator<Integer, Void> stepping = stepping(3);
+        CoIterator<String, String> echoing = echoing(closed);
+        assertEquals(Integer.valueOf(0), counting.next());
+        assertEquals(Integer.valueOf(0), stepping.next());
+        assertEquals("echo ", echoing.next());
+        assertEquals(Integer.valueOf(1), counting.next());
+        assertEquals(Integer.valueOf(10), stepping.next());
+        assertEquals("echo b", echoing.send("b"));
+        assertEquals(Integer.valueOf(2), counting.next());
+        assertEquals(Integer.valueOf(20), stepping.next());
+        runCoroutine(counting(2), new Integer[] { 0, 1 });
+        runCoroutine(stepping(2), new Integer[] { 0, 10 });
+    }
+
+    @Test
+    public void shareCoIteratorOfOwner() {
+        List<String> closed = new ArrayList<String>();
+        Class<?> shared = counting(0).getClass();
+        assertSame(shared, echoing(closed).getClass());
+        // instance coroutines share with static ones
+        assertSame(shared, stepping(0).getClass());
+        // other base class, other CoIterator
+        Class<?> perThread = perThread(0).getClass();
+        assertNotSame(shared, perThread);
+        runCoroutine(perThread(3), new Integer[] { 3, 2, 1 });
+    }
+
+    @Coroutine
+    private CoIterator<Integer, Void> stepping(int n) {
+        for (int i = 0; i < n; i++) {
+            yield(i * step);
+        }
+        return _();
+    }
+}
@@ -0,0 +1,165 @@
+package pl.clareo.coroutines.core.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static pl.clareo.coroutines.user.Coroutines._;
+import static pl.clareo.coroutines.user.Coroutines.yield;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.Coroutine;
+import pl.clareo.coroutines.user.InvalidCoroutineException;
+import pl.clareo.coroutines.user.Suspendable;
+
+/**
+ * Suspendable methods yield on behalf of coroutines calling them
+ */
+public class SuspendableTests extends TestsBase {
+
+    @Coroutine
+    private static CoIterator<Integer, Void> expression() {
+        yield(1 + twice(3));
+        return _();
+    }
+
+    @Coroutine
+    private static CoIterator<Long, Void> longs() {
+        long sum = sum(1L << 40, 2);
+        yield(sum);
+        return _();
+    }
+
+    @Coroutine(generator = false)
+    private static CoIterator<String, String> relay() {
+        String last = receive("a");
+        receive(last);
+        return _();
+    }
+
+    @Suspendable
+    private static String receive(String prompt) {
+        String received = yield(prompt);
+        return received + "!";
+    }
+
+    @Suspendable
+    private static long sum(long start, int n) {
+        for (int i = 0; i < n; i++) {
+            yield(start + i);
+        }
+        return start * n;
+    }
+
+    @Suspendable
+    private static int twice(int n) {
+        yield(n);
+        yield(n);
+        return 2 * n;
+    }
+
+    @Coroutine
+    private static CoIterator<Integer, Void> tree(int depth) {
+        walk(1, depth);
+        return _();
+    }
+
+    @Suspendable
+    private static void walk(int node, int depth) {
+        if (depth == 0) {
+            return;
+        }
+        walk(2 * node, depth - 1);
+        yield(node);
+        walk(2 * node + 1, depth - 1);
+    }
+
+    private boolean closed;
+    private int     step = 10;
+
+    @Test
+    public void closeSuspendedCalls() {
+        CoIterator<Integer, Void> steps = guarded();
+        assertEquals(Integer.valueOf(10), steps.next());
+        assertFalse(closed);
+        steps.close();
+        assertTrue(closed);
+    }
+
+    @Suspendable
+    private void count(int n) {
+        for (int i = 0; i < n; i++) {
+            yield(step++);
+        }
+    }
+
+    @Coroutine
+    private CoIterator<Integer, Void> counter() {
+        count(2);
+        count(1);
+        return _();
+    }
+
+    @Coroutine
+    private CoIterator<Integer, Void> guarded() {
+        guardedCount(3);
+        return _();
+    }
+
+    @Suspendable
+    private void guardedCount(int n) {
+        try {
+            count(n);
+        } finally {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void runInstanceSuspendable() {
+        runCoroutine(counter(), new Integer[] { 10, 11, 12 });
+        assertEquals(13, step);
+    }
+
+    @Test
+    public void runLongSuspendable() {
+        runCoroutine(longs(), new Long[] { 1L << 40, (1L << 40) + 1, 2L << 40 });
+    }
+
+    @Test
+    public void runRecursiveSuspendable() {
+        List<Integer> nodes = new ArrayList<Integer>();
+        for (int node : tree(3).each()) {
+            nodes.add(node);
+        }
+        assertEquals(Arrays.asList(4, 2, 5, 1, 6, 3, 7), nodes);
+    }
+
+    @Test
+    public void runSuspendableInExpression() {
+        runCoroutine(expression(), new Integer[] { 3, 3, 7 });
+    }
+
+    @Test
+    public void sendThroughSuspendable() {
+        CoIterator<String, String> relay = relay();
+        assertEquals("b!", relay.send("b"));
+        try {
+            relay.send("c");
+            fail();
+        } catch (NoSuchElementException e) {
+        }
+    }
+
+    @Test(expected = InvalidCoroutineException.class)
+    public void yieldOutsideCoroutine() {
+        twice(1);
+    }
+}
@@ -0,0 +1,150 @@
+package pl.clareo.coroutines.core.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static pl.clareo.coroutines.user.Coroutines._;
+import static pl.clareo.coroutines.user.Coroutines.yield;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.Coroutine;
+import pl.clareo.coroutines.user.LagPolicy;
+import pl.clareo.coroutines.user.TeeIterator;
+
+public class TeeTests extends TestsBase {
+
+    @Coroutine
+    private static CoIterator<Integer, Void> countingTest(int n) {
+        for (int i = 0; i < n; i++) {
+            resumes++;
+            yield(i);
+        }
+        return _();
+    }
+
+    @Coroutine
+    private static CoIterator<Integer, Void> closingTest(List<String> closed) {
+        try {
+            for (int i = 0;; i++) {
+                yield(i);
+            }
+        } finally {
+            closed.add("closed");
+        }
+    }
+
+    /*
+     * consumer which stopped reading no longer holds back the others
+     */
+    @Test
+    public void runAbandonedBlockingTest() throws InterruptedException {
+        List<TeeIterator<Integer>> consumers = countingTest(100).tee(2, 4, LagPolicy.BLOCK);
+        final TeeIterator<Integer> reading = consumers.get(0);
+        TeeIterator<Integer> abandoning = consumers.get(1);
+        assertEquals(Integer.valueOf(0), abandoning.next());
+        final int[] sum = new int[1];
+        Thread thread = new Thread() {
+
+            @Override
+            public void run() {
+                while (reading.hasNext()) {
+                    sum[0] += reading.next();
+                }
+            }
+        };
+        thread.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (thread.getState() != Thread.State.WAITING) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        abandoning.close();
+        thread.join(10000);
+        assertFalse(thread.isAlive());
+        assertEquals(100 * 99 / 2, sum[0]);
+        assertFalse(abandoning.hasNext());
+    }
+
+    @Test
+    public void runBlockingTest() throws InterruptedException {
+        final List<TeeIterator<Integer>> consumers = countingTest(2000).tee(3, 8, LagPolicy.BLOCK);
+        final int[] sums = new int[3];
+        Thread[] threads = new Thread[3];
+        for (int t = 0; t < 3; t++) {
+            final int consumer = t;
+            threads[t] = new Thread() {
+
+                @Override
+                public void run() {
+                    Iterator<Integer> i = consumers.get(consumer);
+                    while (i.hasNext()) {
+                        sums[consumer] += i.next();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        int expected = 2000 * 1999 / 2;
+        for (int sum : sums) {
+            assertEquals(expected, sum);
+        }
+    }
+
+    @Test
+    public void runCloseAllTest() {
+        List<String> closed = new ArrayList<String>();
+        List<TeeIterator<Integer>> consumers = closingTest(closed).tee(2);
+        assertEquals(Integer.valueOf(0), consumers.get(0).next());
+        consumers.get(0).close();
+        consumers.get(0).close();
+        assertEquals(Integer.valueOf(0), consumers.get(1).next());
+        assertEquals(Integer.valueOf(1), consumers.get(1).next());
+        assertTrue(closed.isEmpty());
+        consumers.get(1).close();
+        assertEquals("[closed]", closed.toString());
+    }
+
+    @Test
+    public void runFailFastTest() {
+        List<TeeIterator<Integer>> consumers = countingTest(100).tee(2, 4, LagPolicy.FAIL_FAST);
+        Iterator<Integer> fast = consumers.get(0);
+        Iterator<Integer> slow = consumers.get(1);
+        assertEquals(Integer.valueOf(0), slow.next());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(i), fast.next());
+        }
+        assertFalse(fast.hasNext());
+        try {
+            slow.next();
+            fail();
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void runLockstepTest() {
+        resumes = 0;
+        List<TeeIterator<Integer>> consumers = countingTest(50).tee(3);
+        for (int i = 0; i < 50; i++) {
+            for (Iterator<Integer> consumer : consumers) {
+                assertEquals(Integer.valueOf(i), consumer.next());
+            }
+        }
+        for (Iterator<Integer> consumer : consumers) {
+            assertFalse(consumer.hasNext());
+        }
+        assertEquals(50, resumes);
+    }
+
+    private static int resumes;
+}
@@ -0,0 +1,130 @@
+package pl.clareo.coroutines.core.tests;
+
+import static org.junit.Assert.assertEquals;
+import static pl.clareo.coroutines.user.Coroutines._;
+import static pl.clareo.coroutines.user.Coroutines.transfer;
+import static pl.clareo.coroutines.user.Coroutines.yield;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.Coroutine;
+import pl.clareo.coroutines.user.InvalidCoroutineException;
+
+/**
+ * Coroutines transfer control to each other without returning to their caller
+ */
+public class TransferTests extends TestsBase {
+
+    private CoIterator<Integer, Void>    batching;
+    private CoIterator<String, Void>     first;
+    private CoIterator<Integer, Integer> ping;
+    private CoIterator<Integer, Integer> pong;
+    private CoIterator<String, Void>     second;
+
+    @Coroutine(batch = 4)
+    private CoIterator<Integer, Void> batching(int n) {
+        for (int i = 0; i < n; i++) {
+            yield(i);
+        }
+        return _();
+    }
+
+    @Coroutine
+    private CoIterator<String, Void> first() {
+        yield("a");
+        transfer(second, null);
+        yield("d");
+        return _();
+    }
+
+    @Coroutine
+    private CoIterator<Integer, Integer> ping(int limit, int yieldEvery) {
+        int n = 0;
+        while (n < limit) {
+            n = transfer(pong, n + 1);
+            if (n % yieldEvery == 0) {
+                yield(n);
+            }
+        }
+        return _();
+    }
+
+    @Coroutine(generator = false)
+    private CoIterator<Integer, Integer> pong() {
+        Integer n = yield();
+        while (true) {
+            n = transfer(ping, n + 1);
+        }
+    }
+
+    @Test
+    public void resumeBatchingCoroutineControlWasTransferredTo() {
+        batching = batching(6);
+        runCoroutine(transferringToBatching(), new Integer[] { -1, 0, 1, 2, 3, 4, 5 });
+    }
+
+    @Test
+    public void resumeCoroutineControlWasTransferredTo() {
+        first = first();
+        second = second();
+        runCoroutine(first, new String[] { "a", "b", "c", "d" });
+    }
+
+    @Test
+    public void runPingPong() {
+        ping = ping(10, 1);
+        pong = pong();
+        runCoroutine(ping, new Integer[] { 2, 4, 6, 8, 10 });
+    }
+
+    @Coroutine(generator = false)
+    private CoIterator<String, Void> second() {
+        yield();
+        yield("b");
+        yield("c");
+        transfer(first, null);
+        return _();
+    }
+
+    @Test(expected = InvalidCoroutineException.class)
+    public void transferOutsideCoroutine() {
+        transfer(pong(), 1);
+    }
+
+    @Coroutine
+    private CoIterator<Integer, Void> transferringToBatching() {
+        yield(-1);
+        transfer(batching, null);
+        return _();
+    }
+
+    /*
+     * thousands of transfers on a small stack, which they would overflow if
+     * each of them grew it
+     */
+    @Test
+    public void transferWithoutGrowingStack() throws InterruptedException {
+        ping = ping(4000, 1000);
+        pong = pong();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread transfers = new Thread(null, new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    runCoroutine(ping, new Integer[] { 1000, 2000, 3000, 4000 });
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        }, "transfers", 128 * 1024);
+        transfers.start();
+        transfers.join();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+}
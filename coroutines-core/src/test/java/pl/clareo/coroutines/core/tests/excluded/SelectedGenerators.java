@@ -0,0 +1,18 @@
+package pl.clareo.coroutines.core.tests.excluded;
+
+import static pl.clareo.coroutines.user.Coroutines._;
+import static pl.clareo.coroutines.user.Coroutines.yield;
+
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.Coroutine;
+
+public class SelectedGenerators {
+
+    @Coroutine
+    public static CoIterator<Integer, Void> upTo(int n) {
+        for (int i = 0; i < n; i++) {
+            yield(i);
+        }
+        return _();
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2009-2010 Marcin Rzeźnicki
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package pl.clareo.coroutines.aot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+import pl.clareo.coroutines.core.CoroutineCompiler;
+import pl.clareo.coroutines.core.CoroutineGenerationException;
+
+/**
+ * Instruments coroutines while javac compiles them, so that compiled classes
+ * run without agent. Annotation processing itself runs before class files
+ * exist, so processor only collects classes declaring coroutines and
+ * instruments each one as soon as javac has written it; generated
+ * CoIterators are written to class output as well. Processor is found by
+ * javac when coroutines-maven-plugin jar and its dependencies are on processor
+ * path (or classpath, if there is no processor path). Options:
+ * 
+ * <pre>
+ * -Acoroutines.debug -Acoroutines.verify -Acoroutines.overrideFrames
+ * </pre>
+ * 
+ * Processor needs javac 8 or newer, other compilers only get a warning and
+ * classes need to be instrumented by {@link InstrumentMojo} or agent.
+ * Coroutines of local and anonymous classes are not seen by annotation
+ * processing and are not instrumented
+ */
+@SupportedAnnotationTypes("pl.clareo.coroutines.user.Coroutine")
+@SupportedOptions({ "coroutines.debug", "coroutines.verify", "coroutines.overrideFrames" })
+public class CoroutineProcessor extends AbstractProcessor {
+
+    private static boolean isEnabled(Map<String, String> options, String option) {
+        String value = options.get(option);
+        return value != null && !value.equals("false");
+    }
+
+    private CoroutineCompiler compiler;
+    private final Set<String> coroutineClasses = new HashSet<String>();
+
+    private File getClassFile(String internalName) throws IOException {
+        FileObject classFile = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "",
+                                                                     internalName + ".class");
+        try {
+            return new File(classFile.toUri());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Class output is not a directory: " + classFile.toUri());
+        }
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        try {
+            // javac's API is visible to javac, not necessarily to processor path
+            ClassLoader javacLoader = processingEnv.getClass().getClassLoader();
+            Class<?> javacTask = Class.forName("com.sun.source.util.JavacTask", false, javacLoader);
+            Object task = javacTask.getMethod("instance", ProcessingEnvironment.class).invoke(null, processingEnv);
+            Class<?> taskListener = Class.forName("com.sun.source.util.TaskListener", false, javacLoader);
+            Object listener =
+                              Proxy.newProxyInstance(taskListener.getClassLoader(), new Class<?>[] { taskListener },
+                                                     new GenerationListener());
+            javacTask.getMethod("addTaskListener", taskListener).invoke(task, listener);
+        } catch (Exception e) {
+            processingEnv.getMessager()
+                         .printMessage(Diagnostic.Kind.WARNING,
+                                       "Coroutines cannot be instrumented by this compiler (" + e
+                                           + "), instrument classes with coroutines-maven-plugin or agent");
+        }
+    }
+
+    /**
+     * Instruments class just written by javac if it declares coroutines
+     */
+    private void instrument(TypeElement type) {
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        if (!coroutineClasses.remove(binaryName)) {
+            return;
+        }
+        try {
+            File classFile = getClassFile(binaryName.replace('.', '/'));
+            File outputRoot = classFile.getParentFile();
+            for (int i = binaryName.indexOf('.'); i != -1; i = binaryName.indexOf('.', i + 1)) {
+                outputRoot = outputRoot.getParentFile();
+            }
+            if (compiler == null) {
+                Map<String, String> options = processingEnv.getOptions();
+                compiler =
+                           new CoroutineCompiler(new CompilationClassLoader(), isEnabled(options, "coroutines.debug"),
+                                                 isEnabled(options, "coroutines.verify"),
+                                                 isEnabled(options, "coroutines.overrideFrames"));
+            }
+            Map<String, byte[]> classes = compiler.compile(OfflineInstrumentator.readFile(classFile));
+            boolean first = true;
+            for (Map.Entry<String, byte[]> c : classes.entrySet()) {
+                if (first) {
+                    OfflineInstrumentator.writeFile(classFile, c.getValue());
+                    first = false;
+                } else {
+                    OfflineInstrumentator.writeFile(new File(outputRoot, c.getKey() + ".class"), c.getValue());
+                }
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                                                     "Unable to instrument " + binaryName + ": " + e.getMessage(),
+                                                     type);
+        } catch (CoroutineGenerationException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, e.getMessage(), type);
+        }
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (Element coroutine : roundEnv.getElementsAnnotatedWith(annotation)) {
+                TypeElement type = (TypeElement) coroutine.getEnclosingElement();
+                coroutineClasses.add(processingEnv.getElementUtils().getBinaryName(type).toString());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds class files where javac does: in class output and on class path of
+     * compilation, read through javac's file manager. Processor path is only
+     * searched last for classes of coroutines runtime, which need not be on
+     * class path while compiling
+     */
+    private final class CompilationClassLoader extends ClassLoader {
+
+        CompilationClassLoader() {
+            super(null);
+        }
+
+        @Override
+        public InputStream getResourceAsStream(String name) {
+            InputStream in = super.getResourceAsStream(name);
+            for (int i = 0; in == null && i < COMPILATION_LOCATIONS.length; i++) {
+                try {
+                    in = processingEnv.getFiler().getResource(COMPILATION_LOCATIONS[i], "", name).openInputStream();
+                } catch (IOException e) {
+                    // not in this location
+                }
+            }
+            if (in == null) {
+                in = CoroutineProcessor.class.getClassLoader().getResourceAsStream(name);
+            }
+            return in;
+        }
+    }
+
+    /**
+     * Implementation of com.sun.source.util.TaskListener, which is not
+     * available at compile time
+     */
+    private final class GenerationListener implements InvocationHandler {
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return method.invoke(this, args);
+            }
+            if (method.getName().equals("finished")) {
+                Object event = args[0];
+                Object kind = event.getClass().getMethod("getKind").invoke(event);
+                if (kind.toString().equals("GENERATE")) {
+                    instrument((TypeElement) event.getClass().getMethod("getTypeElement").invoke(event));
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final StandardLocation[] COMPILATION_LOCATIONS = { StandardLocation.CLASS_OUTPUT,
+                                                                      StandardLocation.CLASS_PATH };
+}
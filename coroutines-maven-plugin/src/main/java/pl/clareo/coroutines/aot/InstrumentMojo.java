@@ -0,0 +1,101 @@
+/*
+ * Copyright 2009-2010 Marcin Rzeźnicki
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package pl.clareo.coroutines.aot;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+import pl.clareo.coroutines.core.CoroutineCompiler;
+import pl.clareo.coroutines.core.CoroutineGenerationException;
+
+/**
+ * Instruments coroutines in compiled classes, so that they run without
+ * coroutines agent
+ */
+@Mojo(name = "instrument", defaultPhase = LifecyclePhase.PROCESS_CLASSES, threadSafe = true,
+      requiresDependencyResolution = ResolutionScope.COMPILE)
+public class InstrumentMojo extends AbstractMojo {
+
+    /**
+     * Directory containing classes to instrument
+     */
+    @Parameter(defaultValue = "${project.build.outputDirectory}", required = true)
+    private File         classesDirectory;
+    /**
+     * Classpath supertypes of instrumented classes are looked up in
+     */
+    @Parameter(defaultValue = "${project.compileClasspathElements}", readonly = true, required = true)
+    private List<String> classpathElements;
+    /**
+     * Generate debugging code in coroutines
+     */
+    @Parameter(property = "coroutines.debug", defaultValue = "false")
+    private boolean      debug;
+    /**
+     * Directory instrumented classes are written to, by default classes are
+     * instrumented in place
+     */
+    @Parameter(defaultValue = "${project.build.outputDirectory}", required = true)
+    private File         outputDirectory;
+    /**
+     * Let ASM compute stack map frames of instrumented classes
+     */
+    @Parameter(property = "coroutines.overrideFrames", defaultValue = "false")
+    private boolean      overrideFrames;
+    @Parameter(property = "coroutines.skip", defaultValue = "false")
+    private boolean      skip;
+    /**
+     * Verify instrumented classes
+     */
+    @Parameter(property = "coroutines.verify", defaultValue = "false")
+    private boolean      verify;
+
+    @Override
+    public void execute() throws MojoExecutionException {
+        if (skip) {
+            getLog().info("Skipping coroutines instrumentation");
+            return;
+        }
+        if (!classesDirectory.isDirectory()) {
+            getLog().info("No classes to instrument");
+            return;
+        }
+        List<File> classpath = new ArrayList<File>();
+        for (String element : classpathElements) {
+            classpath.add(new File(element));
+        }
+        OfflineInstrumentator instrumentator;
+        try {
+            ClassLoader loader = OfflineInstrumentator.classpath(classesDirectory, classpath);
+            instrumentator = new OfflineInstrumentator(new CoroutineCompiler(loader, debug, verify, overrideFrames));
+            instrumentator.instrument(classesDirectory, outputDirectory);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to instrument " + classesDirectory, e);
+        } catch (CoroutineGenerationException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+        getLog().info("Instrumented " + instrumentator.getInstrumentedClasses() + " classes with coroutines");
+    }
+}
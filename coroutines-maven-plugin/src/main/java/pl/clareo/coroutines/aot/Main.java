@@ -0,0 +1,100 @@
+/*
+ * Copyright 2009-2010 Marcin Rzeźnicki
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package pl.clareo.coroutines.aot;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import pl.clareo.coroutines.core.CoroutineCompiler;
+import pl.clareo.coroutines.core.CoroutineGenerationException;
+
+/**
+ * Command line front-end of {@link OfflineInstrumentator}:
+ * 
+ * <pre>
+ * java -jar coroutines-maven-plugin.jar [-debug] [-verify] [-overrideframes] [-cp classpath] input [output]
+ * </pre>
+ * 
+ * Input is directory of classes or jar file, if output is not given input is
+ * instrumented in place. Classpath lists dependencies of input, supertypes of
+ * classes found there are needed to instrument coroutines
+ */
+public class Main {
+
+    public static void main(String[] args) {
+        boolean debug = false;
+        boolean verify = false;
+        boolean overrideFrames = false;
+        List<File> classpath = new ArrayList<File>();
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i++) {
+            String option = args[i];
+            if (option.equals("-debug")) {
+                debug = true;
+            } else if (option.equals("-verify")) {
+                verify = true;
+            } else if (option.equals("-overrideframes")) {
+                overrideFrames = true;
+            } else if (option.equals("-cp") && i + 1 < args.length) {
+                for (String element : args[++i].split(File.pathSeparator)) {
+                    if (element.length() > 0) {
+                        classpath.add(new File(element));
+                    }
+                }
+            } else {
+                usage("Unknown option " + option);
+                return;
+            }
+        }
+        int paths = args.length - i;
+        if (paths < 1 || paths > 2) {
+            usage(null);
+            return;
+        }
+        File input = new File(args[i]);
+        File output = paths == 2 ? new File(args[i + 1]) : input;
+        if (!input.exists()) {
+            usage(input + " does not exist");
+            return;
+        }
+        try {
+            ClassLoader loader = OfflineInstrumentator.classpath(input, classpath);
+            OfflineInstrumentator instrumentator =
+                                                   new OfflineInstrumentator(new CoroutineCompiler(loader, debug,
+                                                                                                   verify,
+                                                                                                   overrideFrames));
+            instrumentator.instrument(input, output);
+            System.out.println("Instrumented " + instrumentator.getInstrumentedClasses() + " classes with coroutines");
+        } catch (IOException e) {
+            System.err.println("I/O error: " + e.getMessage());
+            System.exit(1);
+        } catch (CoroutineGenerationException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void usage(String error) {
+        if (error != null) {
+            System.err.println(error);
+        }
+        System.err.println("Usage: java -jar coroutines-maven-plugin.jar [-debug] [-verify] [-overrideframes] [-cp classpath]"
+                           + " input [output]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2009-2010 Marcin Rzeźnicki
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package pl.clareo.coroutines.aot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import pl.clareo.coroutines.core.CoroutineCompiler;
+
+/**
+ * Instruments compiled classes - either directory tree or jar - ahead of time.
+ * Instrumented classes replace originals in the output, CoIterators generated
+ * for coroutines are written next to them (directory) or appended (jar), so
+ * that output needs only coroutines-core on the classpath and no agent
+ */
+public final class OfflineInstrumentator {
+
+    /**
+     * Creates loader class hierarchy of instrumented classes is resolved
+     * against. Classes are only read as resources, never loaded
+     * 
+     * @param input
+     *            directory of classes or jar file being instrumented
+     * @param dependencies
+     *            its compile classpath
+     */
+    public static ClassLoader classpath(File input, Collection<File> dependencies) throws MalformedURLException {
+        URL[] urls = new URL[dependencies.size() + 1];
+        int i = 0;
+        urls[i++] = input.toURI().toURL();
+        for (File dependency : dependencies) {
+            urls[i++] = dependency.toURI().toURL();
+        }
+        return new URLClassLoader(urls, null);
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    static void writeFile(File file, byte[] contents) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+    }
+
+    private final CoroutineCompiler compiler;
+    private int                     instrumentedClasses;
+
+    public OfflineInstrumentator() {
+        this(new CoroutineCompiler());
+    }
+
+    public OfflineInstrumentator(CoroutineCompiler compiler) {
+        this.compiler = compiler;
+    }
+
+    /**
+     * @return number of classes with coroutines instrumented so far
+     */
+    public int getInstrumentedClasses() {
+        return instrumentedClasses;
+    }
+
+    /**
+     * Instruments directory of classes or jar file. Output may be the same as
+     * input, in which case it is instrumented in place
+     */
+    public void instrument(File input, File output) throws IOException {
+        if (input.isDirectory()) {
+            instrumentDirectory(input, output, output);
+        } else {
+            instrumentJar(input, output);
+        }
+    }
+
+    /*
+     * generated classes go to the root of output tree
+     */
+    private void instrumentDirectory(File input, File output, File outputRoot) throws IOException {
+        File[] files = input.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list " + input);
+        }
+        boolean inPlace = input.getCanonicalFile().equals(output.getCanonicalFile());
+        for (File file : files) {
+            File outputFile = new File(output, file.getName());
+            if (file.isDirectory()) {
+                instrumentDirectory(file, outputFile, outputRoot);
+            } else {
+                byte[] contents = readFile(file);
+                Map<String, byte[]> classes = null;
+                if (file.getName().endsWith(".class")) {
+                    classes = compiler.compile(contents);
+                }
+                if (classes == null || classes.isEmpty()) {
+                    if (!inPlace) {
+                        writeFile(outputFile, contents);
+                    }
+                } else {
+                    instrumentedClasses++;
+                    boolean first = true;
+                    for (Map.Entry<String, byte[]> c : classes.entrySet()) {
+                        if (first) {
+                            writeFile(outputFile, c.getValue());
+                            first = false;
+                        } else {
+                            writeFile(new File(outputRoot, c.getKey() + ".class"), c.getValue());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void instrumentJar(File input, File output) throws IOException {
+        File target = output;
+        boolean inPlace = input.getCanonicalFile().equals(output.getCanonicalFile());
+        if (inPlace) {
+            target = File.createTempFile(input.getName(), ".tmp", input.getAbsoluteFile().getParentFile());
+        }
+        Map<String, byte[]> generatedClasses = new LinkedHashMap<String, byte[]>();
+        JarInputStream in = new JarInputStream(new BufferedInputStream(new FileInputStream(input)));
+        try {
+            Manifest manifest = in.getManifest();
+            OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(target));
+            JarOutputStream out = manifest == null ? new JarOutputStream(fileOut) : new JarOutputStream(fileOut, manifest);
+            try {
+                JarEntry entry;
+                while ((entry = in.getNextJarEntry()) != null) {
+                    String name = entry.getName();
+                    if (entry.isDirectory()) {
+                        out.putNextEntry(new JarEntry(name));
+                        out.closeEntry();
+                        continue;
+                    }
+                    byte[] contents = read(in);
+                    if (name.endsWith(".class")) {
+                        Map<String, byte[]> classes = compiler.compile(contents);
+                        if (!classes.isEmpty()) {
+                            instrumentedClasses++;
+                            boolean first = true;
+                            for (Map.Entry<String, byte[]> c : classes.entrySet()) {
+                                if (first) {
+                                    contents = c.getValue();
+                                    first = false;
+                                } else {
+                                    generatedClasses.put(c.getKey() + ".class", c.getValue());
+                                }
+                            }
+                        }
+                    }
+                    out.putNextEntry(new JarEntry(name));
+                    out.write(contents);
+                    out.closeEntry();
+                }
+                for (Map.Entry<String, byte[]> c : generatedClasses.entrySet()) {
+                    out.putNextEntry(new JarEntry(c.getKey()));
+                    out.write(c.getValue());
+                    out.closeEntry();
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (inPlace) {
+            if (!input.delete() || !target.renameTo(input)) {
+                throw new IOException("Cannot replace " + input + " with " + target);
+            }
+        }
+    }
+}
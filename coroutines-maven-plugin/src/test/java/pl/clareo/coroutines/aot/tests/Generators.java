@@ -0,0 +1,39 @@
+package pl.clareo.coroutines.aot.tests;
+
+import static pl.clareo.coroutines.user.Coroutines._;
+import static pl.clareo.coroutines.user.Coroutines.yield;
+
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.Coroutine;
+
+public class Generators {
+
+    @Coroutine
+    public static CoIterator<Integer, Void> fibonacci(int n) {
+        int a = 0;
+        int b = 1;
+        for (int i = 0; i < n; i++) {
+            yield(a);
+            int c = a + b;
+            a = b;
+            b = c;
+        }
+        return _();
+    }
+
+    private final String prefix;
+
+    public Generators(String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Coroutine
+    public CoIterator<String, Void> countdown(int from) {
+        int i = from;
+        while (i > 0) {
+            yield(prefix + i);
+            i--;
+        }
+        return _();
+    }
+}
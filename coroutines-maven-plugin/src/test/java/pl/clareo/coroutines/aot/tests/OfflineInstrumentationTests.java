@@ -0,0 +1,106 @@
+package pl.clareo.coroutines.aot.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import pl.clareo.coroutines.aot.OfflineInstrumentator;
+import pl.clareo.coroutines.core.CoroutineCompiler;
+import pl.clareo.coroutines.user.CoIterator;
+
+public class OfflineInstrumentationTests {
+
+    private static File        output;
+    private static ClassLoader loader;
+
+    private static URL location(Class<?> c) {
+        return c.getProtectionDomain().getCodeSource().getLocation();
+    }
+
+    private static List<Object> results(Object coIterator) throws Exception {
+        Method each = loader.loadClass(CoIterator.class.getName()).getMethod("each");
+        List<Object> results = new ArrayList<Object>();
+        for (Object o : (Iterable<?>) each.invoke(coIterator)) {
+            results.add(o);
+        }
+        return results;
+    }
+
+    @BeforeClass
+    public static void instrument() throws IOException {
+        File input = new File(location(OfflineInstrumentationTests.class).getPath());
+        output = new File(System.getProperty("aotOutputDirectory"));
+        /*
+         * types are resolved only against input and coroutines' API, not the
+         * classpath tests run with
+         */
+        List<File> classpath = Collections.singletonList(new File(location(CoIterator.class).getPath()));
+        ClassLoader classpathLoader = OfflineInstrumentator.classpath(input, classpath);
+        OfflineInstrumentator instrumentator =
+                                               new OfflineInstrumentator(new CoroutineCompiler(classpathLoader, false,
+                                                                                               false, false));
+        instrumentator.instrument(input, output);
+        assertEquals(1, instrumentator.getInstrumentedClasses());
+        /*
+         * no agent and no parent - everything must come from the output and
+         * coroutines' runtime
+         */
+        loader =
+                 new URLClassLoader(new URL[] { output.toURI().toURL(), location(CoroutineCompiler.class),
+                                               location(CoIterator.class) }, null);
+    }
+
+    @Test
+    public void runInstanceCoroutine() throws Exception {
+        Class<?> generators = loader.loadClass(Generators.class.getName());
+        Object instance = generators.getConstructor(String.class).newInstance("T-");
+        Object countdown = generators.getMethod("countdown", int.class).invoke(instance, 3);
+        assertEquals(Arrays.<Object> asList("T-3", "T-2", "T-1"), results(countdown));
+    }
+
+    @Test
+    public void runReinstrumentation() throws IOException {
+        File instrumented = new File(output, Generators.class.getName().replace('.', '/') + ".class");
+        InputStream in = new FileInputStream(instrumented);
+        byte[] contents = new byte[(int) instrumented.length()];
+        try {
+            int offset = 0;
+            while (offset < contents.length) {
+                offset += in.read(contents, offset, contents.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        assertTrue(new CoroutineCompiler().compile(contents).isEmpty());
+    }
+
+    @Test
+    public void runSharedCoIterator() throws Exception {
+        Class<?> generators = loader.loadClass(Generators.class.getName());
+        Object fibonacci = generators.getMethod("fibonacci", int.class).invoke(null, 1);
+        Object instance = generators.getConstructor(String.class).newInstance("");
+        Object countdown = generators.getMethod("countdown", int.class).invoke(instance, 1);
+        assertEquals(fibonacci.getClass(), countdown.getClass());
+    }
+
+    @Test
+    public void runStaticCoroutine() throws Exception {
+        Class<?> generators = loader.loadClass(Generators.class.getName());
+        Object fibonacci = generators.getMethod("fibonacci", int.class).invoke(null, 7);
+        assertEquals(Arrays.<Object> asList(0, 1, 1, 2, 3, 5, 8), results(fibonacci));
+    }
+}
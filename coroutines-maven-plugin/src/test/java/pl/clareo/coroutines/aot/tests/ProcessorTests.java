@@ -0,0 +1,108 @@
+package pl.clareo.coroutines.aot.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+import pl.clareo.coroutines.aot.CoroutineProcessor;
+import pl.clareo.coroutines.core.CoroutineCompiler;
+import pl.clareo.coroutines.user.CoIterator;
+
+/**
+ * Compiles {@link Generators} and shapes (against library which is on
+ * classpath of javac only) with javac and {@link CoroutineProcessor}, then runs
+ * compiled classes without agent
+ */
+public class ProcessorTests {
+
+    private static ClassLoader loader;
+
+    private static URL location(Class<?> c) {
+        return c.getProtectionDomain().getCodeSource().getLocation();
+    }
+
+    /*
+     * javac 12+ does not compile for 6 any more (though it claims to support
+     * it), 8 is supported by all javacs processor runs with
+     */
+    private static String oldestVersion() {
+        return System.getProperty("java.specification.version").startsWith("1.") ? "1.6" : "8";
+    }
+
+    @BeforeClass
+    public static void compile() throws IOException {
+        File output = new File(System.getProperty("processorOutputDirectory"));
+        output.mkdirs();
+        File library = new File(System.getProperty("libraryOutputDirectory"));
+        library.mkdirs();
+        String librarySources = "src/test/library/pl/clareo/coroutines/aot/library/";
+        String processorPath =
+                               location(CoroutineProcessor.class).getPath() + File.pathSeparator
+                                   + location(CoroutineCompiler.class).getPath() + File.pathSeparator
+                                   + location(ClassReader.class).getPath() + File.pathSeparator
+                                   + location(CoIterator.class).getPath();
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        String version = oldestVersion();
+        int result =
+                     javac.run(null, null, null, "-source", version, "-target", version, "-nowarn", "-d",
+                               library.getPath(), librarySources + "Shape.java", librarySources + "Circle.java",
+                               librarySources + "Square.java");
+        assertEquals(0, result);
+        File source = new File("src/test/java/" + Generators.class.getName().replace('.', '/') + ".java");
+        result =
+                 javac.run(null, null, null, "-source", version, "-target", version, "-nowarn", "-d",
+                           output.getPath(), "-classpath",
+                           location(CoIterator.class).getPath() + File.pathSeparator + library.getPath(),
+                           "-processorpath", processorPath, "-processor", CoroutineProcessor.class.getName(),
+                           source.getPath(), librarySources + "Shapes.java");
+        assertEquals(0, result);
+        loader =
+                 new URLClassLoader(new URL[] { output.toURI().toURL(), library.toURI().toURL(),
+                                               location(CoroutineCompiler.class), location(CoIterator.class) }, null);
+    }
+
+    private static List<Object> results(Object coIterator) throws Exception {
+        Method each = loader.loadClass(CoIterator.class.getName()).getMethod("each");
+        List<Object> results = new ArrayList<Object>();
+        for (Object o : (Iterable<?>) each.invoke(coIterator)) {
+            results.add(o);
+        }
+        return results;
+    }
+
+    @Test
+    public void runInstanceCoroutine() throws Exception {
+        Class<?> generators = loader.loadClass(Generators.class.getName());
+        Object instance = generators.getConstructor(String.class).newInstance("P-");
+        Object countdown = generators.getMethod("countdown", int.class).invoke(instance, 2);
+        assertEquals(Arrays.<Object> asList("P-2", "P-1"), results(countdown));
+    }
+
+    @Test
+    public void runLibraryTypesCoroutine() throws Exception {
+        Class<?> shapes = loader.loadClass("pl.clareo.coroutines.aot.library.Shapes");
+        Object names = shapes.getMethod("names", boolean.class).invoke(null, true);
+        assertEquals(Arrays.<Object> asList("circle", "square"), results(names));
+    }
+
+    @Test
+    public void runStaticCoroutine() throws Exception {
+        Class<?> generators = loader.loadClass(Generators.class.getName());
+        Object fibonacci = generators.getMethod("fibonacci", int.class).invoke(null, 5);
+        assertEquals(Arrays.<Object> asList(0, 1, 1, 2, 3), results(fibonacci));
+    }
+}
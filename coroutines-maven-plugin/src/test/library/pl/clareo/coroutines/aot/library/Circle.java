@@ -0,0 +1,9 @@
+package pl.clareo.coroutines.aot.library;
+
+public class Circle extends Shape {
+
+    @Override
+    public String name() {
+        return "circle";
+    }
+}
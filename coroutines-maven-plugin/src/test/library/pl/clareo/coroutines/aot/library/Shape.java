@@ -0,0 +1,6 @@
+package pl.clareo.coroutines.aot.library;
+
+public abstract class Shape {
+
+    public abstract String name();
+}
@@ -0,0 +1,23 @@
+package pl.clareo.coroutines.aot.library;
+
+import static pl.clareo.coroutines.user.Coroutines._;
+import static pl.clareo.coroutines.user.Coroutines.yield;
+
+import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.Coroutine;
+
+/**
+ * Compiled against library classes which are on classpath of javac only,
+ * merging circle and square needs their class files
+ */
+public class Shapes {
+
+    @Coroutine
+    public static CoIterator<String, Void> names(boolean circleFirst) {
+        Shape first = circleFirst ? new Circle() : new Square();
+        yield(first.name());
+        Shape second = circleFirst ? new Square() : new Circle();
+        yield(second.name());
+        return _();
+    }
+}
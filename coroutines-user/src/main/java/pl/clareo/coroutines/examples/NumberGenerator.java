@@ -7,7 +7,7 @@ import pl.clareo.coroutines.user.Coroutine;
 
 public class NumberGenerator {
 
-    @Coroutine
+    @Coroutine(batch = 16)
     public static CoIterator<Double, Void> fareySequence(int n) {
         int a = 0;
         int b = 1;
@@ -3,9 +3,11 @@ package pl.clareo.coroutines.examples;
 import static pl.clareo.coroutines.user.Coroutines._;
 import static pl.clareo.coroutines.user.Coroutines.yield;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 
 import pl.clareo.coroutines.user.CoIterator;
+import pl.clareo.coroutines.user.CoIterators;
 import pl.clareo.coroutines.user.Coroutine;
 
 public class Tree<T extends Comparable<T>> {
@@ -28,17 +30,23 @@ public class Tree<T extends Comparable<T>> {
         tree3.insert(9);
         tree3.insert(4);
         System.out.println("same fringe?: " + Tree.sameFringe(tree1, tree3));
+        System.out.println("merged fringes: " + Tree.mergedFringes(tree1, tree2, tree3));
     }
 
-    public static <T extends Comparable<T>> boolean sameFringe(Tree<T> t1, Tree<T> t2) {
-        Iterator<T> t1Leaves = t1.leaves(t1.root).each().iterator();
-        Iterator<T> t2Leaves = t2.leaves(t2.root).each().iterator();
-        while (t1Leaves.hasNext() && t2Leaves.hasNext()) {
-            if (t1Leaves.next().compareTo(t2Leaves.next()) != 0) {
-                return false;
-            }
+    public static <T extends Comparable<T>> List<T> mergedFringes(Tree<T>... trees) {
+        CoIterator<T, Void>[] leaves = new CoIterator[trees.length];
+        for (int i = 0; i < trees.length; i++) {
+            leaves[i] = trees[i].leaves(trees[i].root);
+        }
+        List<T> merged = new ArrayList<T>();
+        for (T leaf : CoIterators.mergeSorted(null, leaves)) {
+            merged.add(leaf);
         }
-        return !t1Leaves.hasNext() && !t2Leaves.hasNext();
+        return merged;
+    }
+
+    public static <T extends Comparable<T>> boolean sameFringe(Tree<T> t1, Tree<T> t2) {
+        return CoIterators.sameSequence(null, t1.leaves(t1.root), t2.leaves(t2.root));
     }
 
     private TreeNode root;
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2010 Marcin Rzeźnicki
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package pl.clareo.coroutines.user;
+
+/**
+ * Folds values produced by coroutine into accumulated result
+ * 
+ * @author Marcin Rzeźnicki
+ * 
+ * @param <R>
+ *            type of accumulated result
+ * @param <E>
+ *            type of value produced by coroutine
+ * @see CoIterator#scan(Object, Accumulator)
+ */
+public interface Accumulator<R, E> {
+
+    /**
+     * 
+     * @param accumulated
+     *            result accumulated so far
+     * @param e
+     *            value produced by coroutine
+     * @return new accumulated result
+     */
+    R accumulate(R accumulated, E e);
+}
@@ -16,6 +16,7 @@ limitations under the License.
 package pl.clareo.coroutines.user;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -58,6 +59,87 @@ public interface CoIterator<E, A> {
      */
     Iterable<E> each();
 
+    /**
+     * Coroutine whose results are results of this coroutine satisfying
+     * <code>predicate</code>. Rejected results are skipped without returning
+     * to caller. Value sent to returned coroutine is passed to this coroutine
+     * on the first call made to produce the next accepted result, even if the
+     * result of that call is rejected; <code>null</code> is sent on further
+     * calls made to skip rejected results
+     * 
+     * @param predicate
+     *            condition evaluated whenever coroutine yields
+     * @return filtered coroutine
+     * @see #map(Function)
+     */
+    CoIterator<E, A> filter(Predicate<? super E> predicate);
+
+    /**
+     * Coroutine which for every result of this coroutine returns all results of
+     * coroutine obtained from <code>function</code>. Inner coroutine is
+     * exhausted before this coroutine is called again. Values sent to returned
+     * coroutine are passed to this coroutine only
+     * 
+     * @param <R>
+     *            type of elements returned by inner coroutines
+     * @param function
+     *            creates inner coroutine for every result of this coroutine
+     * @return flattened coroutine
+     * @see #map(Function)
+     */
+    <R> CoIterator<R, A> flatMap(Function<? super E, ? extends CoIterator<? extends R, ?>> function);
+
+    /**
+     * Coroutine whose results are results of this coroutine transformed by
+     * <code>function</code>. Operators ({@link #map(Function) map},
+     * {@link #filter(Predicate) filter}, {@link #takeWhile(Predicate)
+     * takeWhile}, {@link #scan(Object, Accumulator) scan},
+     * {@link #flatMap(Function) flatMap} and
+     * {@link #zip(CoIterator, Combiner) zip}) applied one after another are
+     * fused - whole chain resumes this coroutine once per result, no matter how
+     * many operators it consists of. This coroutine should not be used
+     * directly after an operator has been applied to it. Closing returned
+     * coroutine closes this coroutine
+     * 
+     * @param <R>
+     *            type of transformed elements
+     * @param function
+     *            transformation applied whenever coroutine yields
+     * @return transformed coroutine
+     */
+    <R> CoIterator<R, A> map(Function<? super E, ? extends R> function);
+
+    /**
+     * Records results of coroutine, so that they can be iterated over many
+     * times. Each iterator of result <code>Iterable</code> starts from the
+     * first result and reads at its own position, coroutine is called only
+     * when some iterator gets past results recorded so far. All results are
+     * kept in memory
+     * 
+     * @return replayable results of coroutine
+     * @see #memoize(int)
+     */
+    Iterable<E> memoize();
+
+    /**
+     * As {@link #memoize()} but at most (approximately)
+     * <code>inMemoryLimit</code> latest results are kept in memory. Older
+     * results are serialized in chunks into temporary file (created in
+     * directory given by <code>pl.clareo.coroutines.SpillPath</code> system
+     * property, <code>java.io.tmpdir</code> by default) and read back through
+     * memory mapping when some iterator reaches them. Results must be
+     * {@link java.io.Serializable Serializable} then. When spilling fails
+     * iterator throws <code>IllegalStateException</code>, results recorded so
+     * far stay in memory and spilling them is retried when next chunk starts
+     * 
+     * @param inMemoryLimit
+     *            number of results kept in memory
+     * @return replayable results of coroutine
+     * @throws IllegalArgumentException
+     *             if <code>inMemoryLimit</code> is not positive
+     */
+    Iterable<E> memoize(int inMemoryLimit);
+
     /**
      * Obtains next result from coroutine
      * 
@@ -67,6 +149,21 @@ public interface CoIterator<E, A> {
      */
     E next();
 
+    /**
+     * Coroutine whose results are consecutive values accumulated from results
+     * of this coroutine, starting from <code>initial</code>
+     * 
+     * @param <R>
+     *            type of accumulated values
+     * @param initial
+     *            initial accumulated value
+     * @param accumulator
+     *            called whenever coroutine yields
+     * @return accumulating coroutine
+     * @see #map(Function)
+     */
+    <R> CoIterator<R, A> scan(R initial, Accumulator<R, ? super E> accumulator);
+
     /**
      * Obtains next result from coroutine and sends <code>a</code> to coroutine
      * (in corutine <code>a</code> will become current
@@ -80,6 +177,54 @@ public interface CoIterator<E, A> {
      */
     E send(A a);
 
+    /**
+     * Coroutine whose results are results of this coroutine up to (excluding)
+     * the first one that does not satisfy <code>predicate</code>. This
+     * coroutine is closed then and returned coroutine throws
+     * {@link NoSuchElementException}
+     * 
+     * @param predicate
+     *            condition evaluated whenever coroutine yields
+     * @return truncated coroutine
+     * @see #map(Function)
+     */
+    CoIterator<E, A> takeWhile(Predicate<? super E> predicate);
+
+    /**
+     * As {@link #tee(int, int, LagPolicy)} with buffer of 1024 results and
+     * {@link LagPolicy#FAIL_FAST FAIL_FAST} policy
+     * 
+     * @param n
+     *            number of consumers
+     * @return iterators over results of coroutine, one for each consumer
+     */
+    List<TeeIterator<E>> tee(int n);
+
+    /**
+     * Splits results of coroutine among <code>n</code> independent consumers.
+     * Each of the returned iterators returns all results of this coroutine,
+     * which is called only when the foremost consumer needs a result not
+     * obtained yet. Results are kept in one circular buffer shared by all
+     * consumers until the slowest one reads them, so memory used depends on
+     * the distance between consumers and not on the number of results. When
+     * this distance would exceed <code>bufferSize</code>
+     * <code>policy</code> decides what to do. Returned iterators may be used
+     * from different threads. Consumer which stops reading before coroutine is
+     * exhausted should be {@link TeeIterator#close() closed}
+     * 
+     * @param n
+     *            number of consumers
+     * @param bufferSize
+     *            maximal number of results kept for lagging consumers
+     * @param policy
+     *            what to do if consumers drift apart too far
+     * @return iterators over results of coroutine, one for each consumer
+     * @throws IllegalArgumentException
+     *             if <code>n</code> or <code>bufferSize</code> is not
+     *             positive
+     */
+    List<TeeIterator<E>> tee(int n, int bufferSize, LagPolicy policy);
+
     /**
      * results of coroutine as {@link Iterable}. Iterator of result
      * <code>Iterable</code> will return <code>false</code> from its
@@ -146,4 +291,23 @@ public interface CoIterator<E, A> {
      * @return results of coroutine as <code>Iterable</code>
      */
     Iterable<E> withPattern(A... toSend);
+
+    /**
+     * Coroutine which calls this coroutine and <code>other</code> in lockstep
+     * and returns their results combined by <code>combiner</code>. It ends
+     * when any of them ends, the other one being closed then. Values sent to
+     * returned coroutine are passed to this coroutine only
+     * 
+     * @param <F>
+     *            type of elements returned by <code>other</code>
+     * @param <R>
+     *            type of combined elements
+     * @param other
+     *            coroutine called along with this coroutine
+     * @param combiner
+     *            combines results of both coroutines
+     * @return combined coroutine
+     * @see #map(Function)
+     */
+    <F, R> CoIterator<R, A> zip(CoIterator<? extends F, ?> other, Combiner<? super E, ? super F, ? extends R> combiner);
 }
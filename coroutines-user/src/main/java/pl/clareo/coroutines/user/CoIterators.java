@@ -0,0 +1,207 @@
+/*
+ * Copyright 2010 Marcin Rzeźnicki
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package pl.clareo.coroutines.user;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * This class contains methods combining results of many coroutines
+ * 
+ * @author Marcin Rzeźnicki
+ * 
+ */
+public final class CoIterators {
+
+    /**
+     * Merges results of coroutines, each of them producing results sorted
+     * according to <code>comparator</code>, into one sorted sequence. Sources
+     * are kept in binary heap ordered by their last results - only the source
+     * whose result has just been returned is called again, so each result costs
+     * O(log N) comparisons for N sources and no allocations. Results equal
+     * according to <code>comparator</code> are returned in order of sources.
+     * Sources are called for the first time when iteration starts
+     * 
+     * @param <E>
+     *            type of merged elements
+     * @param comparator
+     *            order of results or <code>null</code> if elements are
+     *            {@link Comparable} and natural ordering should be used
+     * @param sources
+     *            coroutines to be merged
+     * @return merged results as <code>Iterable</code>
+     */
+    public static <E> Iterable<E> mergeSorted(final Comparator<? super E> comparator,
+                                              final CoIterator<? extends E, ?>... sources) {
+        return new Iterable<E>() {
+
+            @Override
+            public Iterator<E> iterator() {
+                return new MergingIterator<E>(comparator, sources);
+            }
+        };
+    }
+
+    /**
+     * Calls coroutines in lockstep and checks whether all of them produce the
+     * same sequence of results (same number of results equal according to
+     * <code>comparator</code>). It stops at the first difference, closing all
+     * coroutines
+     * 
+     * @param <E>
+     *            type of compared elements
+     * @param comparator
+     *            compares results or <code>null</code> if elements are
+     *            {@link Comparable} and natural ordering should be used
+     * @param sources
+     *            coroutines to be compared
+     * @return <code>true</code> if sequences are equal, <code>false</code>
+     *         otherwise
+     */
+    public static <E> boolean sameSequence(Comparator<? super E> comparator, CoIterator<? extends E, ?>... sources) {
+        int nSources = sources.length;
+        if (nSources < 2) {
+            return true;
+        }
+        try {
+            while (true) {
+                E first = null;
+                boolean firstExhausted = false;
+                for (int i = 0; i < nSources; i++) {
+                    E e = null;
+                    boolean exhausted = false;
+                    try {
+                        e = sources[i].next();
+                    } catch (NoSuchElementException ex) {
+                        exhausted = true;
+                    } catch (CoroutineClosedException ex) {
+                        exhausted = true;
+                    }
+                    if (i == 0) {
+                        first = e;
+                        firstExhausted = exhausted;
+                    } else if (exhausted != firstExhausted
+                               || (!exhausted && compare(comparator, first, e) != 0)) {
+                        return false;
+                    }
+                }
+                if (firstExhausted) {
+                    return true;
+                }
+            }
+        } finally {
+            for (CoIterator<? extends E, ?> source : sources) {
+                source.close();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> int compare(Comparator<? super E> comparator, E e1, E e2) {
+        if (comparator == null) {
+            return ((Comparable<? super E>) e1).compareTo(e2);
+        }
+        return comparator.compare(e1, e2);
+    }
+
+    private static final class MergingIterator<E> implements Iterator<E> {
+
+        private final Comparator<? super E>        comparator;
+        private final int[]                        heap;
+        private final Object[]                     heads;
+        private int                                size;
+        private final CoIterator<? extends E, ?>[] sources;
+
+        MergingIterator(Comparator<? super E> comparator, CoIterator<? extends E, ?>[] sources) {
+            this.comparator = comparator;
+            this.sources = sources;
+            int nSources = sources.length;
+            heap = new int[nSources];
+            heads = new Object[nSources];
+            for (int i = 0; i < nSources; i++) {
+                if (advance(i)) {
+                    heap[size++] = i;
+                }
+            }
+            for (int i = (size >> 1) - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        private boolean advance(int source) {
+            try {
+                heads[source] = sources[source].next();
+                return true;
+            } catch (NoSuchElementException e) {
+            } catch (CoroutineClosedException e) {
+            }
+            heads[source] = null;
+            return false;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return size > 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        private boolean less(int source1, int source2) {
+            int result = compare(comparator, (E) heads[source1], (E) heads[source2]);
+            return result < 0 || (result == 0 && source1 < source2);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public E next() {
+            if (size == 0) {
+                throw new NoSuchElementException();
+            }
+            int winner = heap[0];
+            E next = (E) heads[winner];
+            if (!advance(winner)) {
+                heap[0] = heap[--size];
+            }
+            if (size > 1) {
+                siftDown(0);
+            }
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void siftDown(int i) {
+            int source = heap[i];
+            int half = size >> 1;
+            while (i < half) {
+                int child = (i << 1) + 1;
+                int right = child + 1;
+                if (right < size && less(heap[right], heap[child])) {
+                    child = right;
+                }
+                if (!less(heap[child], source)) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = source;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2010 Marcin Rzeźnicki
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package pl.clareo.coroutines.user;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Reactive Streams {@link Publisher} of coroutine's results. Coroutine is
+ * called only when subscriber has requested more results - each
+ * {@link Subscription#request(long) request} results in at most as many calls
+ * as outstanding demand allows, emitted in one loop in the thread which
+ * requested them (or in the thread already emitting). Calls are never
+ * recursive, so subscriber may request more results from its
+ * {@link Subscriber#onNext(Object) onNext}.
+ * {@link Subscription#cancel() Cancelling} subscription closes coroutine,
+ * exhausting coroutine completes subscription. Since coroutine's results can
+ * be consumed only once this publisher supports single subscriber only.
+ * Reactive Streams' <code>FlowAdapters</code> may be used to obtain
+ * <code>java.util.concurrent.Flow.Publisher</code> from it
+ * 
+ * @author Marcin Rzeźnicki
+ * 
+ * @param <E>
+ *            type of elements returned by coroutine
+ */
+public class CoPublisher<E> implements Publisher<E> {
+
+    private final CoIterator<E, ?> coroutine;
+    private final AtomicBoolean    subscribed = new AtomicBoolean();
+
+    public CoPublisher(CoIterator<E, ?> coroutine) {
+        this.coroutine = coroutine;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super E> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Subscription() {
+
+                @Override
+                public void cancel() {
+                }
+
+                @Override
+                public void request(long n) {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Coroutine's results have already been subscribed to"));
+            return;
+        }
+        subscriber.onSubscribe(new CoSubscription<E>(coroutine, subscriber));
+    }
+
+    private static final class CoSubscription<E> implements Subscription {
+
+        private volatile boolean            cancelled;
+        private final CoIterator<E, ?>      coroutine;
+        private boolean                     done;
+        private volatile long               invalidRequest;
+        private final AtomicLong            requested = new AtomicLong();
+        private final Subscriber<? super E> subscriber;
+        private final AtomicInteger         wip       = new AtomicInteger();
+
+        CoSubscription(CoIterator<E, ?> coroutine, Subscriber<? super E> subscriber) {
+            this.coroutine = coroutine;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        /*
+         * only one thread at a time gets past wip check - it emits results on
+         * behalf of all threads which requested them in the meantime
+         */
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if (!done) {
+                    emit();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void emit() {
+            while (true) {
+                if (cancelled) {
+                    terminate(null);
+                    return;
+                }
+                if (invalidRequest != 0) {
+                    terminate(new IllegalArgumentException("Non-positive request " + invalidRequest));
+                    return;
+                }
+                long r = requested.get();
+                if (r == 0) {
+                    return;
+                }
+                E e;
+                try {
+                    e = coroutine.next();
+                } catch (NoSuchElementException ex) {
+                    done = true;
+                    subscriber.onComplete();
+                    return;
+                } catch (CoroutineClosedException ex) {
+                    done = true;
+                    subscriber.onComplete();
+                    return;
+                } catch (Throwable t) {
+                    done = true;
+                    subscriber.onError(t);
+                    return;
+                }
+                if (e == null) {
+                    terminate(new NullPointerException("Coroutine yielded null"));
+                    return;
+                }
+                if (r != Long.MAX_VALUE) {
+                    requested.decrementAndGet();
+                }
+                subscriber.onNext(e);
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = n == 0 ? -1 : n;
+            } else {
+                long r;
+                long u;
+                do {
+                    r = requested.get();
+                    u = r + n;
+                    if (u < 0) {
+                        u = Long.MAX_VALUE;
+                    }
+                } while (!requested.compareAndSet(r, u));
+            }
+            drain();
+        }
+
+        private void terminate(Throwable error) {
+            done = true;
+            coroutine.close();
+            if (error != null) {
+                subscriber.onError(error);
+            }
+        }
+    }
+}
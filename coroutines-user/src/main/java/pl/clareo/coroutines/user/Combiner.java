@@ -0,0 +1,42 @@
+/*
+ * Copyright 2010 Marcin Rzeźnicki
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package pl.clareo.coroutines.user;
+
+/**
+ * Combines values produced by two coroutines running in lockstep
+ * 
+ * @author Marcin Rzeźnicki
+ * 
+ * @param <E>
+ *            type of value produced by the first coroutine
+ * @param <F>
+ *            type of value produced by the second coroutine
+ * @param <R>
+ *            type of result
+ * @see CoIterator#zip(CoIterator, Combiner)
+ */
+public interface Combiner<E, F, R> {
+
+    /**
+     * 
+     * @param e
+     *            value produced by the first coroutine
+     * @param f
+     *            value produced by the second coroutine
+     * @return combined value
+     */
+    R combine(E e, F f);
+}
@@ -30,6 +30,33 @@ import java.lang.annotation.Target;
 @Target(ElementType.METHOD)
 public @interface Coroutine {
 
+    /**
+     * Keeps frames of all instances of this coroutine in one arena, where each
+     * local lives in a column indexed by instance and primitives are not
+     * boxed, instead of giving each instance its own arrays. Pays off when
+     * hundreds of thousands of instances are resumed one after another.
+     * Instance gives its row back when it is closed or garbage collected.
+     * Arena coroutine cannot be {@link #threadLocal() thread local}; in debug
+     * mode its frames are not kept in arena. Default is <code>false</code>
+     * 
+     * @return are frames of this coroutine kept in arena
+     */
+    boolean arena() default false;
+
+    /**
+     * Number of values coroutine yields before it suspends. Values are
+     * batched in its frame and handed out by subsequent calls to
+     * {@link CoIterator#next() next} without resuming coroutine, which pays off
+     * for generators doing little work per value. <code>yield</code> which
+     * does not suspend returns <code>null</code>, so coroutine yielding in
+     * batches should not expect values {@link CoIterator#send(Object) sent} to
+     * it. Default is <code>1</code> - coroutine suspends on every
+     * <code>yield</code>
+     * 
+     * @return number of values yielded per suspension
+     */
+    int batch() default 1;
+
     /**
      * If <code>false</code> {@link CoIterator#next() next} is called once
      * before passing <code>CoIterator</code> to caller
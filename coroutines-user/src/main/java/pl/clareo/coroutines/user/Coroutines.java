@@ -42,6 +42,32 @@ public final class Coroutines {
         throw new InvalidCoroutineException();
     }
 
+    /**
+     * Suspends coroutine and transfers control to <code>target</code>, which
+     * is resumed as if <code>value</code> was {@link CoIterator#send(Object)
+     * sent} to it. Target is resumed in place of this coroutine, not by it, so
+     * coroutines passing control to each other do not grow the stack and do
+     * not return to their caller in between. Value target yields is returned
+     * to caller of this coroutine, target is resumed instead of this coroutine
+     * until control is transferred back. Throws
+     * <code>InvalidCoroutineException</code> if used in non-coroutine method
+     * 
+     * @param <V>
+     *            type of transferred value
+     * @param <A>
+     *            type of <code>transfer</code>'s result
+     * @param target
+     *            coroutine control is transferred to, generator should have
+     *            run up to its first <code>yield</code> already
+     * @param value
+     *            sent to <code>target</code>
+     * @return value sent to this coroutine when it is resumed, by transfer or
+     *         by its caller
+     */
+    public static <V, A> A transfer(CoIterator<?, ? super V> target, V value) {
+        throw new InvalidCoroutineException();
+    }
+
     /**
      * Yield point of coroutine. In runtime it suspends coroutine execution and
      * returns to caller.
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2010 Marcin Rzeźnicki
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package pl.clareo.coroutines.user;
+
+/**
+ * Transforms values produced by coroutine
+ * 
+ * @author Marcin Rzeźnicki
+ * 
+ * @param <E>
+ *            type of transformed value
+ * @param <R>
+ *            type of result
+ * @see CoIterator#map(Function)
+ * @see CoIterator#flatMap(Function)
+ */
+public interface Function<E, R> {
+
+    /**
+     * 
+     * @param e
+     *            value produced by coroutine
+     * @return transformed value
+     */
+    R apply(E e);
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2010 Marcin Rzeźnicki
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package pl.clareo.coroutines.user;
+
+/**
+ * Decides what happens when consumers of {@link CoIterator#tee(int, int, LagPolicy)
+ * tee} drift apart by more than size of their shared buffer
+ * 
+ * @author Marcin Rzeźnicki
+ * 
+ */
+public enum LagPolicy {
+    /**
+     * Consumer which is about to get too far ahead of the slowest one waits
+     * until it catches up. Consumers have to run in separate threads then, and
+     * consumer which stops reading has to be {@link TeeIterator#close()
+     * closed} - otherwise the others wait for it forever
+     */
+    BLOCK,
+    /**
+     * Consumer which falls too far behind is detached - its buffered results
+     * are discarded and any further attempt to read from it throws
+     * {@link IllegalStateException}. Other consumers proceed undisturbed
+     */
+    FAIL_FAST
+}
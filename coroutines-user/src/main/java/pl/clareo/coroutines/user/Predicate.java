@@ -0,0 +1,38 @@
+/*
+ * Copyright 2010 Marcin Rzeźnicki
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package pl.clareo.coroutines.user;
+
+/**
+ * Condition evaluated on values produced by coroutine
+ * 
+ * @author Marcin Rzeźnicki
+ * 
+ * @param <E>
+ *            type of examined value
+ * @see CoIterator#filter(Predicate)
+ * @see CoIterator#takeWhile(Predicate)
+ */
+public interface Predicate<E> {
+
+    /**
+     * 
+     * @param e
+     *            value produced by coroutine
+     * @return <code>true</code> if <code>e</code> satisfies this condition,
+     *         <code>false</code> otherwise
+     */
+    boolean apply(E e);
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2009-2010 Marcin Rzeźnicki
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package pl.clareo.coroutines.user;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotates method which may {@link Coroutines#yield(Object) yield} on behalf
+ * of the coroutine calling it. When a coroutine or another suspendable method
+ * of the same class calls it, its yields suspend the whole chain of calls down
+ * to the coroutine, which resumes them when it is resumed. Neither
+ * <code>CoIterator</code> nor loop re-yielding values is needed for every level
+ * of calls, so deep or recursive calls can suspend.
+ * <p>
+ * Method must be static, private or final. Called from other methods it runs
+ * as it is, so it throws <code>InvalidCoroutineException</code> when it yields
+ * 
+ * @author Marcin Rzeźnicki
+ * 
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.METHOD)
+public @interface Suspendable {
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2010 Marcin Rzeźnicki
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package pl.clareo.coroutines.user;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Consumer of results of {@link CoIterator#tee(int, int, LagPolicy) tee}.
+ * Consumer which is not going to read any more should be closed, so that
+ * others do not keep results (or, under {@link LagPolicy#BLOCK BLOCK} policy,
+ * wait) for it
+ * 
+ * @author Marcin Rzeźnicki
+ * 
+ * @param <E>
+ *            type of results
+ */
+public interface TeeIterator<E> extends Iterator<E>, Closeable {
+
+    /**
+     * Detaches this consumer from the shared buffer. Closed consumer has no
+     * more results. When all consumers are closed, coroutine is closed too.
+     * Closing closed consumer has no effect
+     */
+    @Override
+    void close();
+}